@@ -0,0 +1,160 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+
+package org.guardtime.ksi.hlf.contract.api;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * BlockCoverage tells which blocks of a range have a KSI signature in the ledger
+ * and optionally which of the signatures are extended. It is decoded from the
+ * compressed bitmaps returned by the contract query getCoverage (see
+ * {@link KsiContractApi#getCoverage}).
+ */
+public class BlockCoverage {
+    private final long from;
+    private final long to;
+    private final BitSet signed = new BitSet();
+    private final BitSet extended;
+
+    /**
+     * Creates empty coverage of blocks [from, to].
+     * @param withExtended true if extended flags are available.
+     */
+    public BlockCoverage(long from, long to, boolean withExtended) {
+        if (from < 0 || from > to) throw new IllegalArgumentException("Invalid block coverage range [" + from + ", " + to + "]!");
+        if (to - from >= Integer.MAX_VALUE) throw new IllegalArgumentException("Block coverage range [" + from + ", " + to + "] is too large!");
+
+        this.from = from;
+        this.to = to;
+        this.extended = withExtended ? new BitSet() : null;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public boolean hasExtended() {
+        return extended != null;
+    }
+
+    public boolean isSigned(long block) {
+        return signed.get(index(block));
+    }
+
+    public boolean isExtended(long block) {
+        if (extended == null) throw new IllegalStateException("Block coverage does not contain extended flags!");
+        return extended.get(index(block));
+    }
+
+    public int getSignedCount() {
+        return signed.cardinality();
+    }
+
+    public int getExtendedCount() {
+        if (extended == null) throw new IllegalStateException("Block coverage does not contain extended flags!");
+        return extended.cardinality();
+    }
+
+    /**
+     * Returns the ranges of unsigned blocks as {first, last} pairs (both included).
+     */
+    public List<long[]> getUnsignedRanges() {
+        List<long[]> ret = new ArrayList<>();
+        int size = (int) (to - from + 1);
+        int i = signed.nextClearBit(0);
+        while (i < size) {
+            int end = signed.nextSetBit(i);
+            if (end < 0 || end > size) {
+                end = size;
+            }
+            ret.add(new long[] {from + i, from + end - 1});
+            i = signed.nextClearBit(end);
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        long total = to - from + 1;
+        return "blocks " + from + ".." + to + ": " + getSignedCount() + " signed, " + (total - getSignedCount()) + " unsigned" +
+               (extended != null ? ", " + extended.cardinality() + " extended" : "");
+    }
+
+    /**
+     * Sets the flags of the blocks starting from block first from the compressed bitmaps
+     * returned by getCoverage query.
+     * @param extendedBitmap extended bitmap, ignored if extended flags are not available.
+     * @throws DataFormatException if a bitmap can not be decompressed.
+     */
+    public void add(long first, String signedBitmap, String extendedBitmap) throws DataFormatException {
+        BitSet s = decompress(signedBitmap);
+        for (int i = s.nextSetBit(0); i >= 0; i = s.nextSetBit(i + 1)) {
+            signed.set(index(first + i));
+        }
+
+        if (extended != null) {
+            BitSet e = decompress(extendedBitmap);
+            for (int i = e.nextSetBit(0); i >= 0; i = e.nextSetBit(i + 1)) {
+                extended.set(index(first + i));
+            }
+        }
+    }
+
+    private int index(long block) {
+        if (block < from || block > to) throw new IllegalArgumentException("Block " + block + " is out of coverage range [" + from + ", " + to + "]!");
+        return (int) (block - from);
+    }
+
+    /**
+     * Decodes base64 encoded and deflated little-endian bitmap.
+     */
+    static BitSet decompress(String base64) throws DataFormatException {
+        if (base64 == null) throw new NullPointerException("Bitmap is null!");
+
+        byte[] in = Base64.getDecoder().decode(base64);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(in.length * 4);
+            byte[] buf = new byte[0x1000];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buf);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated bitmap!");
+                }
+                out.write(buf, 0, len);
+            }
+            return BitSet.valueOf(out.toByteArray());
+        } finally {
+            inflater.end();
+        }
+    }
+}
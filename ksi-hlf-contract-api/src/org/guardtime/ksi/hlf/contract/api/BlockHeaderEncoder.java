@@ -0,0 +1,158 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.contract.api;
+
+import java.security.MessageDigest;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * BlockHeaderEncoder is a purpose-built DER encoder of HLF block header that is
+ * hashed to get the block hash:
+ * <pre>
+ * SEQUENCE {
+ *     number       INTEGER,
+ *     previousHash OCTET STRING,
+ *     dataHash     OCTET STRING
+ * }
+ * </pre>
+ * The output is byte-for-byte the same as produced by BouncyCastle
+ * DERSequenceGenerator with ASN1Integer and DEROctetString. When digesting, the
+ * encoding is written into a reusable thread-local buffer, so no memory is
+ * allocated per block.
+ */
+public final class BlockHeaderEncoder {
+    private static final byte TAG_INTEGER = 0x02;
+    private static final byte TAG_OCTET_STRING = 0x04;
+    private static final byte TAG_SEQUENCE = 0x30;
+
+    private static final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private BlockHeaderEncoder() {
+    }
+
+    /**
+     * Feeds the DER encoded header to the digest.
+     */
+    public static void digest(MessageDigest digest, long number, ByteString previousHash, ByteString dataHash) {
+        int len = getEncodedLength(number, previousHash.size(), dataHash.size());
+
+        byte[] buf = buffer.get();
+        if (buf.length < len) {
+            buf = new byte[len];
+            buffer.set(buf);
+        }
+
+        write(buf, number, previousHash, dataHash);
+        digest.update(buf, 0, len);
+    }
+
+    /**
+     * Returns the DER encoded header.
+     */
+    public static byte[] encode(long number, ByteString previousHash, ByteString dataHash) {
+        byte[] buf = new byte[getEncodedLength(number, previousHash.size(), dataHash.size())];
+        write(buf, number, previousHash, dataHash);
+        return buf;
+    }
+
+    public static byte[] encode(long number, byte[] previousHash, byte[] dataHash) {
+        return encode(number, ByteString.copyFrom(previousHash), ByteString.copyFrom(dataHash));
+    }
+
+    private static int getEncodedLength(long number, int prevLen, int dataLen) {
+        int content = getContentLength(number, prevLen, dataLen);
+        return 1 + getLengthOfLength(content) + content;
+    }
+
+    private static int getContentLength(long number, int prevLen, int dataLen) {
+        int intLen = getIntegerLength(number);
+        return (1 + getLengthOfLength(intLen) + intLen)
+             + (1 + getLengthOfLength(prevLen) + prevLen)
+             + (1 + getLengthOfLength(dataLen) + dataLen);
+    }
+
+    private static int write(byte[] buf, long number, ByteString previousHash, ByteString dataHash) {
+        int pos = 0;
+
+        buf[pos++] = TAG_SEQUENCE;
+        pos = writeLength(buf, pos, getContentLength(number, previousHash.size(), dataHash.size()));
+
+        int intLen = getIntegerLength(number);
+        buf[pos++] = TAG_INTEGER;
+        pos = writeLength(buf, pos, intLen);
+        for (int i = intLen - 1; i >= 0; i--) {
+            buf[pos++] = (byte) (number >> (i * 8));
+        }
+
+        pos = writeOctetString(buf, pos, previousHash);
+        pos = writeOctetString(buf, pos, dataHash);
+        return pos;
+    }
+
+    private static int writeOctetString(byte[] buf, int pos, ByteString value) {
+        buf[pos++] = TAG_OCTET_STRING;
+        pos = writeLength(buf, pos, value.size());
+        value.copyTo(buf, pos);
+        return pos + value.size();
+    }
+
+    /* Minimal two's complement length of the integer (as BigInteger.toByteArray). */
+    private static int getIntegerLength(long v) {
+        int n = 8;
+        while (n > 1) {
+            int top = (int) (v >> ((n - 1) * 8)) & 0xff;
+            int nextSign = (int) (v >> ((n - 1) * 8 - 1)) & 1;
+            if ((top == 0x00 && nextSign == 0) || (top == 0xff && nextSign == 1)) {
+                n--;
+            } else {
+                break;
+            }
+        }
+        return n;
+    }
+
+    /* DER definite length: short form below 128, long form otherwise. */
+    private static int getLengthOfLength(int len) {
+        if (len < 0x80) {
+            return 1;
+        }
+
+        int n = 1;
+        while ((len >>>= 8) != 0) {
+            n++;
+        }
+        return 1 + n;
+    }
+
+    private static int writeLength(byte[] buf, int pos, int len) {
+        if (len < 0x80) {
+            buf[pos++] = (byte) len;
+            return pos;
+        }
+
+        int n = getLengthOfLength(len) - 1;
+        buf[pos++] = (byte) (0x80 | n);
+        for (int i = n - 1; i >= 0; i--) {
+            buf[pos++] = (byte) (len >> (i * 8));
+        }
+        return pos;
+    }
+}
@@ -19,31 +19,47 @@
 
 package org.guardtime.ksi.hlf.contract.api;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
 
 import com.google.protobuf.ByteString;
 import com.guardtime.ksi.hashing.DataHash;
-import com.guardtime.ksi.hashing.DataHasher;
 import com.guardtime.ksi.hashing.HashAlgorithm;
 import com.guardtime.ksi.tree.HashTreeBuilder;
 import com.guardtime.ksi.tree.ImprintNode;
 
-import org.bouncycastle.asn1.ASN1Integer;
-import org.bouncycastle.asn1.DEROctetString;
-import org.bouncycastle.asn1.DERSequenceGenerator;
 import org.hyperledger.fabric.protos.common.Common;
 import org.hyperledger.fabric.protos.common.Common.BlockMetadata;
+import org.hyperledger.fabric.protos.peer.Chaincode;
+import org.hyperledger.fabric.protos.peer.ProposalPackage;
+import org.hyperledger.fabric.protos.peer.TransactionPackage;
 import org.hyperledger.fabric.sdk.BlockInfo;
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.wrapper.TxProof;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  * BlockHelper is a wrapper class for BlockInfo. It provides: 1) computation of
  * block and metadata hash. 2) checking if block contains only KSI transaction.
  * 3) aggregating block info to root hash value with level.
+ *
+ * With transaction aggregation the hashes of the transaction envelopes are
+ * aggregated into transaction root hash that becomes the third record hash next
+ * to header and metadata hash. Then a proof of a single transaction (see
+ * {@link TxProof}) can be extracted.
  */
 public class BlockHelper {
-    private BlockInfo binf;
+    private Common.Block block;
     private HashAlgorithm aggrHashAlgo;
+    private boolean txAggregation;
 
     private int level;
     private boolean isAggregated;
@@ -52,7 +68,22 @@ public class BlockHelper {
     private DataHash headerHash;
     private DataHash metaHash;
 
+    private DataHash[] txHashes;
+    private ImprintNode[] txLeaves;
+    private ImprintNode txRoot;
+
+    /* Envelopes are hashed in parallel when the block contains at least that many transactions. */
+    private static final int PARALLEL_TX_HASHING = 64;
+
     private final HashAlgorithm fabricHardcodedHashAlgo = HashAlgorithm.SHA2_256;
+    private static final String fabricHardcodedDigestName = "SHA-256";
+
+    /* Contract functions that only write KSI signatures to the ledger. */
+    private static final Set<String> ksiFunctions = new HashSet<>(Arrays.asList(
+        KsiContractApi.className + ":" + KsiContractApi.fSetKsi,
+        KsiContractApi.className + ":" + KsiContractApi.fSetKsiAggr,
+        KsiContractApi.className + ":" + KsiContractApi.fSetKsiBatch,
+        KsiContractApi.className + ":" + KsiContractApi.fSetExtKsi));
 
     /**
      * Create new BlockHelper with specified local aggregation hash algorithm. Note
@@ -62,26 +93,71 @@ public class BlockHelper {
      * @param aggrHashAlgo Hash Algorithm for local aggregation.
      */
     public BlockHelper(BlockInfo binf, HashAlgorithm aggrHashAlgo) {
-        this.binf = binf;
+        this(binf.getBlock(), aggrHashAlgo, false);
+    }
+
+    public BlockHelper(BlockInfo binf, HashAlgorithm aggrHashAlgo, boolean txAggregation) {
+        this(binf.getBlock(), aggrHashAlgo, txAggregation);
+    }
+
+    /**
+     * Create new BlockHelper with specified local aggregation hash algorithm and
+     * optional transaction aggregation.
+     *
+     * @param block         Raw block (e.g. read from block files).
+     * @param aggrHashAlgo  Hash Algorithm for local aggregation.
+     * @param txAggregation If true, transaction root hash is included in record hashes.
+     */
+    public BlockHelper(Common.Block block, HashAlgorithm aggrHashAlgo, boolean txAggregation) {
+        if (block == null) throw new NullPointerException("Block is null!");
+        this.block = block;
         this.aggrHashAlgo = aggrHashAlgo;
+        this.txAggregation = txAggregation;
         this.headerHash = null;
         this.metaHash = null;
     }
 
+    /**
+     * Returns BlockHelper of the same block with transaction aggregation turned on
+     * or off. Already calculated header and metadata hashes are reused.
+     */
+    public BlockHelper withTxAggregation(boolean txAggregation) {
+        if (this.txAggregation == txAggregation) {
+            return this;
+        }
+
+        BlockHelper tmp = new BlockHelper(this.block, this.aggrHashAlgo, txAggregation);
+        tmp.headerHash = this.headerHash;
+        tmp.metaHash = this.metaHash;
+        tmp.txHashes = this.txHashes;
+        tmp.txLeaves = this.txLeaves;
+        tmp.txRoot = this.txRoot;
+        return tmp;
+    }
+
+    public boolean isTxAggregation() {
+        return this.txAggregation;
+    }
+
+    public long getBlockNumber() {
+        return this.block.getHeader().getNumber();
+    }
+
     public DataHash getMetadataHash() throws KsiContractException {
         if (this.metaHash == null) {
             try {
-                Common.Block rawBlock = binf.getBlock();
-                BlockMetadata md = rawBlock.getMetadata();
+                BlockMetadata md = this.block.getMetadata();
                 List<ByteString> dataList = md.getMetadataList();
-                DataHasher hsr = new DataHasher(this.fabricHardcodedHashAlgo);
+                MessageDigest digest = newFabricDigest();
 
-                dataList.forEach(a -> {
-                    byte[] bytes = a.toByteArray();
-                    hsr.addData(bytes);
-                });
+                /* Feed the content of ByteStrings directly to the digest without copying. */
+                for (ByteString a : dataList) {
+                    for (ByteBuffer buf : a.asReadOnlyByteBufferList()) {
+                        digest.update(buf);
+                    }
+                }
 
-                this.metaHash = hsr.getHash();
+                this.metaHash = new DataHash(this.fabricHardcodedHashAlgo, digest.digest());
             } catch (Exception e) {
                 throw new KsiContractException("Unable to calculate block metadata hash!", e);
             }
@@ -98,17 +174,12 @@ public class BlockHelper {
 
         if (this.headerHash == null) {
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DERSequenceGenerator seq = new DERSequenceGenerator(baos);
+                /* DER encoding of (number, previousHash, dataHash) is written straight to the digest. */
+                MessageDigest digest = newFabricDigest();
+                Common.BlockHeader header = this.block.getHeader();
+                BlockHeaderEncoder.digest(digest, header.getNumber(), header.getPreviousHash(), header.getDataHash());
 
-                seq.addObject(new ASN1Integer(binf.getBlockNumber()));
-                seq.addObject(new DEROctetString(binf.getPreviousHash()));
-                seq.addObject(new DEROctetString(binf.getDataHash()));
-                seq.close();
-
-                DataHasher hsr = new DataHasher(this.fabricHardcodedHashAlgo);
-                hsr.addData(baos.toByteArray());
-                this.headerHash = hsr.getHash();
+                this.headerHash = new DataHash(this.fabricHardcodedHashAlgo, digest.digest());
             } catch (Exception e) {
                 throw new KsiContractException("Unable to calculate block header hash!", e);
             }
@@ -117,19 +188,152 @@ public class BlockHelper {
         return this.headerHash;
     }
 
+    private static MessageDigest newFabricDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(fabricHardcodedDigestName);
+    }
+
     public DataHash getPreviousHeaderHash() throws KsiContractException {
-        return new DataHash(this.fabricHardcodedHashAlgo, this.binf.getPreviousHash());
+        return new DataHash(this.fabricHardcodedHashAlgo, this.block.getHeader().getPreviousHash().toByteArray());
     }
 
     public DataHash getDataHash() throws KsiContractException {
-        return new DataHash(this.fabricHardcodedHashAlgo, this.binf.getDataHash());
+        return new DataHash(this.fabricHardcodedHashAlgo, this.block.getHeader().getDataHash().toByteArray());
+    }
+
+    /**
+     * Checks that the data hash of the block header matches with the block data
+     * (HLF hashes the concatenation of the transaction envelopes).
+     */
+    public boolean isDataHashValid() throws KsiContractException {
+        try {
+            MessageDigest digest = newFabricDigest();
+            for (ByteString env : this.block.getData().getDataList()) {
+                for (ByteBuffer buf : env.asReadOnlyByteBufferList()) {
+                    digest.update(buf);
+                }
+            }
+            return MessageDigest.isEqual(digest.digest(), this.block.getHeader().getDataHash().toByteArray());
+        } catch (Exception e) {
+            throw new KsiContractException("Unable to calculate block data hash!", e);
+        }
     }
 
     public DataHash[] getRecordHashes() throws KsiContractException {
+        if (this.txAggregation && this.getTxCount() > 0) {
+            DataHash[] recHash = { this.getHeaderHash(), this.getMetadataHash(), this.getTxRootHash() };
+            return recHash;
+        }
+
         DataHash[] recHash = { this.getHeaderHash(), this.getMetadataHash() };
         return recHash;
     }
 
+    public int getTxCount() {
+        return this.block.getData().getDataCount();
+    }
+
+    /**
+     * Returns the raw transaction envelope.
+     */
+    public byte[] getTxEnvelope(int index) {
+        if (index < 0 || index >= getTxCount()) throw new IllegalArgumentException("Transaction index " + index + " is out of range [0, " + getTxCount() + ")!");
+        return this.block.getData().getData(index).toByteArray();
+    }
+
+    /**
+     * Returns hashes of all the transaction envelopes of the block. Large blocks
+     * are hashed in parallel.
+     */
+    public DataHash[] getTxHashes() throws KsiContractException {
+        if (this.txHashes == null) {
+            try {
+                Common.BlockData data = this.block.getData();
+                DataHash[] tmp = new DataHash[data.getDataCount()];
+
+                IntStream range = IntStream.range(0, tmp.length);
+                if (tmp.length >= PARALLEL_TX_HASHING) {
+                    range = range.parallel();
+                }
+                range.forEach(i -> tmp[i] = hashTxEnvelope(data.getData(i)));
+
+                this.txHashes = tmp;
+            } catch (Exception e) {
+                throw new KsiContractException("Unable to calculate block transaction hashes!", e);
+            }
+        }
+
+        return this.txHashes;
+    }
+
+    /**
+     * Returns the root hash of the local aggregation tree built over transaction
+     * envelope hashes.
+     */
+    public DataHash getTxRootHash() throws KsiContractException {
+        if (this.txRoot == null) {
+            DataHash[] hashes = this.getTxHashes();
+            if (hashes.length == 0) {
+                throw new KsiContractException("Unable to aggregate transactions as block " + getBlockNumber() + " has no transactions!");
+            }
+
+            try {
+                HashTreeBuilder tb = new HashTreeBuilder(this.aggrHashAlgo);
+                ImprintNode[] leaves = new ImprintNode[hashes.length];
+                for (int i = 0; i < hashes.length; i++) {
+                    leaves[i] = new ImprintNode(hashes[i]);
+                    tb.add(leaves[i]);
+                }
+
+                this.txRoot = tb.build();
+                this.txLeaves = leaves;
+            } catch (Exception e) {
+                throw new KsiContractException("Unable to perform local aggregation on block transactions!", e);
+            }
+        }
+
+        return new DataHash(this.txRoot.getValue());
+    }
+
+    /**
+     * Extracts the proof of a single transaction from the block and its KSI signature
+     * that was issued with transaction aggregation.
+     *
+     * @param index Index of the transaction in the block.
+     * @param sig   KsiWrapper of the block.
+     * @return Transaction proof.
+     */
+    public TxProof getTxProof(int index, KsiWrapper sig) throws KsiContractException {
+        if (sig == null) throw new NullPointerException("KsiWrapper for transaction proof is null!");
+        if (index < 0 || index >= getTxCount()) throw new IllegalArgumentException("Transaction index " + index + " is out of range [0, " + getTxCount() + ")!");
+
+        if (sig.getBlockNumber() != getBlockNumber()) {
+            throw new KsiContractException("KsiWrapper of block " + sig.getBlockNumber() + " does not belong to block " + getBlockNumber() + "!");
+        }
+        if (!TxProof.isTxAggregated(sig)) {
+            throw new KsiContractException("KsiWrapper of block " + sig.getBlockNumber() + " is not signed with transaction aggregation!");
+        }
+        if (!this.getTxRootHash().equals(sig.getRecordHash()[TxProof.TX_ROOT_INDEX])) {
+            throw new KsiContractException("Transaction root hash of block " + sig.getBlockNumber() + " does not match with the KsiWrapper!");
+        }
+
+        return new TxProof(sig, index, this.txHashes[index], TxProof.getChain(this.txRoot, this.txLeaves[index]));
+    }
+
+    /**
+     * Calculates the hash of the raw transaction envelope with HLF hash algorithm.
+     */
+    public static DataHash hashTxEnvelope(ByteString envelope) {
+        try {
+            MessageDigest digest = newFabricDigest();
+            for (ByteBuffer buf : envelope.asReadOnlyByteBufferList()) {
+                digest.update(buf);
+            }
+            return new DataHash(HashAlgorithm.SHA2_256, digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new KsiContractException("Unable to calculate transaction hash!", e);
+        }
+    }
+
     private void aggregate() throws KsiContractException {
         try {
             DataHash[] rechash = this.getRecordHashes();
@@ -163,25 +367,185 @@ public class BlockHelper {
         return this.rootHsh;
     }
 
-    // TODO: this function is a hardcoded hack!
+    /**
+     * Checks if every transaction in the block is an invocation of KSI contract
+     * function that writes KSI signatures (such blocks are not signed). Transactions
+     * are decoded from protobuf (Envelope, Payload, ChannelHeader, Transaction,
+     * ChaincodeActionPayload, ChaincodeProposalPayload, ChaincodeInvocationSpec) and
+     * the check stops at the first non-KSI transaction. A transaction that can not
+     * be decoded is treated as non-KSI transaction, so the block is signed.
+     */
     public boolean isOnlyKsiTransaction() {
+        Common.BlockData data = this.block.getData();
+
+        for (int i = 0; i < data.getDataCount(); i++) {
+            if (!isKsiTransaction(data.getData(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isKsiTransaction(ByteString envelope) {
+        List<Chaincode.ChaincodeSpec> specs;
         try {
-            String chaincodeName = "ksi.hlf.contract";
-            String contractName = "org.guardtime.ksi.hlf.contract";
-            String funcName = "setKsi";
+            specs = decodeInvocations(envelope);
+        } catch (Exception e) {
+            return false;
+        }
+        if (specs == null || specs.isEmpty()) {
+            return false;
+        }
+
+        for (Chaincode.ChaincodeSpec spec : specs) {
+            if (!KsiContractApi.chaincodeName.equals(spec.getChaincodeId().getName())) {
+                return false;
+            }
+
+            Chaincode.ChaincodeInput input = spec.getInput();
+            if (input.getArgsCount() == 0 || !ksiFunctions.contains(input.getArgs(0).toStringUtf8())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Decodes chaincode invocations of the transaction envelope. Returns null if
+     * the envelope is not an endorser transaction.
+     */
+    private static List<Chaincode.ChaincodeSpec> decodeInvocations(ByteString envelope) throws Exception {
+        Common.Envelope env = Common.Envelope.parseFrom(envelope);
+        Common.Payload payload = Common.Payload.parseFrom(env.getPayload());
+        Common.ChannelHeader ch = Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+
+        if (ch.getType() != Common.HeaderType.ENDORSER_TRANSACTION_VALUE) {
+            return null;
+        }
 
-            for (int i = 0; i < binf.getBlock().getData().getDataCount(); i++) {
-                String data = binf.getBlock().getData().getData(i).toStringUtf8();
+        TransactionPackage.Transaction tx = TransactionPackage.Transaction.parseFrom(payload.getData());
+        List<Chaincode.ChaincodeSpec> specs = new ArrayList<>(tx.getActionsCount());
 
-                // If it does not contain KSI related substrings, it must be something different
-                if (!data.contains(chaincodeName) || !data.contains(contractName + ":" + funcName)) {
-                    return false;
+        for (TransactionPackage.TransactionAction action : tx.getActionsList()) {
+            TransactionPackage.ChaincodeActionPayload cap = TransactionPackage.ChaincodeActionPayload.parseFrom(action.getPayload());
+            ProposalPackage.ChaincodeProposalPayload cpp = ProposalPackage.ChaincodeProposalPayload.parseFrom(cap.getChaincodeProposalPayload());
+            specs.add(Chaincode.ChaincodeInvocationSpec.parseFrom(cpp.getInput()).getChaincodeSpec());
+        }
+
+        return specs;
+    }
+
+    /**
+     * Returns the KSI signatures of the org written to the ledger by the valid
+     * transactions of this block (setKsi, setKsiAggregated, setKsiBatch and
+     * updateWithExtended) in the order of writing. This makes it possible to read
+     * the signatures without querying the contract, e.g. from block files.
+     *
+     * Note that signatures pushed by updateWithExtended do not contain record hashes
+     * and level, the contract takes these from the signature that was extended.
+     * Input rejected by the contract is skipped.
+     */
+    public List<KsiWrapper> getKsiSignatures(String org) throws KsiContractException {
+        if (org == null) throw new NullPointerException("Unable to get KSI signatures from block as org is null!");
+
+        List<KsiWrapper> ret = new ArrayList<>();
+        try {
+            Common.BlockData data = this.block.getData();
+            ByteString filter = getTxValidationFilter();
+
+            for (int i = 0; i < data.getDataCount(); i++) {
+                /* Transaction validation code 0 is VALID. */
+                if (filter != null && i < filter.size() && filter.byteAt(i) != 0) {
+                    continue;
+                }
+
+                List<Chaincode.ChaincodeSpec> specs;
+                try {
+                    specs = decodeInvocations(data.getData(i));
+                } catch (Exception e) {
+                    continue;
+                }
+                if (specs == null) {
+                    continue;
+                }
+
+                for (Chaincode.ChaincodeSpec spec : specs) {
+                    if (KsiContractApi.chaincodeName.equals(spec.getChaincodeId().getName())) {
+                        addKsiSignatures(spec.getInput(), org, ret);
+                    }
                 }
             }
+        } catch (Exception e) {
+            throw new KsiContractException("Unable to get KSI signatures from block " + getBlockNumber() + "!", e);
+        }
+
+        return ret;
+    }
+
+    private ByteString getTxValidationFilter() {
+        BlockMetadata md = this.block.getMetadata();
+        if (md.getMetadataCount() <= Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE) {
+            return null;
+        }
+        return md.getMetadata(Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE);
+    }
+
+    private static void addKsiSignatures(Chaincode.ChaincodeInput input, String org, List<KsiWrapper> out) {
+        if (input.getArgsCount() == 0) {
+            return;
+        }
+
+        String fn = input.getArgs(0).toStringUtf8();
+        String prefix = KsiContractApi.className + ":";
+        try {
+            if (fn.equals(prefix + KsiContractApi.fSetKsi) || fn.equals(prefix + KsiContractApi.fSetKsiAggr)) {
+                long blockNr = Long.parseLong(input.getArgs(1).toStringUtf8());
+                String sigOrg = input.getArgs(2).toStringUtf8();
+                if (!org.equals(sigOrg)) return;
 
-            return true;
+                String ksig = input.getArgs(3).toStringUtf8();
+                String[] recHash = toStringArray(new JSONArray(input.getArgs(4).toStringUtf8()));
+                if (fn.equals(prefix + KsiContractApi.fSetKsiAggr)) {
+                    out.add(KsiWrapper.newFromBase64(ksig, recHash, Long.parseLong(input.getArgs(5).toStringUtf8()), blockNr, sigOrg));
+                } else {
+                    out.add(KsiWrapper.newFromBase64(ksig, recHash, blockNr, sigOrg));
+                }
+            } else if (fn.equals(prefix + KsiContractApi.fSetKsiBatch)) {
+                JSONArray items = new JSONArray(input.getArgs(1).toStringUtf8());
+                for (int i = 0; i < items.length(); i++) {
+                    try {
+                        JSONObject item = items.getJSONObject(i);
+                        if (!org.equals(item.getString("org"))) continue;
+
+                        String[] recHash = toStringArray(item.getJSONArray("rechash"));
+                        if (item.has("lvl")) {
+                            out.add(KsiWrapper.newFromBase64(item.getString("ksig"), recHash, item.getLong("lvl"), item.getLong("block"), org));
+                        } else {
+                            out.add(KsiWrapper.newFromBase64(item.getString("ksig"), recHash, item.getLong("block"), org));
+                        }
+                    } catch (Exception e) {
+                        /* Item was rejected by the contract. */
+                    }
+                }
+            } else if (fn.equals(prefix + KsiContractApi.fSetExtKsi)) {
+                long blockNr = Long.parseLong(input.getArgs(1).toStringUtf8());
+                String sigOrg = input.getArgs(2).toStringUtf8();
+                if (!org.equals(sigOrg)) return;
+
+                out.add(KsiWrapper.newFromBase64(input.getArgs(3).toStringUtf8(), blockNr, sigOrg));
+            }
         } catch (Exception e) {
-            throw new KsiContractException("Unable to check if block contains only KSI signature transaction!", e);
+            /* Input was rejected by the contract. */
+        }
+    }
+
+    private static String[] toStringArray(JSONArray arr) {
+        String[] ret = new String[arr.length()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = arr.getString(i);
         }
+        return ret;
     }
 }
\ No newline at end of file
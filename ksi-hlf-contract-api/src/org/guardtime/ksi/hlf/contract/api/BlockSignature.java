@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.contract.api;
+package org.guardtime.ksi.hlf.contract.api;
+
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+
+/**
+ * KSI signature of a block returned by range query (see {@link KsiContractApi#getSignatures}).
+ * If the stored signature of the block is invalid, the error is kept instead, so
+ * that the rest of the range is not affected.
+ */
+public final class BlockSignature {
+    private final long blockNr;
+    private final KsiWrapper sig;
+    private final KsiContractException error;
+
+    BlockSignature(long blockNr, KsiWrapper sig, KsiContractException error) {
+        this.blockNr = blockNr;
+        this.sig = sig;
+        this.error = error;
+    }
+
+    public long getBlockNumber() {
+        return blockNr;
+    }
+
+    public boolean isValid() {
+        return error == null;
+    }
+
+    /**
+     * Returns the error of the invalid signature or null.
+     */
+    public KsiContractException getError() {
+        return error;
+    }
+
+    /**
+     * Returns the KsiWrapper of the block.
+     * @throws KsiContractException if the stored signature is invalid.
+     */
+    public KsiWrapper getSignature() {
+        if (error != null) {
+            throw new KsiContractException(error.getMessage(), error);
+        }
+        return sig;
+    }
+}
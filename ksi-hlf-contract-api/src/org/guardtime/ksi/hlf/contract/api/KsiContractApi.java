@@ -21,15 +21,22 @@ package org.guardtime.ksi.hlf.contract.api;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import com.guardtime.ksi.hashing.HashAlgorithm;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.hyperledger.fabric.gateway.Contract;
 import org.hyperledger.fabric.gateway.Network;
 import org.hyperledger.fabric.sdk.exception.ProposalException;
 import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.wrapper.Version;
 
 /**
  * KsiContractApi is module between KSI+HLF contract and HLF application.
@@ -38,13 +45,26 @@ import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
  *   2) Pushing extended KsiWrapper objects to the ledger.
  *   3) Getting KsiWrapper objects from the ledger.
  *   4) Getting block from the ledger.
+ *   5) Pushing multiple KsiWrapper objects to the ledger with single transaction.
+ *   6) Getting KsiWrapper objects of a block range with few queries.
+ *   7) Getting the coverage of blocks with signatures (see {@link BlockCoverage}).
  */
 public class KsiContractApi {
-    private static final String chaincodeName = "ksi-hlf-contract";
-    private static final String className = "org.guardtime.ksi.hlf.contract";
+    static final String chaincodeName = "ksi-hlf-contract";
+    static final String className = "org.guardtime.ksi.hlf.contract";
     private static final String fGetKsi = "getKsi";
-    private static final String fSetKsi = "setKsi";
-    private static final String fSetExtKsi = "updateWithExtended";
+    private static final String fGetKsiRange = "getKsiRange";
+    private static final String fGetCoverage = "getCoverage";
+    static final String fSetKsi = "setKsi";
+    static final String fSetKsiAggr = "setKsiAggregated";
+    static final String fSetKsiBatch = "setKsiBatch";
+    static final String fSetExtKsi = "updateWithExtended";
+
+    /* Message of the contract error when the called function does not exist. */
+    private static final String UNDEFINED_METHOD = "Undefined contract method called";
+
+    /* Default count of signatures (or blocks with legacy keys) fetched with single getKsiRange query. */
+    public static final int DEFAULT_PAGE_SIZE = 500;
 
     private Network network;
 
@@ -56,6 +76,16 @@ public class KsiContractApi {
         this.network = network;
     }
 
+    /* True if the contract error tells that the called function does not exist. */
+    private static boolean isUndefinedMethod(Throwable t) {
+        for (int depth = 0; t != null && depth < 10; t = t.getCause(), depth++) {
+            if (t.getMessage() != null && t.getMessage().contains(UNDEFINED_METHOD)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static void validateKsiWrapper(String msg, KsiWrapper sig) {
         if (sig == null) throw new NullPointerException(msg + " as sig is null!");
         if (!sig.isInit()) throw new IllegalArgumentException(msg + "as sig is not initialized!");
@@ -66,13 +96,68 @@ public class KsiContractApi {
 
         try {
             Contract contract = this.network.getContract(chaincodeName, className);
-            contract.submitTransaction(fSetKsi, "" + sig.getBlockNumber(), sig.getOrg(), sig.getKsiBase64(),
-                    stringArrayToJsonArray(sig.getRecHash()));
+            if (sig.getVersion() == Version.VER_2) {
+                contract.submitTransaction(fSetKsiAggr, "" + sig.getBlockNumber(), sig.getOrg(), sig.getKsiBase64(),
+                        stringArrayToJsonArray(sig.getRecHash()), "" + sig.getAggregationLevel());
+            } else {
+                contract.submitTransaction(fSetKsi, "" + sig.getBlockNumber(), sig.getOrg(), sig.getKsiBase64(),
+                        stringArrayToJsonArray(sig.getRecHash()));
+            }
         } catch (Exception e) {
             throw new KsiContractException("Unable to push KSI signature: " + sig.getOrg() + "." + sig.getBlockNumber(), e);
         }
     }
 
+    /**
+     * Pushes multiple KSI signatures to the ledger with single transaction.
+     * Signatures are validated by the contract independently.
+     *
+     * @param sigs List of signatures to be pushed.
+     * @return List of the same size as input, containing null for every signature
+     *         that was pushed and error message for every signature that was rejected.
+     */
+    public List<String> pushSignatures(List<KsiWrapper> sigs) {
+        if (sigs == null) throw new NullPointerException("Unable to push KSI signatures to the ledger as list is null!");
+        if (sigs.isEmpty()) return new ArrayList<>();
+
+        JSONArray items = new JSONArray();
+        for (KsiWrapper sig : sigs) {
+            validateKsiWrapper("Unable to push KSI signatures to the ledger", sig);
+
+            JSONObject item = new JSONObject();
+            item.put("block", sig.getBlockNumber());
+            item.put("org", sig.getOrg());
+            item.put("ksig", sig.getKsiBase64());
+            item.put("rechash", new JSONArray(sig.getRecHash()));
+            if (sig.getVersion() == Version.VER_2) {
+                item.put("lvl", sig.getAggregationLevel());
+            }
+            items.put(item);
+        }
+
+        try {
+            Contract contract = this.network.getContract(chaincodeName, className);
+            byte[] response = contract.submitTransaction(fSetKsiBatch, items.toString());
+
+            JSONArray results = new JSONObject(new String(response, UTF_8)).getJSONArray("results");
+            if (results.length() != sigs.size()) {
+                throw new KsiContractException("Unexpected count of results. Expecting " + sigs.size() + " but got " + results.length());
+            }
+
+            List<String> errors = new ArrayList<>(sigs.size());
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject res = results.getJSONObject(i);
+                errors.add("ok".equals(res.optString("status")) ? null : res.optString("error", "Unknown error"));
+            }
+            return errors;
+        } catch (Exception e) {
+            if (isUndefinedMethod(e)) {
+                throw new KsiContractUnsupportedException("Contract does not support " + fSetKsiBatch + "!", e);
+            }
+            throw new KsiContractException("Unable to push batch of " + sigs.size() + " KSI signatures!", e);
+        }
+    }
+
     public void pushExtended(KsiWrapper sig) {
         validateKsiWrapper("Unable to push extended KSI signature to the ledger", sig);
 
@@ -113,12 +198,130 @@ public class KsiContractApi {
                         "Unexpected org name retrieved. Expecting '" + org + "' but got '" + sig.getOrg() + "'");
             }
 
-            return sig;
+            return sig.validate();
         } catch (Exception e) {
             throw new KsiContractException("Unable to get KSI signature: " + org + "." + block + "\n", e);
         }
     }
 
+    /**
+     * Returns the KSI signatures of the blocks in range [from, to] issued by org. Blocks
+     * without signature are skipped. The signatures are fetched lazily, one page
+     * (see {@link #DEFAULT_PAGE_SIZE}) per query. An invalid signature is returned as
+     * BlockSignature with error, the rest of the page is not affected. Iterator throws
+     * KsiContractUnsupportedException if the contract does not support range queries
+     * and KsiContractException if fetching of a page fails.
+     */
+    public Iterator<BlockSignature> getSignatures(long from, long to, String org) {
+        return getSignatures(from, to, org, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * See {@link #getSignatures(long, long, String)}.
+     * @param pageSize count of signatures (or blocks with legacy keys) fetched with single query (1 - 1000).
+     */
+    public Iterator<BlockSignature> getSignatures(long from, long to, String org, int pageSize) {
+        if (org == null) throw new NullPointerException("Unable to get KSI signatures as org is null!");
+        if (from < 0 || from > to) throw new IllegalArgumentException("Unable to get KSI signatures as range [" + from + ", " + to + "] is invalid!");
+        if (pageSize < 1) throw new IllegalArgumentException("Unable to get KSI signatures as page size " + pageSize + " < 1!");
+
+        return new Iterator<BlockSignature>() {
+            private final ArrayDeque<BlockSignature> page = new ArrayDeque<>();
+            private String bookmark = "";
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                while (page.isEmpty() && !done) {
+                    fetchPage();
+                }
+                return !page.isEmpty();
+            }
+
+            @Override
+            public BlockSignature next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.removeFirst();
+            }
+
+            private void fetchPage() {
+                try {
+                    Contract contract = network.getContract(chaincodeName, className);
+                    byte[] response = contract.evaluateTransaction(fGetKsiRange, org, "" + from, "" + to, "" + pageSize, bookmark);
+
+                    JSONObject json = new JSONObject(new String(response, UTF_8));
+                    JSONArray items = json.getJSONArray("ksi");
+                    for (int i = 0; i < items.length(); i++) {
+                        JSONObject item = items.getJSONObject(i);
+                        long block = item.getLong("block");
+                        if (block < from || block > to) {
+                            throw new KsiContractException("Unexpected block number retrieved. Expecting " + from + ".." + to + " but got " + block);
+                        }
+                        page.addLast(parseItem(block, item.getString("state")));
+                    }
+
+                    bookmark = json.getString("bookmark");
+                    done = bookmark.isEmpty();
+                } catch (Exception e) {
+                    done = true;
+                    if (isUndefinedMethod(e)) {
+                        throw new KsiContractUnsupportedException("Contract does not support " + fGetKsiRange + "!", e);
+                    }
+                    throw new KsiContractException("Unable to get KSI signatures: " + org + "." + from + ".." + to + "\n", e);
+                }
+            }
+
+            private BlockSignature parseItem(long block, String state) {
+                try {
+                    KsiWrapper sig = new KsiWrapper().parse(Base64.getDecoder().decode(state));
+                    if (sig.getBlockNumber() != block) {
+                        throw new KsiContractException("Unexpected block number retrieved. Expecting " + block + " but got " + sig.getBlockNumber());
+                    }
+                    if (!sig.getOrg().equals(org)) {
+                        throw new KsiContractException("Unexpected org name retrieved. Expecting '" + org + "' but got '" + sig.getOrg() + "'");
+                    }
+                    return new BlockSignature(block, sig.validate(), null);
+                } catch (Exception e) {
+                    return new BlockSignature(block, null, new KsiContractException("Unable to get KSI signature: " + org + "." + block + "\n", e));
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns which blocks in range [from, to] have a KSI signature issued by org and
+     * optionally which of them are extended. Large ranges take a few queries, every
+     * query covers up to 1000000 blocks (10000 if the contract uses legacy keys).
+     * @param extended true to get also the extended flags.
+     */
+    public BlockCoverage getCoverage(long from, long to, String org, boolean extended) {
+        if (org == null) throw new NullPointerException("Unable to get block coverage as org is null!");
+        BlockCoverage cov = new BlockCoverage(from, to, extended);
+
+        try {
+            Contract contract = this.network.getContract(chaincodeName, className);
+            long next = from;
+            while (next <= to) {
+                byte[] response = contract.evaluateTransaction(fGetCoverage, org, "" + next, "" + to, "" + extended);
+                JSONObject json = new JSONObject(new String(response, UTF_8));
+
+                long first = json.getLong("from");
+                long last = json.getLong("to");
+                if (first != next || last < first || last > to) {
+                    throw new KsiContractException("Unexpected coverage range retrieved. Expecting " + next + ".." + to + " but got " + first + ".." + last);
+                }
+
+                cov.add(first, json.getString("signed"), extended ? json.getString("extended") : null);
+                next = last + 1;
+            }
+        } catch (Exception e) {
+            throw new KsiContractException("Unable to get block coverage: " + org + "." + from + ".." + to + "\n", e);
+        }
+        return cov;
+    }
+
     public BlockHelper getBlock(long block) {
         try {
             return new BlockHelper(this.network.getChannel().queryBlockByNumber(block), HashAlgorithm.SHA2_256);
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.contract.api;
+package org.guardtime.ksi.hlf.contract.api;
+
+/**
+ * Thrown when the installed contract does not support the called function (e.g.
+ * older contract version without range queries). Caller may fall back to the
+ * functions supported by all the contract versions.
+ */
+public class KsiContractUnsupportedException extends KsiContractException {
+    public KsiContractUnsupportedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+
+package test.guardtime.ksi.hlf.contract.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.guardtime.ksi.hlf.contract.api.BlockCoverage;
+
+public class BlockCoverageTest {
+    /* Same encoding as in contract query getCoverage. */
+    private static String compress(BitSet bits) {
+        byte[] raw = bits.toByteArray();
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buf = new byte[raw.length + 64];
+        int len = deflater.deflate(buf);
+        deflater.end();
+        return Base64.getEncoder().encodeToString(Arrays.copyOf(buf, len));
+    }
+
+    @Test
+    void test_coverage() throws Exception {
+        BitSet signed = new BitSet();
+        signed.set(0, 10);
+        signed.set(15, 20);
+        BitSet extended = new BitSet();
+        extended.set(2);
+
+        BlockCoverage cov = new BlockCoverage(100, 124, true);
+        cov.add(100, compress(signed), compress(extended));
+
+        assertTrue(cov.isSigned(100), "Block 100 must be signed.");
+        assertFalse(cov.isSigned(110), "Block 110 must not be signed.");
+        assertTrue(cov.isExtended(102), "Block 102 must be extended.");
+        assertFalse(cov.isExtended(103), "Block 103 must not be extended.");
+        assertEquals(15, cov.getSignedCount(), "Invalid signed count.");
+
+        List<long[]> gaps = cov.getUnsignedRanges();
+        assertEquals(2, gaps.size(), "Invalid count of unsigned ranges.");
+        assertEquals(110, gaps.get(0)[0], "Invalid unsigned range.");
+        assertEquals(114, gaps.get(0)[1], "Invalid unsigned range.");
+        assertEquals(120, gaps.get(1)[0], "Invalid unsigned range.");
+        assertEquals(124, gaps.get(1)[1], "Invalid unsigned range.");
+
+        assertThrows(IllegalArgumentException.class, () -> cov.isSigned(125));
+    }
+
+    @Test
+    void test_coverageInParts() throws Exception {
+        BitSet part = new BitSet();
+        part.set(1);
+
+        BlockCoverage cov = new BlockCoverage(0, 7, false);
+        cov.add(0, compress(part), null);
+        cov.add(4, compress(part), null);
+
+        assertEquals(2, cov.getSignedCount(), "Invalid signed count.");
+        assertTrue(cov.isSigned(5), "Block 5 must be signed.");
+        assertThrows(IllegalStateException.class, () -> cov.isExtended(1));
+        assertThrows(IllegalArgumentException.class, () -> cov.add(7, compress(part), null));
+        assertThrows(DataFormatException.class, () -> cov.add(0, "AAAA", null));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package test.guardtime.ksi.hlf.contract.api;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import com.google.protobuf.ByteString;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequenceGenerator;
+import org.guardtime.ksi.hlf.contract.api.BlockHeaderEncoder;
+
+public class BlockHeaderEncoderTest {
+    private static final long[] edgeNumbers = {
+        0, 1, 127, 128, 255, 256, 32767, 32768, 65535, 65536,
+        0x7fffffffL, 0x80000000L, 0xffffffffL, 0x100000000L,
+        Long.MAX_VALUE, Long.MAX_VALUE - 1,
+        -1, -127, -128, -129, -255, -256, -32768, -32769, Long.MIN_VALUE, Long.MIN_VALUE + 1
+    };
+    private static final int[] edgeLengths = {0, 1, 32, 127, 128, 255, 256, 65535, 65536};
+
+    private static byte[] encodeBc(long number, byte[] prev, byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DERSequenceGenerator seq = new DERSequenceGenerator(out);
+        seq.addObject(new ASN1Integer(number));
+        seq.addObject(new DEROctetString(prev));
+        seq.addObject(new DEROctetString(data));
+        seq.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(Random rnd, int len) {
+        byte[] b = new byte[len];
+        rnd.nextBytes(b);
+        return b;
+    }
+
+    private static void assertSameEncoding(long number, byte[] prev, byte[] data) throws Exception {
+        byte[] expected = encodeBc(number, prev, data);
+        assertArrayEquals(expected, BlockHeaderEncoder.encode(number, prev, data), "Encoding of block " + number + " differs!");
+
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        BlockHeaderEncoder.digest(md, number, ByteString.copyFrom(prev), ByteString.copyFrom(data));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(expected), md.digest(), "Digest of block " + number + " differs!");
+    }
+
+    @Test
+    public void testEdgeNumbers() throws Exception {
+        Random rnd = new Random(1);
+        for (long n : edgeNumbers) {
+            assertSameEncoding(n, randomBytes(rnd, 32), randomBytes(rnd, 32));
+        }
+    }
+
+    @Test
+    public void testEdgeLengths() throws Exception {
+        Random rnd = new Random(2);
+        for (int prevLen : edgeLengths) {
+            for (int dataLen : edgeLengths) {
+                assertSameEncoding(rnd.nextLong(), randomBytes(rnd, prevLen), randomBytes(rnd, dataLen));
+            }
+        }
+    }
+
+    @Test
+    public void testRandom() throws Exception {
+        Random rnd = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            /* Spread the numbers over all the integer lengths. */
+            long n = rnd.nextLong() >> rnd.nextInt(64);
+            assertSameEncoding(n, randomBytes(rnd, rnd.nextInt(300)), randomBytes(rnd, rnd.nextInt(300)));
+        }
+    }
+}
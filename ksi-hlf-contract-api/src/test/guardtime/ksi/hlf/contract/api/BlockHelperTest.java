@@ -0,0 +1,148 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+
+
+package test.guardtime.ksi.hlf.contract.api;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import com.google.protobuf.ByteString;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.peer.Chaincode;
+import org.hyperledger.fabric.protos.peer.ProposalPackage;
+import org.hyperledger.fabric.protos.peer.TransactionPackage;
+import org.guardtime.ksi.hlf.contract.api.BlockHelper;
+
+public class BlockHelperTest {
+    private static final String KSI_CHAINCODE = "ksi-hlf-contract";
+    private static final String KSI_CONTRACT = "org.guardtime.ksi.hlf.contract:";
+
+    private static Chaincode.ChaincodeSpec invocation(String chaincode, String... args) {
+        Chaincode.ChaincodeInput.Builder input = Chaincode.ChaincodeInput.newBuilder();
+        for (String arg : args) {
+            input.addArgs(ByteString.copyFromUtf8(arg));
+        }
+
+        return Chaincode.ChaincodeSpec.newBuilder()
+            .setType(Chaincode.ChaincodeSpec.Type.JAVA)
+            .setChaincodeId(Chaincode.ChaincodeID.newBuilder().setName(chaincode))
+            .setInput(input)
+            .build();
+    }
+
+    /* Envelope -> Payload -> Transaction -> ChaincodeActionPayload -> ChaincodeProposalPayload -> ChaincodeInvocationSpec. */
+    private static ByteString envelope(int type, Chaincode.ChaincodeSpec... specs) {
+        TransactionPackage.Transaction.Builder tx = TransactionPackage.Transaction.newBuilder();
+        for (Chaincode.ChaincodeSpec spec : specs) {
+            Chaincode.ChaincodeInvocationSpec cis = Chaincode.ChaincodeInvocationSpec.newBuilder().setChaincodeSpec(spec).build();
+            ProposalPackage.ChaincodeProposalPayload cpp = ProposalPackage.ChaincodeProposalPayload.newBuilder().setInput(cis.toByteString()).build();
+            TransactionPackage.ChaincodeActionPayload cap = TransactionPackage.ChaincodeActionPayload.newBuilder().setChaincodeProposalPayload(cpp.toByteString()).build();
+            tx.addActions(TransactionPackage.TransactionAction.newBuilder().setPayload(cap.toByteString()));
+        }
+
+        Common.ChannelHeader ch = Common.ChannelHeader.newBuilder().setType(type).setChannelId("mychannel").setTxId("tx").build();
+        Common.Payload payload = Common.Payload.newBuilder()
+            .setHeader(Common.Header.newBuilder().setChannelHeader(ch.toByteString()))
+            .setData(tx.build().toByteString())
+            .build();
+        return Common.Envelope.newBuilder().setPayload(payload.toByteString()).build().toByteString();
+    }
+
+    private static ByteString transaction(Chaincode.ChaincodeSpec... specs) {
+        return envelope(Common.HeaderType.ENDORSER_TRANSACTION_VALUE, specs);
+    }
+
+    private static ByteString setKsi(long blockNr) {
+        return transaction(invocation(KSI_CHAINCODE, KSI_CONTRACT + "setKsi", "" + blockNr, "gt", "AAAA", "[]"));
+    }
+
+    private static ByteString setKsiBatch() {
+        return transaction(invocation(KSI_CHAINCODE, KSI_CONTRACT + "setKsiBatch", "[]"));
+    }
+
+    private static BlockHelper block(ByteString... envelopes) {
+        Common.BlockData.Builder data = Common.BlockData.newBuilder();
+        for (ByteString env : envelopes) {
+            data.addData(env);
+        }
+
+        Common.Block block = Common.Block.newBuilder()
+            .setHeader(Common.BlockHeader.newBuilder().setNumber(10))
+            .setData(data)
+            .build();
+        return new BlockHelper(block, HashAlgorithm.SHA2_256, false);
+    }
+
+    @Test
+    public void testKsiTransactions() {
+        assertTrue(block(setKsi(9)).isOnlyKsiTransaction());
+        assertTrue(block(setKsiBatch()).isOnlyKsiTransaction());
+        assertTrue(block(setKsi(8), setKsiBatch(), setKsi(9)).isOnlyKsiTransaction());
+        assertTrue(block(transaction(invocation(KSI_CHAINCODE, KSI_CONTRACT + "updateWithExtended", "9", "gt", "AAAA"))).isOnlyKsiTransaction());
+    }
+
+    @Test
+    public void testNonKsiTransactionMentioningSetKsi() {
+        /* Other chaincode with 'setKsi' in the payload. */
+        assertFalse(block(transaction(invocation("basic", "CreateAsset", "setKsi", KSI_CONTRACT + "setKsi"))).isOnlyKsiTransaction());
+
+        /* Other chaincode with function of the same name. */
+        assertFalse(block(transaction(invocation("basic", KSI_CONTRACT + "setKsi", "9", "gt", "AAAA", "[]"))).isOnlyKsiTransaction());
+
+        /* KSI chaincode, but function that does not write signatures. */
+        assertFalse(block(transaction(invocation(KSI_CHAINCODE, KSI_CONTRACT + "migrateKeys", "setKsi", "100"))).isOnlyKsiTransaction());
+        assertFalse(block(transaction(invocation(KSI_CHAINCODE, KSI_CONTRACT + "setKsiX", "9"))).isOnlyKsiTransaction());
+
+        /* Transaction without arguments. */
+        assertFalse(block(transaction(invocation(KSI_CHAINCODE))).isOnlyKsiTransaction());
+    }
+
+    @Test
+    public void testConfigBlock() {
+        assertFalse(block(envelope(Common.HeaderType.CONFIG_VALUE)).isOnlyKsiTransaction());
+
+        /* Config transaction carrying KSI-like invocation is still not KSI transaction. */
+        assertFalse(block(envelope(Common.HeaderType.CONFIG_VALUE, invocation(KSI_CHAINCODE, KSI_CONTRACT + "setKsi"))).isOnlyKsiTransaction());
+    }
+
+    @Test
+    public void testMixedBlock() {
+        ByteString other = transaction(invocation("basic", "CreateAsset", "asset1"));
+
+        assertFalse(block(setKsi(9), other).isOnlyKsiTransaction());
+        assertFalse(block(other, setKsi(9)).isOnlyKsiTransaction());
+        assertFalse(block(setKsiBatch(), envelope(Common.HeaderType.CONFIG_VALUE)).isOnlyKsiTransaction());
+
+        /* Single transaction with KSI and non-KSI actions. */
+        assertFalse(block(transaction(invocation(KSI_CHAINCODE, KSI_CONTRACT + "setKsi", "9", "gt", "AAAA", "[]"),
+                                      invocation("basic", "CreateAsset", "asset1"))).isOnlyKsiTransaction());
+    }
+
+    @Test
+    public void testInvalidEnvelope() {
+        BlockHelper bh = block(ByteString.copyFrom(new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff}));
+        assertFalse(bh.isOnlyKsiTransaction());
+        assertFalse(block(setKsi(9), ByteString.copyFromUtf8("setKsi")).isOnlyKsiTransaction());
+    }
+}
@@ -19,13 +19,20 @@
 
 package org.guardtime.ksi.hlf.contract;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 import com.google.common.util.concurrent.ExecutionError;
 import com.guardtime.ksi.exceptions.KSIException;
 import com.guardtime.ksi.hashing.DataHash;
-import com.guardtime.ksi.unisignature.KSISignature;
 
 import org.hyperledger.fabric.contract.Context;
 import org.hyperledger.fabric.contract.ContractInterface;
@@ -39,14 +46,18 @@ import org.hyperledger.fabric.shim.ChaincodeException;
 import org.hyperledger.fabric.shim.ChaincodeStub;
 import org.hyperledger.fabric.shim.ledger.CompositeKey;
 import org.hyperledger.fabric.shim.ledger.KeyModification;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
 import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
 import org.guardtime.ksi.hlf.wrapper.KsiWrapperException;
+import org.guardtime.ksi.hlf.wrapper.SignatureCache;
 import org.guardtime.ksi.hlf.ledgerapi.LedgerApiNoDataException;
 import org.guardtime.ksi.hlf.wrapper.ErrCodeEnum;
+import org.guardtime.ksi.hlf.wrapper.Version;
 /**
  * Define Guardtime KSI Signature smart contract.
  */
@@ -63,6 +74,22 @@ public class KsiHlfContract implements ContractInterface {
     // use the classname for the logger, this way you can refactor
     private final static Logger LOG = Logger.getLogger(KsiHlfContract.class.getName());
 
+    /* Max count of signatures pushed with single setKsiBatch transaction. */
+    private final static int MAX_BATCH_SIZE = 1000;
+
+    /* Max count of blocks returned with single getBlockSummaryPage query. */
+    private final static int MAX_PAGE_SIZE = 1000;
+
+    /* Max count of blocks covered by single getCoverage query (ordered keys / legacy keys). */
+    private final static int MAX_COVERAGE_RANGE = 1000000;
+    private final static int MAX_COVERAGE_RANGE_LEGACY = 10000;
+
+    /* Count of states read with single range query by getCoverage. */
+    private final static int COVERAGE_SCAN_PAGE = 10000;
+
+    /* Prefix of getBlockSummaryPage bookmark of the legacy keys while migrating. */
+    private final static String LEGACY_BOOKMARK = "legacy:";
+
     @Override
     public Context createContext(ChaincodeStub stub) {
         return new KSIContext(stub);
@@ -229,6 +256,123 @@ public class KsiHlfContract implements ContractInterface {
         }
     }
 
+    /**
+     * This function is used to push multiple KSI signatures to the ledger with
+     * single transaction. Every item is handled like in
+     * {@link #setKsi(KSIContext, int, String, String, String[]) setKsi} (or
+     * {@link #setKsiAggregated(KSIContext, int, String, String, String[], long) setKsiAggregated}
+     * if "lvl" is present) and is validated independently. Invalid items are not
+     * pushed, but do not prevent pushing of the valid items.
+     *
+     * Input is JSON array of objects:
+     * 
+     * [{"block": <int>, "org": <str>, "ksig": <base64 str>, "rechash": [<base64 str>], "lvl": <int>}, ...]
+     * 
+     * The result is returned in JSON with a field "results" that is array of
+     * objects in the same order as the input items:
+     * 
+     * index  - index of the item in input array.
+     * block  - block number (if available).
+     * org    - organization identifier (if available).
+     * status - "ok" if signature was pushed, "error" otherwise.
+     * error  - error message if status is "error".
+     * 
+     * @param {Context} ctx is the transaction context.
+     * @param {String}  items is JSON array of signatures to be pushed.
+     */
+    @Transaction
+    public String setKsiBatch(KSIContext ctx, String items) {
+        JSONArray input;
+        try {
+            input = new JSONArray(items);
+        } catch (Exception e) {
+            throw new ChaincodeException("Unable to parse batch of KSI signatures: " + e.getMessage());
+        }
+
+        if (input.length() == 0) {
+            throw new ChaincodeException("Batch of KSI signatures is empty!");
+        }
+
+        if (input.length() > MAX_BATCH_SIZE) {
+            throw new ChaincodeException("Batch of KSI signatures is too large (" + input.length() + " > " + MAX_BATCH_SIZE + ")!");
+        }
+
+        JSONObject json = new JSONObject();
+        JSONArray results = new JSONArray();
+
+        for (int i = 0; i < input.length(); i++) {
+            JSONObject res = new JSONObject();
+            res.put("index", i);
+
+            try {
+                JSONObject item = input.getJSONObject(i);
+                long blockNr = item.getLong("block");
+                String org = item.getString("org");
+                res.put("block", blockNr);
+                res.put("org", org);
+
+                String base64ksig = item.getString("ksig");
+                JSONArray jsonRecHash = item.getJSONArray("rechash");
+                String[] recHash = new String[jsonRecHash.length()];
+                for (int j = 0; j < recHash.length; j++) {
+                    recHash[j] = jsonRecHash.getString(j);
+                }
+
+                validateInput(blockNr, org, base64ksig, recHash);
+
+                KsiWrapper sig;
+                if (item.has("lvl")) {
+                    sig = KsiWrapper.newFromBase64(base64ksig, recHash, item.getLong("lvl"), blockNr, org);
+                } else {
+                    sig = KsiWrapper.newFromBase64(base64ksig, recHash, blockNr, org);
+                }
+
+                ctx.ksiList.addKsiSignature(sig);
+                res.put("status", "ok");
+            } catch (Exception e) {
+                res.put("status", "error");
+                res.put("error", "" + e.getMessage());
+            }
+
+            results.put(res);
+        }
+
+        json.put("results", results);
+        return json.toString();
+    }
+
+    /**
+     * This function is similar to {@link #setKsi(KSIContext, int, String, String, String[]) setKsi}
+     * but is used to push KSI signatures of blocks that were aggregated together with
+     * other blocks before signing (see KsiWrapper version 2). In addition to the
+     * input of setKsi it takes the level of the local aggregation tree root that was
+     * signed by KSI service.
+     *
+     * @param {Context} ctx is the transaction context.
+     * @param {Integer} blockNr is the block number.
+     * @param {String}  org is the organization identifier.
+     * @param {String}  base64ksig is KSI signature in base64 encoding.
+     * @param {String[]} recHash is the list of record hashes in base64 encoding.
+     * @param {Integer} lvl is the level of the local aggregation tree root.
+     */
+    @Transaction
+    public KsiWrapper setKsiAggregated(KSIContext ctx, int blockNr, String org, String base64ksig, String[] recHash, long lvl) {
+        validateInput(blockNr, org, base64ksig, recHash);
+        if (lvl < 0 || lvl > 0xff) {
+            throw new ChaincodeException("Aggregation level must be in range [0, 255], but is " + lvl + "!");
+        }
+
+        try {
+            KsiWrapper sig = KsiWrapper.newFromBase64(base64ksig, recHash, lvl, blockNr, org);
+            ctx.ksiList.addKsiSignature(sig);
+            return sig;
+        } catch (ChaincodeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ChaincodeException(e);
+        }
+    }
+
     /**
      * This function is similar to {@link #setKsi(KSIContext, int, String, String) setKsi}
      * but is used to push extended signatures to the ledger. It makes some extra checks:
@@ -258,6 +402,70 @@ public class KsiHlfContract implements ContractInterface {
         }
     }
 
+    /**
+     * This function sets the encoding of KSI signature states written to the ledger
+     * from now on. Existing states are not changed and states in both encodings are
+     * always readable. Note that the result of {@link #getKsi(KSIContext, int, String) getKsi}
+     * is always JSON.
+     *
+     * json   - KsiWrapper JSON with base64 signature and record hashes (default).
+     * binary - compact binary KsiWrapper encoding (version 3) with raw signature
+     *          and record hashes.
+     *
+     * @param {Context} ctx is the transaction context.
+     * @param {String}  encoding is "json" or "binary".
+     */
+    @Transaction
+    public String setStateEncoding(KSIContext ctx, String encoding) {
+        if ("json".equals(encoding)) {
+            ctx.ksiList.setStateEncoding(Version.VER_1);
+        } else if ("binary".equals(encoding)) {
+            ctx.ksiList.setStateEncoding(Version.VER_3);
+        } else {
+            throw new ChaincodeException("Unknown state encoding '" + encoding + "'! Use 'json' or 'binary'.");
+        }
+        return encoding;
+    }
+
+    /**
+     * This function is used to move the KSI signatures of the organization from the
+     * legacy ledger keys ('blocksig.ksi.<org>.<block>') to the ordered keys
+     * ('blocksig.ksio.<org>.<19 digit zero padded block>'), so that range queries
+     * return the blocks in numeric order. The key schema is kept per organization.
+     * The first call starts the migration: new signatures of the organization are
+     * written to the ordered keys and signatures are read from the ordered key first
+     * and from the legacy key if not migrated yet. When all the signatures are moved,
+     * the organization is switched to the ordered key schema and range queries scan
+     * the ordered keys.
+     *
+     * Call it repeatedly until 'more' is false. The result is returned in JSON:
+     *
+     * migrated - count of signatures moved by this call.
+     * more     - true if there may be more signatures to migrate.
+     *
+     * @param {Context} ctx is the transaction context.
+     * @param {String}  org is the organization identifier.
+     * @param {Integer} batchSize is the max count of signatures moved (1 - 1000).
+     */
+    @Transaction
+    public String migrateKeys(KSIContext ctx, String org, int batchSize) {
+        validateInput(0, org);
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new ChaincodeException("Batch size must be in range [1, " + MAX_BATCH_SIZE + "], but is " + batchSize + "!");
+        }
+
+        try {
+            long count = ctx.ksiList.migrateKeys(org, batchSize);
+
+            JSONObject json = new JSONObject();
+            json.put("migrated", count);
+            json.put("more", ctx.ksiList.getKeySchema(org) != KsiList.KEY_SCHEMA_ORDERED);
+            return json.toString();
+        } catch (Exception e) {
+            throw new ChaincodeException(e);
+        }
+    }
+
     /**
      * This function is used to get KSI signature related to the block and signature issuing
      * organization. It handles input parameters like {@link #setKsi(KSIContext, int, String, String) setKsi}
@@ -287,6 +495,215 @@ public class KsiHlfContract implements ContractInterface {
 
     }
 
+    /**
+     * This function is used to get the stored KSI signatures of the organization
+     * within the block range with a single query. The signatures are returned as they
+     * are stored and are not parsed by the contract.
+     *
+     * The result is returned in JSON:
+     *
+     * ksi      - array of objects with fields:
+     *            block - number of the block.
+     *            state - stored KsiWrapper (JSON or binary) in base64 encoding.
+     *            Blocks without signature are not present.
+     * bookmark - bookmark to get the next page or empty string if there are no
+     *            more blocks in the range.
+     *
+     * With ordered key schema of the organization (see {@link #migrateKeys(KSIContext,
+     * String, int) migrateKeys} is finished) the ordered keys are scanned and a page
+     * contains up to pageSize signatures. Otherwise the blocks are read one by one from
+     * both keys and a page covers pageSize blocks.
+     *
+     * @param {Context} ctx is the transaction context.
+     * @param {String}  org is the organization identifier.
+     * @param {Integer} blockMin is the first block (included).
+     * @param {Integer} blockMax is the last block (included).
+     * @param {Integer} pageSize is the max count of signatures or blocks per page (1 - 1000).
+     * @param {String}  bookmark is the bookmark returned by previous page or empty string for the first page.
+     */
+    @Transaction
+    public String getKsiRange(KSIContext ctx, String org, int blockMin, int blockMax, int pageSize, String bookmark) {
+        validateInput(blockMin, org);
+        validateInput(blockMax, org);
+        if (blockMin > blockMax) {
+            throw new ChaincodeException("First block " + blockMin + " must not be greater than last block " + blockMax + "!");
+        }
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ChaincodeException("Page size must be in range [1, " + MAX_PAGE_SIZE + "], but is " + pageSize + "!");
+        }
+        if (bookmark == null) {
+            bookmark = "";
+        }
+
+        JSONObject json = new JSONObject();
+        JSONArray array = new JSONArray();
+        Base64.Encoder enc = Base64.getEncoder();
+
+        if (ctx.ksiList.getKeySchema(org) == KsiList.KEY_SCHEMA_ORDERED) {
+            String prefix = ctx.ksiList.getKeyPrefix(org, true);
+            try (QueryResultsIteratorWithMetadata<KeyValue> itr = ctx.ksiList.getKsiSignatureRange(org, blockMin, blockMax, pageSize, bookmark)) {
+                for (KeyValue kv : itr) {
+                    JSONObject item = new JSONObject();
+                    item.put("block", Long.parseLong(kv.getKey().substring(prefix.length())));
+                    item.put("state", enc.encodeToString(kv.getValue()));
+                    array.put(item);
+                }
+
+                String next = itr.getMetadata().getBookmark();
+                int fetched = itr.getMetadata().getFetchedRecordsCount();
+                json.put("bookmark", fetched < pageSize || next == null ? "" : next);
+            } catch (Exception e) {
+                throw new ChaincodeException(e);
+            }
+        } else {
+            long first;
+            try {
+                first = bookmark.isEmpty() ? blockMin : Long.parseLong(bookmark);
+            } catch (NumberFormatException e) {
+                throw new ChaincodeException("Invalid bookmark '" + bookmark + "'!");
+            }
+            if (first < blockMin || first > blockMax) {
+                throw new ChaincodeException("Bookmark " + first + " is out of range [" + blockMin + ", " + blockMax + "]!");
+            }
+
+            long last = Math.min(blockMax, first + pageSize - 1);
+            for (long i = first; i <= last; i++) {
+                byte[] data = ctx.ksiList.getKsiSignatureState(i, org);
+                if (data.length != 0) {
+                    JSONObject item = new JSONObject();
+                    item.put("block", i);
+                    item.put("state", enc.encodeToString(data));
+                    array.put(item);
+                }
+            }
+            json.put("bookmark", last < blockMax ? "" + (last + 1) : "");
+        }
+
+        json.put("ksi", array);
+        return json.toString();
+    }
+
+    /**
+     * This function is used to find out which blocks of the range have a KSI signature
+     * of the organization and optionally which of the signatures are extended, without
+     * returning the signatures. The KSI signatures are not parsed.
+     *
+     * At most 1000000 blocks (10000 until the keys are migrated, see {@link #migrateKeys(KSIContext,
+     * String, int) migrateKeys}) are covered by single query, so the result may cover
+     * only the beginning of the range. While migrating, both the ordered keys and the
+     * legacy keys not migrated yet are checked, so that signed blocks are never
+     * reported as unsigned (and signed again). The result is returned in JSON:
+     *
+     * from     - first block covered (blockMin).
+     * to       - last block covered.
+     * count    - count of signed blocks.
+     * signed   - bitmap of signed blocks, bit i is set if block from + i is signed.
+     * extended - only if requested, bitmap of extended signatures.
+     *
+     * Bitmaps are little-endian bit arrays (bit i is (byte[i / 8] >> (i % 8)) & 1)
+     * compressed with zlib (deflate) and encoded in base64.
+     *
+     * @param {Context} ctx is the transaction context.
+     * @param {String}  org is the organization identifier.
+     * @param {Integer} blockMin is the first block (included).
+     * @param {Integer} blockMax is the last block (included).
+     * @param {Boolean} extended is true to return also the bitmap of extended signatures.
+     */
+    @Transaction
+    public String getCoverage(KSIContext ctx, String org, int blockMin, int blockMax, boolean extended) {
+        validateInput(blockMin, org);
+        validateInput(blockMax, org);
+        if (blockMin > blockMax) {
+            throw new ChaincodeException("First block " + blockMin + " must not be greater than last block " + blockMax + "!");
+        }
+
+        BitSet signed = new BitSet();
+        BitSet ext = new BitSet();
+        long schema = ctx.ksiList.getKeySchema(org);
+        long last = Math.min(blockMax, (long) blockMin + (schema == KsiList.KEY_SCHEMA_ORDERED ? MAX_COVERAGE_RANGE : MAX_COVERAGE_RANGE_LEGACY) - 1);
+
+        /* Migrated signatures are found by scanning the ordered keys. */
+        if (schema != KsiList.KEY_SCHEMA_LEGACY) {
+            String prefix = ctx.ksiList.getKeyPrefix(org, true);
+            String bookmark = "";
+            do {
+                try (QueryResultsIteratorWithMetadata<KeyValue> itr = ctx.ksiList.getKsiSignatureRange(org, blockMin, last, COVERAGE_SCAN_PAGE, bookmark)) {
+                    for (KeyValue kv : itr) {
+                        int i = (int) (Long.parseLong(kv.getKey().substring(prefix.length())) - blockMin);
+                        signed.set(i);
+                        if (extended && isExtendedState(kv.getValue())) {
+                            ext.set(i);
+                        }
+                    }
+
+                    String next = itr.getMetadata().getBookmark();
+                    bookmark = itr.getMetadata().getFetchedRecordsCount() < COVERAGE_SCAN_PAGE || next == null ? "" : next;
+                } catch (Exception e) {
+                    throw new ChaincodeException(e);
+                }
+            } while (!bookmark.isEmpty());
+        }
+
+        /* The rest of the blocks may be signed at the legacy keys not migrated yet. */
+        if (schema != KsiList.KEY_SCHEMA_ORDERED) {
+            for (long b = blockMin; b <= last; b++) {
+                int i = (int) (b - blockMin);
+                if (signed.get(i)) {
+                    continue;
+                }
+
+                byte[] data = ctx.ksiList.getKsiSignatureState(b, org, false);
+                if (data.length != 0) {
+                    signed.set(i);
+                    if (extended && isExtendedState(data)) {
+                        ext.set(i);
+                    }
+                }
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("from", blockMin);
+        json.put("to", last);
+        json.put("count", signed.cardinality());
+        json.put("signed", compressBitmap(signed));
+        if (extended) {
+            json.put("extended", compressBitmap(ext));
+        }
+        return json.toString();
+    }
+
+    /**
+     * Returns the extended flag of stored KsiWrapper. The signature is parsed only if
+     * the flag is not stored.
+     */
+    private static boolean isExtendedState(byte[] data) {
+        try {
+            return new KsiWrapper().parse(data).isExtended();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static String compressBitmap(BitSet bits) {
+        byte[] raw = bits.toByteArray();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 8 + 64);
+            byte[] buf = new byte[0x1000];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buf);
+                out.write(buf, 0, len);
+            }
+            return Base64.getEncoder().encodeToString(out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
     /**
      * This function is used to get brief history related to the block and signature
      * issuing organization. It handles input parameters like
@@ -315,58 +732,135 @@ public class KsiHlfContract implements ContractInterface {
      */
     @Transaction
     public String getHistoryOfBlock(KSIContext ctx, int blockNr, String org) {
+        return getBlockHistory(ctx, blockNr, org, 0, "newest", false);
+    }
+
+    /**
+     * This function is used to get the history related to the block and signature
+     * issuing organization like {@link #getHistoryOfBlock(KSIContext, int, String)
+     * getHistoryOfBlock}, but the count and the order of the returned values can be
+     * selected. The history is read in single pass and only the returned values are
+     * parsed. After {@link #migrateKeys(KSIContext, String, int) migrateKeys} the
+     * history of the legacy key and the ordered key are merged in time order.
+     *
+     * The result is returned in JSON object with fields:
+     *
+     * history - array of objects like returned by getHistoryOfBlock with additional
+     *           fields:
+     *           txid      - ID of the transaction that pushed the value.
+     *           timestamp - timestamp of the transaction.
+     *           deleted   - true if the transaction deleted the key.
+     *           In brief mode the KSI signature is not parsed and sigtime, pubtime
+     *           and inhash are not present.
+     * count   - total count of values in the history. Not present if the order is
+     *           'newest', limit is set and the history has more values than the
+     *           limit, as the scan is stopped after the returned values. In that
+     *           case the index is counted back from the recent value, where -1 is
+     *           the recent value, -2 the one before it and so on.
+     *
+     * @param {Context} ctx is the transaction context.
+     * @param {Integer} blockNr is the block number.
+     * @param {String}  org is the organization identifier.
+     * @param {Integer} limit is the max count of values returned (0 for all).
+     * @param {String}  order is 'newest' to start from the recent value or 'oldest' to
+     *                  start from the first value.
+     * @param {Boolean} brief is true to return only the transaction info.
+     */
+    @Transaction
+    public String getBlockHistory(KSIContext ctx, int blockNr, String org, int limit, String order, boolean brief) {
         System.out.println("Getting signature history...");
         validateInput(blockNr, org);
-        // String key = KsiWrapper.getKey(blockNr, org);
-        String key = ctx.ksiList.getFullKey(KsiWrapper.getKey(blockNr, org));
-        ChaincodeStub stub = ctx.getStub();
-        System.out.println(" key is: " + key);
+        if (limit < 0) {
+            throw new ChaincodeException("History limit must not be negative, but is " + limit + "!");
+        }
+
+        boolean oldestFirst;
+        if ("oldest".equalsIgnoreCase(order)) {
+            oldestFirst = true;
+        } else if ("newest".equalsIgnoreCase(order)) {
+            oldestFirst = false;
+        } else {
+            throw new ChaincodeException("Unknown history order '" + order + "'! Use 'newest' or 'oldest'.");
+        }
 
-        QueryResultsIterator<KeyModification> history = stub.getHistoryForKey(key);
-        Iterator<KeyModification> itr = history.iterator();
+        List<String> keys = ctx.ksiList.getLedgerKeys(blockNr, org);
+        ChaincodeStub stub = ctx.getStub();
 
+        /* History is returned from the recent value. Only the values to be returned are kept. */
+        ArrayDeque<KeyModification> values = new ArrayDeque<>();
         int count = 0;
-        for (Iterator<KeyModification> x = stub.getHistoryForKey(key).iterator(); x.hasNext(); count++) {x.next();}
+        boolean finished = true;
+        List<QueryResultsIterator<KeyModification>> histories = new ArrayList<>(keys.size());
+        try {
+            for (String key : keys) {
+                histories.add(stub.getHistoryForKey(key));
+            }
+
+            Iterator<KeyModification> history = newestFirst(histories);
+            while (history.hasNext()) {
+                KeyModification km = history.next();
+                count++;
+                if (oldestFirst) {
+                    values.addLast(km);
+                    if (limit > 0 && values.size() > limit) {
+                        values.removeFirst();
+                    }
+                } else {
+                    values.addLast(km);
+                    if (limit > 0 && values.size() == limit) {
+                        finished = !history.hasNext();
+                        break;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException(e);
+        } finally {
+            for (QueryResultsIterator<KeyModification> h : histories) {
+                try {
+                    h.close();
+                } catch (Exception e) {
+                    LOG.warning("Unable to close history iterator: " + e);
+                }
+            }
+        }
 
-        int i = 0;
         JSONObject json = new JSONObject();
         JSONArray array = new JSONArray();
 
-        while(itr.hasNext()) {
+        /*
+         * The index of the first value is 0 and of the recent value count - 1. If the
+         * scan was stopped early the count is unknown and the recent value is -1.
+         */
+        int index = oldestFirst ? 0 : (finished ? count - 1 : -1);
+        Iterator<KeyModification> itr = oldestFirst ? values.descendingIterator() : values.iterator();
+        while (itr.hasNext()) {
+            KeyModification km = itr.next();
             JSONObject item = new JSONObject();
-            item.put("index", "" + (count - i));
+            item.put("index", "" + index);
+            item.put("txid", km.getTxId());
+            item.put("timestamp", km.getTimestamp().toString());
+            item.put("deleted", km.isDeleted());
 
-            try {
-                KsiWrapper sigw = new KsiWrapper().parse(itr.next().getValue());
-                KSISignature ksig = sigw.getKsi();
-                
-                ksig.getAggregationTime();
-                ksig.getInputHash();
-    
-                
-                item.put("sigtime", ksig.getAggregationTime().toString());
-                
-                if (ksig.isExtended()) {
-                    item.put("pubtime", ksig.getPublicationTime());
-                } else {
-                    item.put("pubtime", "");
+            if (!brief && !km.isDeleted()) {
+                try {
+                    putSummary(item, new KsiWrapper().parse(km.getValue()));
+                } catch (Exception e) {
+                    item.put("error", "" + e.getMessage());
                 }
-                item.put("inhash", ksig.getInputHash().toString());
-            } catch (Exception e) {
-                item.put("error", "" + e.getMessage());
             }
-            
+
             array.put(item);
-            i++;
+            index += oldestFirst ? 1 : -1;
         }
 
-        
         json.put("history", array);
+        if (finished) {
+            json.put("count", count);
+        }
         return json.toString();
     }
 
-
-
     /**
      * This function is used to get brief summary of blocks within given rage.
      * It handles input parameters like 
@@ -407,16 +901,7 @@ public class KsiHlfContract implements ContractInterface {
             item.put("block", "" + i);
             try {
                 KsiWrapper ksiw = ctx.ksiList.getKsiSignature(i, org);
-                KSISignature ksig = ksiw.getKsi();
-                
-                item.put("inhash", ksig.getInputHash().toString());
-
-                if (ksig.isExtended()) {
-                    item.put("pubtime", ksig.getPublicationTime());
-                } else {
-                    item.put("pubtime", "");
-                }
-                item.put("sigtime", ksig.getAggregationTime().toString());
+                putSummary(item, ksiw);
             } catch (Exception e) {
                 item.put("error", e.toString());
             }
@@ -428,4 +913,139 @@ public class KsiHlfContract implements ContractInterface {
         json.put("summary", array);
         return json.toString();
     }
+
+    /**
+     * This function is used to page through the brief summary of all the blocks
+     * signed by the organization. Unlike {@link #getBlockSummary(KSIContext, int, int, String)
+     * getBlockSummary} it scans the ledger keys of the organization, so the blocks
+     * without signature are skipped and every query returns at most pageSize blocks.
+     * Blocks are returned in ledger key order, which is the order of block numbers
+     * only with ordered key schema (see {@link #migrateKeys(KSIContext, String, int) migrateKeys}).
+     * While the keys are being migrated, the ordered keys are returned first and then
+     * the legacy keys.
+     *
+     * The result is returned in JSON:
+     *
+     * summary  - array of objects like returned by getBlockSummary.
+     * count    - count of objects in summary.
+     * bookmark - bookmark to get the next page or empty string if there are no
+     *            more blocks.
+     *
+     * @param {Context} ctx the transaction context
+     * @param {String}  org is the organization identifier.
+     * @param {Integer} pageSize max count of blocks returned (1 - 1000).
+     * @param {String}  bookmark bookmark returned by previous page or empty string for first page.
+     */
+    @Transaction
+    public String getBlockSummaryPage(KSIContext ctx, String org, int pageSize, String bookmark) {
+        validateInput(0, org);
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ChaincodeException("Page size must be in range [1, " + MAX_PAGE_SIZE + "], but is " + pageSize + "!");
+        }
+
+        JSONObject json = new JSONObject();
+        JSONArray array = new JSONArray();
+
+        /* While migrating, the bookmark of the legacy keys is tagged. */
+        long schema = ctx.ksiList.getKeySchema(org);
+        if (bookmark == null) {
+            bookmark = "";
+        }
+        boolean ordered = schema != KsiList.KEY_SCHEMA_LEGACY && !bookmark.startsWith(LEGACY_BOOKMARK);
+        if (bookmark.startsWith(LEGACY_BOOKMARK)) {
+            bookmark = bookmark.substring(LEGACY_BOOKMARK.length());
+        }
+
+        String prefix = ctx.ksiList.getKeyPrefix(org, ordered);
+        try (QueryResultsIteratorWithMetadata<KeyValue> itr = ctx.ksiList.getKsiSignaturePage(org, ordered, pageSize, bookmark)) {
+            for (KeyValue kv : itr) {
+                JSONObject item = new JSONObject();
+                String block = kv.getKey().substring(prefix.length());
+
+                /* Skip the keys of organizations having this org as prefix (e.g. 'org.sub'). */
+                if (block.isEmpty() || !block.chars().allMatch(Character::isDigit)) {
+                    continue;
+                }
+
+                item.put("block", "" + Long.parseLong(block));
+                try {
+                    putSummary(item, new KsiWrapper().parse(kv.getValue()));
+                } catch (Exception e) {
+                    item.put("error", e.toString());
+                }
+
+                array.put(item);
+            }
+
+            String next = itr.getMetadata().getBookmark();
+            int fetched = itr.getMetadata().getFetchedRecordsCount();
+            next = fetched < pageSize || next == null ? "" : next;
+            if (schema == KsiList.KEY_SCHEMA_MIGRATING && (!ordered || next.isEmpty())) {
+                /* Continue with the legacy keys after the ordered keys. */
+                next = !ordered && next.isEmpty() ? "" : LEGACY_BOOKMARK + next;
+            }
+            json.put("bookmark", next);
+        } catch (ChaincodeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ChaincodeException(e);
+        }
+
+        json.put("summary", array);
+        json.put("count", array.length());
+        return json.toString();
+    }
+
+    /**
+     * Merges the histories (each from the recent value) into single history from the
+     * recent value. On equal timestamps the earlier history goes first.
+     */
+    private static Iterator<KeyModification> newestFirst(List<? extends Iterable<KeyModification>> histories) {
+        List<Iterator<KeyModification>> itrs = new ArrayList<>(histories.size());
+        KeyModification[] heads = new KeyModification[histories.size()];
+        for (int i = 0; i < heads.length; i++) {
+            itrs.add(histories.get(i).iterator());
+            heads[i] = itrs.get(i).hasNext() ? itrs.get(i).next() : null;
+        }
+
+        return new Iterator<KeyModification>() {
+            @Override
+            public boolean hasNext() {
+                for (KeyModification km : heads) {
+                    if (km != null) return true;
+                }
+                return false;
+            }
+
+            @Override
+            public KeyModification next() {
+                int n = -1;
+                for (int i = 0; i < heads.length; i++) {
+                    if (heads[i] != null && (n < 0 || heads[i].getTimestamp().isAfter(heads[n].getTimestamp()))) {
+                        n = i;
+                    }
+                }
+                if (n < 0) {
+                    throw new NoSuchElementException();
+                }
+
+                KeyModification km = heads[n];
+                heads[n] = itrs.get(n).hasNext() ? itrs.get(n).next() : null;
+                return km;
+            }
+        };
+    }
+
+    private static void putSummary(JSONObject item, KsiWrapper ksiw) {
+        SignatureCache.Entry ksig = ksiw.validate().getKsiInfo();
+
+        item.put("inhash", ksig.getInputHash().toString());
+
+        if (ksig.getPublicationTime() != null) {
+            item.put("pubtime", ksig.getPublicationTime());
+        } else {
+            item.put("pubtime", "");
+        }
+        item.put("sigtime", ksig.getAggregationTime().toString());
+    }
 }
@@ -25,32 +25,266 @@ import org.guardtime.ksi.hlf.ledgerapi.LedgerApiException;
 import org.guardtime.ksi.hlf.ledgerapi.LedgerApiNoDataException;
 import org.hyperledger.fabric.contract.Context;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.guardtime.ksi.exceptions.KSIException;
 import com.guardtime.ksi.unisignature.KSISignature;
 import org.hyperledger.fabric.shim.ChaincodeException;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
 import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.wrapper.Version;
 
 public class KsiList {
+    /* Ledger key of the encoding of KSI signature states (see KsiWrapper state encoding). */
+    static final String STATE_ENCODING_KEY = "config.stateEncoding";
+
+    /* Ledger key prefix of the key schema of KSI signature states of an organization. */
+    static final String KEY_SCHEMA_KEY = "config.keySchema.";
+
+    /* Keys 'blocksig.ksi.<org>.<block>' (see KsiWrapper.getKey). */
+    public static final long KEY_SCHEMA_LEGACY = 1;
+
+    /* Keys 'blocksig.ksio.<org>.<zero padded block>' (see KsiWrapper.getOrderedKey). */
+    public static final long KEY_SCHEMA_ORDERED = 2;
+
+    /* Legacy keys are being moved to the ordered keys (see migrateKeys). */
+    public static final long KEY_SCHEMA_MIGRATING = 3;
+
     private StateList stateList;
+    private StateList orderedList;
+    private Context ctx;
+    private Long stateEncoding;
+    private Map<String, Long> keySchema = new HashMap<>();
 
     public KsiList (Context ctx) {
+        this.ctx = ctx;
         this.stateList = new StateList(ctx, "blocksig.ksi", KsiWrapper::new);
+        this.orderedList = new StateList(ctx, "blocksig.ksio", KsiWrapper::new);
+    }
+
+    /**
+     * Returns the encoding of KSI signature states written to the ledger:
+     * Version.VER_1 (JSON, default) or Version.VER_3 (binary).
+     */
+    public long getStateEncoding() {
+        if (this.stateEncoding == null) {
+            byte[] data = this.ctx.getStub().getState(STATE_ENCODING_KEY);
+            this.stateEncoding = (data == null || data.length == 0) ? Version.VER_1 : Long.parseLong(new String(data, UTF_8));
+        }
+        return this.stateEncoding;
+    }
+
+    public KsiList setStateEncoding(long encoding) {
+        if (encoding != Version.VER_1 && encoding != Version.VER_3) {
+            throw new ChaincodeException("State encoding must be " + Version.VER_1 + " (JSON) or " + Version.VER_3 + " (binary)!");
+        }
+
+        this.ctx.getStub().putState(STATE_ENCODING_KEY, ("" + encoding).getBytes(UTF_8));
+        this.stateEncoding = encoding;
+        return this;
+    }
+
+    /**
+     * Returns the key schema of KSI signature states of the organization:
+     * KEY_SCHEMA_LEGACY (default), KEY_SCHEMA_MIGRATING or KEY_SCHEMA_ORDERED.
+     * While migrating, the states are written to the ordered keys and read from the
+     * ordered keys first and then from the legacy keys that are not migrated yet.
+     * Only with ordered schema all the states are at the ordered keys.
+     */
+    public long getKeySchema(String org) {
+        Long schema = this.keySchema.get(org);
+        if (schema == null) {
+            byte[] data = this.ctx.getStub().getState(KEY_SCHEMA_KEY + org);
+            schema = (data == null || data.length == 0) ? KEY_SCHEMA_LEGACY : Long.parseLong(new String(data, UTF_8));
+            this.keySchema.put(org, schema);
+        }
+        return schema;
+    }
+
+    public KsiList setKeySchema(String org, long schema) {
+        if (schema != KEY_SCHEMA_LEGACY && schema != KEY_SCHEMA_ORDERED && schema != KEY_SCHEMA_MIGRATING) {
+            throw new ChaincodeException("Key schema must be " + KEY_SCHEMA_LEGACY + " (legacy), " + KEY_SCHEMA_ORDERED + " (ordered) or " +
+                                         KEY_SCHEMA_MIGRATING + " (migrating)!");
+        }
+
+        this.ctx.getStub().putState(KEY_SCHEMA_KEY + org, ("" + schema).getBytes(UTF_8));
+        this.keySchema.put(org, schema);
+        return this;
+    }
+
+    /* True if the states of the organization may be at the ordered keys. */
+    private boolean hasOrderedKeys(String org) {
+        return getKeySchema(org) != KEY_SCHEMA_LEGACY;
+    }
+
+    /* True if the states of the organization may be at the legacy keys. */
+    private boolean hasLegacyKeys(String org) {
+        return getKeySchema(org) != KEY_SCHEMA_ORDERED;
     }
 
     public KsiList addKsiSignature(KsiWrapper ksi) throws LedgerApiException {
         System.out.println("adding KSI signature:");
-        stateList.setState(ksi);
+        ksi.setStateEncoding(getStateEncoding());
+        if (hasOrderedKeys(ksi.getOrg())) {
+            orderedList.setState(KsiWrapper.getOrderedKey(ksi.getBlockNumber(), ksi.getOrg()), ksi);
+        } else {
+            stateList.setState(ksi);
+        }
         return this;
     }
 
 
     public KsiWrapper getKsiSignature(long blockNr, String org) throws LedgerApiException, LedgerApiNoDataException {
+        if (hasOrderedKeys(org)) {
+            try {
+                return (KsiWrapper) this.orderedList.getState(KsiWrapper.getOrderedKey(blockNr, org));
+            } catch (LedgerApiNoDataException e) {
+                if (!hasLegacyKeys(org)) {
+                    throw e;
+                }
+                /* Not migrated yet, try the legacy key. */
+            }
+        }
         String key = KsiWrapper.getKey(blockNr, org);
         return (KsiWrapper) this.stateList.getState(key);
     }
 
+    /**
+     * Returns the stored KSI signature state of the block as it is (empty array if
+     * the block is not signed). Reads the keys like {@link #getKsiSignature(long, String)}.
+     */
+    public byte[] getKsiSignatureState(long blockNr, String org) {
+        if (hasOrderedKeys(org)) {
+            byte[] data = getKsiSignatureState(blockNr, org, true);
+            if (data.length != 0 || !hasLegacyKeys(org)) {
+                return data;
+            }
+        }
+        return getKsiSignatureState(blockNr, org, false);
+    }
+
+    /**
+     * Returns the stored KSI signature state of the block at the ordered or legacy key
+     * (empty array if there is none).
+     */
+    public byte[] getKsiSignatureState(long blockNr, String org, boolean ordered) {
+        String key = ordered ? orderedList.getFullKey(KsiWrapper.getOrderedKey(blockNr, org)) : stateList.getFullKey(KsiWrapper.getKey(blockNr, org));
+        byte[] data = this.ctx.getStub().getState(key);
+        return data == null ? new byte[0] : data;
+    }
+
+    /**
+     * Returns a page of the KSI signature states of the organization within the block
+     * range (both included) in block order. Only ordered keys are scanned, so all the
+     * states are returned only with ordered key schema of the organization. The
+     * returned iterator must be closed.
+     */
+    public QueryResultsIteratorWithMetadata<KeyValue> getKsiSignatureRange(String org, long blockMin, long blockMax, int pageSize, String bookmark) {
+        String start = orderedList.getFullKey(KsiWrapper.getOrderedKey(blockMin, org));
+        String end = orderedList.getFullKey(KsiWrapper.getOrderedKey(blockMax + 1, org));
+        return this.ctx.getStub().getStateByRangeWithPagination(start, end, pageSize, bookmark);
+    }
+
+    /**
+     * Returns the full ledger keys that may have held the KSI signature state of the
+     * block: the ordered key (if the organization is migrated or migrating) and the
+     * legacy key, whose history is kept after the migration.
+     */
+    public List<String> getLedgerKeys(long blockNr, String org) {
+        List<String> keys = new ArrayList<>(2);
+        if (hasOrderedKeys(org)) {
+            keys.add(orderedList.getFullKey(KsiWrapper.getOrderedKey(blockNr, org)));
+        }
+        keys.add(stateList.getFullKey(KsiWrapper.getKey(blockNr, org)));
+        return keys;
+    }
+
+    /**
+     * Returns the full ledger key prefix of the KSI signature states of the organization
+     * at the ordered or legacy keys. The rest of the key is the block number (zero
+     * padded for ordered keys).
+     */
+    public String getKeyPrefix(String org, boolean ordered) {
+        if (ordered) {
+            return orderedList.getFullKey(org + ".");
+        }
+        return stateList.getFullKey(org + ".");
+    }
+
+    /**
+     * Returns a page of the KSI signature states of the organization at the ordered
+     * or legacy keys in ledger key order (see {@link #getKeyPrefix(String, boolean)}).
+     * While migrating, both need to be scanned. The returned iterator must be closed.
+     */
+    public QueryResultsIteratorWithMetadata<KeyValue> getKsiSignaturePage(String org, boolean ordered, int pageSize, String bookmark) {
+        String start = getKeyPrefix(org, ordered);
+        String end = start.substring(0, start.length() - 1) + "/";
+        return this.ctx.getStub().getStateByRangeWithPagination(start, end, pageSize, bookmark);
+    }
+
+    /**
+     * Moves up to batchSize KSI signature states of the organization from the legacy
+     * keys to the ordered keys. The states are copied as they are and the legacy keys
+     * are deleted. The first call switches the organization to migrating key schema,
+     * so new states are written to the ordered keys. When there are no legacy keys
+     * left, the organization is switched to the ordered key schema.
+     *
+     * @return count of states moved.
+     */
+    public long migrateKeys(String org, int batchSize) throws LedgerApiException {
+        long schema = getKeySchema(org);
+        if (schema == KEY_SCHEMA_ORDERED) {
+            return 0;
+        } else if (schema == KEY_SCHEMA_LEGACY) {
+            setKeySchema(org, KEY_SCHEMA_MIGRATING);
+        }
+
+        String start = stateList.getFullKey(org + ".");
+        String end = start.substring(0, start.length() - 1) + "/";
+        long count = 0;
+        boolean more = false;
+
+        try (QueryResultsIterator<KeyValue> itr = this.ctx.getStub().getStateByRange(start, end)) {
+            for (KeyValue kv : itr) {
+                String block = kv.getKey().substring(start.length());
+
+                /* Skip the keys of organizations having this org as prefix (e.g. 'org.sub'). */
+                if (block.isEmpty() || !block.chars().allMatch(Character::isDigit)) {
+                    continue;
+                }
+
+                if (count == batchSize) {
+                    more = true;
+                    break;
+                }
+
+                String key = orderedList.getFullKey(KsiWrapper.getOrderedKey(Long.parseLong(block), org));
+                byte[] data = this.ctx.getStub().getState(key);
+
+                /* Ordered key written after the schema change is the recent one. */
+                if (data == null || data.length == 0) {
+                    this.ctx.getStub().putState(key, kv.getValue());
+                }
+                this.ctx.getStub().delState(kv.getKey());
+                count++;
+            }
+        } catch (Exception e) {
+            throw new LedgerApiException("Unable to migrate keys of org " + org + "!", e);
+        }
+
+        if (!more) {
+            setKeySchema(org, KEY_SCHEMA_ORDERED);
+        }
+        return count;
+    }
+
     public KsiList updateExtended(long blockNr, String org, KsiWrapper extended)  throws LedgerApiException, LedgerApiNoDataException {
         KsiWrapper prevSigwrap = getKsiSignature(blockNr, org);
         KSISignature prev = prevSigwrap.getKsi();
@@ -78,10 +312,23 @@ public class KsiList {
         }
 
         if (tmp.getRecHash() == null || tmp.getRecHash().length == 0) {
-            tmp = KsiWrapper.newFromBase64(tmp.getKsiBase64(), prevSigwrap.getRecHash(), blockNr, org);
+            if (prevSigwrap.getVersion() == Version.VER_2) {
+                tmp = KsiWrapper.newFromBase64(tmp.getKsiBase64(), prevSigwrap.getRecHash(), prevSigwrap.getAggregationLevel(), blockNr, org);
+            } else {
+                tmp = KsiWrapper.newFromBase64(tmp.getKsiBase64(), prevSigwrap.getRecHash(), blockNr, org);
+            }
         }
 
-        this.stateList.setState(tmp);
+        tmp.setStateEncoding(getStateEncoding());
+        if (hasOrderedKeys(org)) {
+            this.orderedList.setState(KsiWrapper.getOrderedKey(blockNr, org), tmp);
+            /* The previous value may still be at legacy key. */
+            if (hasLegacyKeys(org)) {
+                this.stateList.deleteState(KsiWrapper.getKey(blockNr, org));
+            }
+        } else {
+            this.stateList.setState(tmp);
+        }
         return this;
     }
 
@@ -51,14 +51,22 @@ public class StateList {
 
     public void setState(State s) throws LedgerApiException {
         if (s == null) throw new NullPointerException("Unable to set null State!");
-        String ledgerKey = getFullKey(s.getKey());
+        setState(s.getKey(), s);
+    }
+
+    /**
+     * Sets the State at given key instead of the key of the State.
+     */
+    public void setState(String key, State s) throws LedgerApiException {
+        if (s == null) throw new NullPointerException("Unable to set null State!");
+        String ledgerKey = getFullKey(key);
         
         System.out.println("Getting state: " + this.nameSpace);
         System.out.println("Ledger Key is: " + ledgerKey);
         
         try {
             byte[] data = s.serialize();
-            System.out.println(new String(data, UTF_8));
+            System.out.println(dump(data));
     
             this.ctx.getStub().putState(ledgerKey, data);
             return;
@@ -67,6 +75,19 @@ public class StateList {
         }
     }
 
+    public void deleteState(String key) throws LedgerApiException {
+        String ledgerKey = getFullKey(key);
+
+        System.out.println("Deleting state: " + this.nameSpace);
+        System.out.println("Ledger Key is: " + ledgerKey);
+
+        try {
+            this.ctx.getStub().delState(ledgerKey);
+        } catch (Exception e) {
+            throw new LedgerApiException("Unable to delete data at key: " + ledgerKey + "!", e);
+        }
+    }
+
     public State getState(String key) throws LedgerApiException, LedgerApiNoDataException {
         String ledgerKey = getFullKey(key);
         
@@ -77,7 +98,7 @@ public class StateList {
             State tmp = construct.make();
             byte[] data = this.ctx.getStub().getState(ledgerKey);
             System.out.println("get state dump::");
-            System.out.println(new String(data, UTF_8));
+            System.out.println(dump(data));
      
             if (data == null || data.length == 0) {
                  throw new LedgerApiNoDataException("Key: " + ledgerKey + " does not contain any data!");
@@ -90,4 +111,18 @@ public class StateList {
             throw new LedgerApiException("Unable to get data from key: " + ledgerKey + "!", e);
         }
     }
+
+    /**
+     * Returns the state data for logging. Binary states (starting with 0x00, which
+     * never starts JSON) are not dumped.
+     */
+    private static String dump(byte[] data) {
+        if (data == null || data.length == 0) {
+            return "<empty>";
+        }
+        if (data[0] == 0) {
+            return "<binary state of " + data.length + " bytes>";
+        }
+        return new String(data, UTF_8);
+    }
 }
\ No newline at end of file
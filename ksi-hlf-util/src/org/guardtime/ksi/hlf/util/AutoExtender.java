@@ -0,0 +1,248 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.guardtime.ksi.Extender;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+
+/**
+ * AutoExtender tracks the KSI signatures committed by the signing daemon that
+ * are not yet extended. The publications file is checked periodically and when
+ * a new publication appears, all the tracked signatures created before the
+ * publication are extended with the shared extender (with bounded concurrency)
+ * and pushed to the ledger with {@link KsiContractApi#pushExtended(KsiWrapper)}.
+ * Signatures that fail to be extended are retried with the next check.
+ *
+ * When a state file is given, the tracked signatures are persisted, so they are
+ * extended also after the restart of the daemon.
+ */
+class AutoExtender implements AutoCloseable {
+    private final Conf c;
+    private final KsiContractApi ksicontract;
+    private final Path stateFile;
+    private final Logger log;
+
+    private final ScheduledExecutorService checker;
+    private final ExecutorService workers;
+
+    /* Block number -> aggregation time in milliseconds of the unextended signatures. */
+    private final Map<Long, Long> unextended = new TreeMap<>();
+    private boolean changed;
+    private Date lastPublication;
+
+    /**
+     * @param c           Configuration (extender, publications handler and intervals).
+     * @param ksicontract Contract api used to read and push the signatures.
+     * @param stateFile   File for persisting the tracked signatures. May be null.
+     * @param log         Logger.
+     */
+    public AutoExtender(Conf c, KsiContractApi ksicontract, Path stateFile, Logger log) {
+        if (c.getExtendInterval() <= 0) throw new IllegalArgumentException("Extend interval must be positive!");
+
+        this.c = c;
+        this.ksicontract = ksicontract;
+        this.stateFile = stateFile;
+        this.log = log;
+
+        String name = "ksihlf-" + c.getCommitOrg() + "-extend";
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, name + "-check"));
+        this.workers = Executors.newFixedThreadPool(c.getExtendThreads(), r -> daemon(r, name));
+    }
+
+    /**
+     * Loads the tracked signatures and starts periodic checking of the publications file.
+     */
+    public AutoExtender start() {
+        load();
+        checker.scheduleWithFixedDelay(this::check, 0, c.getExtendInterval(), TimeUnit.SECONDS);
+        log.log(Level.INFO, "Auto-extending signatures, checking publications every " + c.getExtendInterval() + "s (" + getPendingCount() + " signature(s) pending).");
+        return this;
+    }
+
+    /**
+     * Starts tracking the signature committed to the ledger.
+     */
+    public void track(KsiWrapper sig) {
+        if (sig.isExtended()) {
+            return;
+        }
+
+        synchronized (unextended) {
+            unextended.put(sig.getBlockNumber(), sig.getKsi().getAggregationTime().getTime());
+            changed = true;
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (unextended) {
+            return unextended.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        checker.shutdownNow();
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store();
+    }
+
+    private void check() {
+        try {
+            Date pubTime = c.getPubHandler().getPublicationsFile().getLatestPublication().getPublicationTime();
+            if (lastPublication == null || pubTime.after(lastPublication)) {
+                log.log(Level.INFO, "Latest publication: " + pubTime);
+                lastPublication = pubTime;
+            }
+
+            List<Long> blocks = new ArrayList<>();
+            synchronized (unextended) {
+                unextended.forEach((blockNr, aggrTime) -> {
+                    if (aggrTime < pubTime.getTime()) blocks.add(blockNr);
+                });
+            }
+
+            if (!blocks.isEmpty()) {
+                extend(blocks);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Auto-extending failed!", e);
+        } finally {
+            store();
+        }
+    }
+
+    private void extend(List<Long> blocks) throws Exception {
+        log.log(Level.INFO, "Extending " + blocks.size() + " signature(s).");
+        Extender extender = c.getExtender();
+
+        List<Future<Boolean>> results = new ArrayList<>(blocks.size());
+        for (Long blockNr : blocks) {
+            results.add(workers.submit(() -> extend(extender, blockNr)));
+        }
+
+        int ok = 0;
+        for (Future<Boolean> f : results) {
+            try {
+                if (f.get()) ok++;
+            } catch (Exception e) {
+                /* Logged by the worker. */
+            }
+        }
+        log.log(Level.INFO, "Extended " + ok + " of " + blocks.size() + " signature(s).");
+    }
+
+    private boolean extend(Extender extender, long blockNr) {
+        try {
+            KsiWrapper sig = ksicontract.getSignature(blockNr, c.getCommitOrg());
+
+            if (sig != null && !sig.isExtended()) {
+                KSISignature extksig = extender.extend(sig.getKsi());
+                ksicontract.pushExtended(KsiWrapper.newFromKSI(extksig, blockNr, c.getCommitOrg()));
+                log.log(Level.FINE, "  Extended block " + blockNr + " signature to " + extksig.getPublicationTime());
+            }
+
+            synchronized (unextended) {
+                unextended.remove(blockNr);
+                changed = true;
+            }
+            return true;
+        } catch (Exception e) {
+            log.log(Level.WARNING, "  Extending of block " + blockNr + " signature failed!", e);
+            return false;
+        }
+    }
+
+    private void load() {
+        if (stateFile == null || !Files.exists(stateFile)) {
+            return;
+        }
+
+        try {
+            for (String line : Files.readAllLines(stateFile, UTF_8)) {
+                String[] v = line.trim().split("\\s+");
+                if (v.length == 2) {
+                    synchronized (unextended) {
+                        unextended.put(Long.parseLong(v[0]), Long.parseLong(v[1]));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Unable to load unextended signatures from " + stateFile + "!", e);
+        }
+    }
+
+    private void store() {
+        if (stateFile == null) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        synchronized (unextended) {
+            if (!changed) {
+                return;
+            }
+            unextended.forEach((blockNr, aggrTime) -> sb.append(blockNr).append(' ').append(aggrTime).append('\n'));
+            changed = false;
+        }
+
+        try {
+            Checkpoint.writeAtomically(stateFile, sb.toString().getBytes(UTF_8));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to store unextended signatures to " + stateFile + "!", e);
+            synchronized (unextended) {
+                changed = true;
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Batcher collects items (e.g. block hashes to be signed or KSI signatures to be
+ * pushed to the ledger) and hands them over in batches. A batch is flushed when it
+ * reaches max batch size or when its first item has waited for the latency budget,
+ * so a single item is never delayed for more than the latency budget.
+ *
+ * Batches are collected by a single worker thread that passes them to the flush
+ * consumer.
+ */
+class Batcher<T> implements AutoCloseable {
+    private final int maxBatchSize;
+    private final long latency;
+    private final Consumer<List<T>> flush;
+    private final Logger log;
+
+    private final BlockingQueue<T> queue;
+    private final Thread worker;
+    /* Adders hold the read lock, close takes the write lock, so no item is added after closing. */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    /**
+     * @param maxBatchSize Max count of items in a batch.
+     * @param latency      Max time in milliseconds the first item in the batch waits for others.
+     * @param queueSize    Max count of items waiting to be batched.
+     * @param flush        Consumer of the batches.
+     * @param name         Name of the worker thread.
+     * @param log          Logger.
+     */
+    public Batcher(int maxBatchSize, long latency, int queueSize, Consumer<List<T>> flush, String name, Logger log) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("Max batch size must be at least 1!");
+        if (latency < 0) throw new IllegalArgumentException("Batch latency must not be negative!");
+        if (queueSize < 1) throw new IllegalArgumentException("Queue size must be at least 1!");
+        if (flush == null) throw new NullPointerException("Flush consumer must not be null!");
+
+        this.maxBatchSize = maxBatchSize;
+        this.latency = latency;
+        this.flush = flush;
+        this.log = log;
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+
+        this.worker = new Thread(this::work, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Adds the item to the next batch.
+     *
+     * @param item  Item to be batched.
+     * @param block If true, waits for free space in the queue, otherwise fails immediately when the queue is full.
+     * @return true if the item was added.
+     */
+    public boolean add(T item, boolean block) throws InterruptedException {
+        if (item == null) throw new NullPointerException("Item to be batched must not be null!");
+
+        closeLock.readLock().lockInterruptibly();
+        try {
+            if (closed) throw new IllegalStateException("Batcher is closed!");
+
+            if (block) {
+                queue.put(item);
+                return true;
+            }
+            return queue.offer(item);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting new items and waits until already added items are flushed.
+     */
+    @Override
+    public void close() {
+        /* The worker keeps draining the queue, so adders blocked on a full queue get through. */
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        List<T> batch = new ArrayList<>(maxBatchSize);
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                T first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latency);
+
+                while (batch.size() < maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+
+                    /* When closing, do not wait for the latency budget, just drain the queue. */
+                    T next = (closed || wait <= 0) ? queue.poll() : queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                log.log(Level.WARNING, Thread.currentThread().getName() + " interrupted!");
+            }
+
+            if (!batch.isEmpty()) {
+                try {
+                    flush.accept(new ArrayList<>(batch));
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "Unable to flush batch of " + batch.size() + " item(s)!", e);
+                }
+                batch.clear();
+            }
+        }
+    }
+}
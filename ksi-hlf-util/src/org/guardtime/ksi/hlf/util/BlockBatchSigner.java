@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.blocksigner.KsiBlockSignerBuilder;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.KSISigningService;
+import com.guardtime.ksi.tree.HashTreeBuilder;
+import com.guardtime.ksi.tree.ImprintNode;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+/**
+ * BlockBatchSigner collects block root hashes within a time/size window and signs
+ * them with a single KSI request. KSI blocksigner is used to build local aggregation
+ * tree over the root hashes, so every block gets its own KSI signature that contains
+ * the aggregation chain from the block root hash to the root of the local tree.
+ *
+ * The batches are collected by {@link Batcher} and signed by its worker thread.
+ * The result is returned as CompletableFuture that is completed by the worker
+ * thread.
+ */
+class BlockBatchSigner implements AutoCloseable {
+    private final KSISigningService service;
+    private final HashAlgorithm aggrHashAlgo;
+    private final SignLimiter limiter;
+    private final Logger log;
+
+    private final Batcher<Request> batcher;
+
+    /**
+     * The result of batch signing.
+     */
+    static class Result {
+        private final KSISignature sig;
+        private final long lvl;
+
+        Result(KSISignature sig, long lvl) {
+            this.sig = sig;
+            this.lvl = lvl;
+        }
+
+        /** KSI signature of the block root hash. */
+        public KSISignature getSignature() {
+            return this.sig;
+        }
+
+        /** The level of the local aggregation tree root that was signed by KSI service. */
+        public long getLevel() {
+            return this.lvl;
+        }
+    }
+
+    private static class Request {
+        private final DataHash hash;
+        private final long level;
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        Request(DataHash hash, long level) {
+            this.hash = hash;
+            this.level = level;
+        }
+    }
+
+    /**
+     * @param service      KSI signing service.
+     * @param aggrHashAlgo Hash algorithm for local aggregation.
+     * @param maxBatchSize Max count of hashes signed with single KSI request.
+     * @param window       Max time in milliseconds the first hash in the batch waits for others.
+     * @param queueSize    Max count of hashes waiting to be batched.
+     * @param limiter      Limiter of KSI signing requests, one request per batch.
+     * @param log          Logger.
+     */
+    public BlockBatchSigner(KSISigningService service, HashAlgorithm aggrHashAlgo, int maxBatchSize, long window, int queueSize, SignLimiter limiter, Logger log) {
+        if (service == null) throw new NullPointerException("Signing service must not be null!");
+        if (aggrHashAlgo == null) throw new NullPointerException("Aggregation hash algorithm must not be null!");
+        if (maxBatchSize < 1) throw new IllegalArgumentException("Max batch size must be at least 1!");
+        if (window < 0) throw new IllegalArgumentException("Batch window must not be negative!");
+        if (limiter == null) throw new NullPointerException("Sign limiter must not be null!");
+
+        this.service = service;
+        this.aggrHashAlgo = aggrHashAlgo;
+        this.limiter = limiter;
+        this.log = log;
+        this.batcher = new Batcher<>(maxBatchSize, window, queueSize, this::signBatch, "ksihlf-batch-signer", log);
+    }
+
+    /**
+     * Adds the hash to the next batch.
+     *
+     * @param hash  Root hash of the block.
+     * @param level Level of the root hash.
+     * @param block If true, waits for free space in the queue, otherwise fails immediately when the queue is full.
+     * @return Future that is completed when the batch is signed.
+     * @throws RejectedExecutionException if the queue is full and block is false.
+     */
+    public CompletableFuture<Result> submit(DataHash hash, long level, boolean block) throws InterruptedException {
+        if (hash == null) throw new NullPointerException("Hash to be signed must not be null!");
+
+        Request r = new Request(hash, level);
+        if (!batcher.add(r, block)) {
+            throw new RejectedExecutionException("Batch sign queue is full!");
+        }
+        return r.result;
+    }
+
+    public int getQueueDepth() {
+        return batcher.getQueueDepth();
+    }
+
+    /**
+     * Stops accepting new hashes and waits until already submitted hashes are signed.
+     */
+    @Override
+    public void close() {
+        batcher.close();
+    }
+
+    private void signBatch(List<Request> batch) {
+        try {
+            KsiBlockSigner signer = new KsiBlockSignerBuilder()
+                .setKsiSigningService(service)
+                .setDefaultHashAlgorithm(aggrHashAlgo)
+                .build();
+            HashTreeBuilder tb = new HashTreeBuilder(aggrHashAlgo);
+
+            for (Request r : batch) {
+                signer.add(r.hash, r.level, null);
+                tb.add(new ImprintNode(r.hash, r.level));
+            }
+
+            long lvl = tb.build().getLevel();
+            List<KSISignature> sigs = limiter.call(signer::sign);
+            if (sigs.size() != batch.size()) {
+                throw new IllegalStateException("Expected " + batch.size() + " signatures, but got " + sigs.size() + "!");
+            }
+
+            log.log(Level.FINE, "Signed batch of " + batch.size() + " block(s) (lvl:" + lvl + ").");
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(new Result(sigs.get(i), lvl));
+            }
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Unable to sign batch of " + batch.size() + " block(s)!", e);
+            batch.forEach(r -> r.result.completeExceptionally(e));
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import org.hyperledger.fabric.protos.common.Common;
+
+/**
+ * BlockFileReader reads HLF blocks directly from the block files of a peer
+ * (chains/&lt;channel&gt;/blockfile_NNNNNN) or from an exported block snapshot,
+ * without any gateway. The files are memory-mapped and the block content is
+ * wrapped without copying.
+ *
+ * Block files of the peer are sequences of records:
+ * <pre>
+ * [varint length][block]
+ * </pre>
+ * where block is serialized by the Fabric block store as
+ * <pre>
+ * [varint number][bytes dataHash][bytes previousHash]
+ * [varint count]{[bytes data]}
+ * [varint count]{[bytes metadata]}
+ * </pre>
+ * and bytes is [varint length][content]. Snapshot files (*.block, output of
+ * "peer channel fetch") contain a single protobuf encoded Common.Block.
+ *
+ * A truncated record at the end of the last file (the block being written by the
+ * peer) ends the reading. Truncated record in any other file is an error.
+ */
+class BlockFileReader implements AutoCloseable {
+    static final String BLOCKFILE_PREFIX = "blockfile_";
+    static final String SNAPSHOT_SUFFIX = ".block";
+    private static final Pattern TRAILING_NUMBER = Pattern.compile("(\\d+)(\\.block)?$");
+
+    private final List<Path> files = new ArrayList<>();
+    private final List<ByteBuffer> maps = new ArrayList<>();
+    private final boolean snapshot;
+
+    private int fileIdx = 0;
+    private ByteBuffer cursor;
+    private long position = -1;
+
+    /**
+     * @param path Block file, snapshot file or directory containing them.
+     */
+    public BlockFileReader(Path path) throws IOException {
+        if (path == null) throw new NullPointerException("Block file path is null!");
+
+        if (Files.isDirectory(path)) {
+            List<Path> blockFiles = new ArrayList<>();
+            List<Path> snapshotFiles = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(path)) {
+                for (Path p : ds) {
+                    String name = p.getFileName().toString();
+                    if (name.startsWith(BLOCKFILE_PREFIX)) blockFiles.add(p);
+                    else if (name.endsWith(SNAPSHOT_SUFFIX)) snapshotFiles.add(p);
+                }
+            }
+
+            this.snapshot = blockFiles.isEmpty();
+            this.files.addAll(this.snapshot ? snapshotFiles : blockFiles);
+            this.files.sort(Comparator.comparingLong(BlockFileReader::getFileNumber).thenComparing(Path::toString));
+        } else {
+            this.snapshot = path.getFileName().toString().endsWith(SNAPSHOT_SUFFIX);
+            this.files.add(path);
+        }
+
+        if (this.files.isEmpty()) {
+            throw new IOException("No block files found in " + path + "!");
+        }
+
+        for (Path p : this.files) {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                if (ch.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Block file " + p + " is too large to be mapped!");
+                }
+                /* Mapping remains valid after the channel is closed. */
+                this.maps.add(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).asReadOnlyBuffer());
+            }
+        }
+
+        this.cursor = this.maps.get(0).duplicate();
+    }
+
+    public List<Path> getFiles() {
+        return this.files;
+    }
+
+    /**
+     * Returns the next block or null if there are no more blocks.
+     */
+    public Common.Block next() throws IOException {
+        while (nextRecord()) {
+            int start = cursor.position();
+            ByteBuffer rec = readRecord(cursor, fileIdx);
+            if (rec != null) {
+                this.position = ((long) fileIdx << 32) | start;
+                return decode(rec);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Skips the blocks with number lower than the given one. Only the block
+     * numbers are decoded. Returns false if there are no more blocks.
+     */
+    public boolean skipTo(long number) throws IOException {
+        while (nextRecord()) {
+            ByteBuffer peek = cursor.duplicate();
+            ByteBuffer rec = readRecord(peek, fileIdx);
+            if (rec == null) {
+                cursor.position(cursor.limit());
+                continue;
+            }
+
+            if (decodeNumber(rec) >= number) {
+                return true;
+            }
+            cursor.position(peek.position());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position of the last block returned by {@link #next()}.
+     */
+    public long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Reads the block at the position returned by {@link #getPosition()}.
+     */
+    public Common.Block read(long position) throws IOException {
+        int idx = (int) (position >>> 32);
+        int off = (int) position;
+        if (position < 0 || idx >= maps.size() || off >= maps.get(idx).limit()) {
+            throw new IllegalArgumentException("Invalid block file position " + position + "!");
+        }
+
+        ByteBuffer buf = maps.get(idx).duplicate();
+        buf.position(off);
+        ByteBuffer rec = readRecord(buf, idx);
+        if (rec == null) {
+            throw new IOException("Truncated block record at " + files.get(idx) + ":" + off + "!");
+        }
+        return decode(rec);
+    }
+
+    @Override
+    public void close() {
+        /* Mapped buffers are released by GC. */
+        this.maps.clear();
+        this.cursor = null;
+    }
+
+    private boolean nextRecord() {
+        while (!cursor.hasRemaining()) {
+            if (fileIdx + 1 >= maps.size()) {
+                return false;
+            }
+            fileIdx++;
+            cursor = maps.get(fileIdx).duplicate();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the record at the buffer position and moves the position after it.
+     * Returns null if the record is truncated at the end of the last file.
+     */
+    private ByteBuffer readRecord(ByteBuffer buf, int idx) throws IOException {
+        int start = buf.position();
+        long len;
+        if (snapshot) {
+            len = buf.remaining();
+        } else {
+            len = readVarint(buf);
+            if (len < 0 || len > buf.remaining()) {
+                if (idx == maps.size() - 1) {
+                    buf.position(buf.limit());
+                    return null;
+                }
+                throw new IOException("Truncated block record at " + files.get(idx) + ":" + start + "!");
+            }
+        }
+
+        ByteBuffer rec = buf.slice();
+        rec.limit((int) len);
+        buf.position(buf.position() + (int) len);
+        return rec;
+    }
+
+    private long decodeNumber(ByteBuffer rec) throws IOException {
+        if (snapshot) {
+            return decode(rec).getHeader().getNumber();
+        }
+        return checkVarint(readVarint(rec.duplicate()));
+    }
+
+    private Common.Block decode(ByteBuffer rec) throws IOException {
+        if (snapshot) {
+            return Common.Block.parseFrom(rec.duplicate());
+        }
+
+        try {
+            ByteBuffer buf = rec.duplicate();
+            Common.BlockHeader header = Common.BlockHeader.newBuilder()
+                    .setNumber(checkVarint(readVarint(buf)))
+                    .setDataHash(readBytes(buf))
+                    .setPreviousHash(readBytes(buf))
+                    .build();
+
+            Common.BlockData.Builder data = Common.BlockData.newBuilder();
+            for (long i = checkVarint(readVarint(buf)); i > 0; i--) {
+                data.addData(readBytes(buf));
+            }
+
+            Common.BlockMetadata.Builder metadata = Common.BlockMetadata.newBuilder();
+            for (long i = checkVarint(readVarint(buf)); i > 0; i--) {
+                metadata.addMetadata(readBytes(buf));
+            }
+
+            return Common.Block.newBuilder().setHeader(header).setData(data).setMetadata(metadata).build();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted block record!", e);
+        }
+    }
+
+    private static ByteString readBytes(ByteBuffer buf) {
+        long len = readVarint(buf);
+        if (len < 0 || len > buf.remaining()) {
+            throw new IllegalArgumentException("Bytes length " + len + " exceeds the record!");
+        }
+
+        ByteBuffer tmp = buf.slice();
+        tmp.limit((int) len);
+        buf.position(buf.position() + (int) len);
+        return UnsafeByteOperations.unsafeWrap(tmp);
+    }
+
+    private static long checkVarint(long v) {
+        if (v < 0) throw new IllegalArgumentException("Truncated varint!");
+        return v;
+    }
+
+    /* Returns -1 if the buffer ends before the varint. */
+    private static long readVarint(ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            byte b = buf.get();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint!");
+    }
+
+    private static long getFileNumber(Path p) {
+        Matcher m = TRAILING_NUMBER.matcher(p.getFileName().toString());
+        return m.find() ? Long.parseLong(m.group(1)) : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+
+import org.guardtime.ksi.hlf.contract.api.BlockHelper;
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.wrapper.Version;
+import org.hyperledger.fabric.protos.common.Common;
+
+/**
+ * BlockFileSignatureSource reads KSI signatures from the KSI contract transactions
+ * stored in the block files, so signatures can be verified without the gateway.
+ *
+ * On creation the block files are scanned once and only the positions of the
+ * blocks containing the signatures are indexed. A signature is decoded when it is
+ * requested. The last valid write of a signature wins and extended signatures
+ * (updateWithExtended) get the record hashes of the signature they extend, the
+ * same way as the contract does.
+ */
+class BlockFileSignatureSource implements SignatureSource, AutoCloseable {
+    private final BlockFileReader reader;
+    private final String org;
+
+    /* Block number -> {position of the signature, position of its extension or -1}. */
+    private final Map<Long, long[]> index = new HashMap<>();
+
+    /**
+     * @param path       Block files (see {@link BlockFileReader}).
+     * @param org        Organization that issued the signatures.
+     * @param firstBlock First block whose signature is indexed.
+     * @param lastBlock  Last block whose signature is indexed.
+     * @param log        Logger.
+     */
+    public BlockFileSignatureSource(Path path, String org, long firstBlock, long lastBlock, Logger log) throws IOException {
+        if (org == null) throw new NullPointerException("Signature source org is null!");
+
+        this.reader = new BlockFileReader(path);
+        this.org = org;
+
+        /* Signatures are always committed after the signed block. */
+        long blocks = 0;
+        if (reader.skipTo(firstBlock)) {
+            Common.Block block;
+            while ((block = reader.next()) != null) {
+                long pos = reader.getPosition();
+                blocks++;
+
+                for (KsiWrapper sig : new BlockHelper(block, HashAlgorithm.SHA2_256, false).getKsiSignatures(org)) {
+                    long nr = sig.getBlockNumber();
+                    if (nr < firstBlock || nr > lastBlock) {
+                        continue;
+                    }
+
+                    if (!isExtension(sig)) {
+                        index.put(nr, new long[] {pos, -1});
+                    } else if (index.containsKey(nr)) {
+                        index.get(nr)[1] = pos;
+                    }
+                }
+            }
+        }
+
+        log.log(Level.INFO, "Indexed " + index.size() + " signature(s) of '" + org + "' from " + blocks + " block(s) in " + path);
+    }
+
+    @Override
+    public KsiWrapper getSignature(long block, String org) throws Exception {
+        if (!this.org.equals(org)) throw new IllegalArgumentException("Signature source contains only signatures of '" + this.org + "'!");
+
+        long[] loc = index.get(block);
+        if (loc == null) {
+            return null;
+        }
+
+        KsiWrapper sig = find(loc[0], block, false);
+        if (sig == null || loc[1] < 0) {
+            return sig;
+        }
+
+        KsiWrapper ext = find(loc[1], block, true);
+        if (ext == null) {
+            return sig;
+        }
+
+        if (sig.getVersion() == Version.VER_2) {
+            return KsiWrapper.newFromBase64(ext.getKsiBase64(), sig.getRecHash(), sig.getAggregationLevel(), block, org);
+        }
+        return KsiWrapper.newFromBase64(ext.getKsiBase64(), sig.getRecHash(), block, org);
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+
+    private KsiWrapper find(long pos, long block, boolean extension) throws IOException {
+        List<KsiWrapper> sigs = new BlockHelper(reader.read(pos), HashAlgorithm.SHA2_256, false).getKsiSignatures(org);
+
+        /* The last write within the block wins. */
+        for (int i = sigs.size() - 1; i >= 0; i--) {
+            KsiWrapper sig = sigs.get(i);
+            if (sig.getBlockNumber() == block && isExtension(sig) == extension) {
+                return sig;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isExtension(KsiWrapper sig) {
+        return sig.getRecHash() == null || sig.getRecHash().length == 0;
+    }
+}
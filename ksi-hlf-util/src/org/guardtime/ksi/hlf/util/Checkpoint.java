@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checkpoint keeps the high-water mark (HWM) of the blocks handled by the signing
+ * daemon of a single organization and channel. HWM is the highest block number such
+ * that every block up to and including it has been handled. As blocks are signed
+ * concurrently and out of order, blocks above HWM are remembered until the gap is
+ * filled.
+ *
+ * HWM is persisted in a text file. The file is replaced atomically (written to a
+ * temporary file and moved) so a crash never leaves a partially written file. After
+ * restart, the blocks above HWM must be replayed.
+ */
+class Checkpoint {
+    private final Path file;
+    private final Logger log;
+
+    private long hwm;
+    private final Set<Long> inFlight = new HashSet<>();
+    private final TreeSet<Long> handled = new TreeSet<>();
+
+    /**
+     * @param file Path to the high-water mark file.
+     * @param log  Logger.
+     */
+    public Checkpoint(Path file, Logger log) {
+        if (file == null) throw new NullPointerException("Checkpoint file must not be null!");
+
+        this.file = file;
+        this.log = log;
+        this.hwm = -1;
+    }
+
+    /**
+     * Loads the high-water mark from the file.
+     *
+     * @return true if the file exists and high-water mark was loaded.
+     */
+    public synchronized boolean load() throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+
+        String value = new String(Files.readAllBytes(file), UTF_8).trim();
+        try {
+            this.hwm = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid high-water mark '" + value + "' in " + file + "!", e);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the high-water mark (e.g. when there is no checkpoint file yet) and persists it.
+     */
+    public synchronized void reset(long hwm) throws IOException {
+        this.hwm = hwm;
+        this.inFlight.clear();
+        this.handled.clear();
+        store();
+    }
+
+    public synchronized long getHighWaterMark() {
+        return this.hwm;
+    }
+
+    /**
+     * Claims the block for signing. Block is not claimed when it is already handled
+     * or being handled (e.g. block delivered by both live and catch-up lane).
+     *
+     * @return true if the block was claimed and must be signed by the caller.
+     */
+    public synchronized boolean claim(long blockNr) {
+        if (blockNr <= hwm || handled.contains(blockNr)) {
+            return false;
+        }
+        return inFlight.add(blockNr);
+    }
+
+    /**
+     * Releases the claimed block that was not handled (e.g. signing failed). The block
+     * stays above HWM, so HWM does not move past it and it is replayed after restart.
+     */
+    public synchronized void release(long blockNr) {
+        inFlight.remove(blockNr);
+    }
+
+    /**
+     * Marks the claimed block as handled. When the contiguous range of handled blocks
+     * grows, the new high-water mark is persisted.
+     */
+    public synchronized void done(long blockNr) {
+        inFlight.remove(blockNr);
+        if (blockNr <= hwm) {
+            return;
+        }
+
+        handled.add(blockNr);
+        long prev = hwm;
+        while (!handled.isEmpty() && handled.first() == hwm + 1) {
+            hwm = handled.pollFirst();
+        }
+
+        if (hwm != prev) {
+            try {
+                store();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to store high-water mark " + hwm + " to " + file + "!", e);
+            }
+        }
+    }
+
+    private void store() throws IOException {
+        writeAtomically(file, Long.toString(hwm).getBytes(UTF_8));
+    }
+
+    /**
+     * Replaces the content of the file atomically. Data is written to a temporary
+     * file, forced to the disk and moved over the target file.
+     */
+    static void writeAtomically(Path file, byte[] data) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(ByteBuffer.wrap(data));
+            ch.force(true);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -19,6 +19,7 @@
 
 package org.guardtime.ksi.hlf.util;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -26,6 +27,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.cert.CertSelector;
 import java.util.List;
+import java.util.logging.Logger;
 import com.guardtime.ksi.Extender;
 import com.guardtime.ksi.ExtenderBuilder;
 import com.guardtime.ksi.PublicationsHandler;
@@ -35,6 +37,7 @@ import com.guardtime.ksi.SignerBuilder;
 import com.guardtime.ksi.exceptions.KSIException;
 import com.guardtime.ksi.service.KSIExtendingClientServiceAdapter;
 import com.guardtime.ksi.service.KSISigningClientServiceAdapter;
+import com.guardtime.ksi.service.KSISigningService;
 import com.guardtime.ksi.service.client.KSIExtenderClient;
 import com.guardtime.ksi.service.client.KSIPublicationsFileClient;
 import com.guardtime.ksi.service.client.KSIServiceCredentials;
@@ -55,7 +58,7 @@ import org.yaml.snakeyaml.Yaml;
 /**
  * Conf
  */
-public class Conf {
+public class Conf implements AutoCloseable {
 
     public Conf() {
     
@@ -81,6 +84,73 @@ public class Conf {
 
     private String commitOrg;
 
+    /* Aggregate transaction envelope hashes into the block record hashes (enables transaction proofs). */
+    private boolean aggrTransactions = false;
+
+    /* Max count of blocks aggregated into single KSI request. Value 1 disables batching. */
+    private int signBatchSize = 1;
+    /* Max time in milliseconds a block waits for other blocks to be aggregated with. */
+    private long signBatchWindow = 1000;
+
+    /* Max KSI signing request rate per second and burst. Rate 0 disables rate limiting. */
+    private double signRateLimit = 0;
+    private int signRateBurst = 1;
+    /* Max count of concurrent KSI signing requests. Value 0 disables the window. */
+    private int signMaxInFlight = 0;
+    /* Signing latency in milliseconds treated as congestion. Value 0 disables it. */
+    private long signLatencyTarget = 0;
+
+    /* Max count of signatures pushed with single ledger transaction. Value 1 disables batching. */
+    private int submitBatchSize = 1;
+    /* Max time in milliseconds a signature waits for others before the batch is pushed. */
+    private long submitBatchLatency = 500;
+
+    /* Signing pipeline worker pool sizes, queue size and backpressure policy (block or drop). */
+    private int digestThreads = 1;
+    private int signThreads = 2;
+    private int submitThreads = 1;
+    private int queueSize = 100;
+    private String backpressure = SignPipeline.BACKPRESSURE_BLOCK;
+    /* Interval in seconds for logging queue depths. Value 0 disables reporting. */
+    private long queueReportInterval = 60;
+
+    /* Directory for high-water mark files of signed blocks. Null disables checkpointing and catch-up. */
+    private String checkpointDir;
+    /* Worker pool size of every stage of the catch-up lane. */
+    private int catchupThreads = 1;
+
+    /* Interval in seconds for checking new publications to auto-extend signatures. Value 0 disables it. */
+    private long extendInterval = 0;
+    /* Max count of concurrent extending requests. */
+    private int extendThreads = 2;
+
+    /* Directory for the journal of signatures waiting for ledger commit. Null disables the outbox. */
+    private String outboxDir;
+    /* Size of the outbox segment file in bytes. */
+    private int outboxSegmentSize = 16 * 1024 * 1024;
+    /* Min and max delay in milliseconds between resubmissions of a signature. */
+    private long outboxMinRetryDelay = 1000;
+    private long outboxMaxRetryDelay = 300000;
+
+    /*
+     * Max idle keep-alive connections cached per KSI service host (0 means default). This
+     * does not bound concurrent connections, see signMaxInFlight for that.
+     */
+    private int httpKeepAliveCache = 0;
+    /* HTTP timeouts in milliseconds (0 means default) for KSI services. */
+    private int httpConnectTimeout = 0;
+    private int httpReadTimeout = 0;
+
+    /* Long-lived KSI service clients, created on first use. */
+    private KSISigningClient signingClient;
+    private KSIExtenderClient extenderClient;
+    private KSIPublicationsFileClient publicationsFileClient;
+    private KSISigningService signingService;
+    private PublicationsHandler pubHandler;
+    private Signer signer;
+    private Extender extender;
+    private SignLimiter signLimiter;
+
     public boolean isDisabled() {
         return this.disabled;
     }
@@ -150,6 +220,33 @@ public class Conf {
         if (this.walletPath == null || this.walletPath.toString().isEmpty()) throw new IllegalArgumentException("walletPath is empty or null in conf nr. " + confNr);
         if (this.network == null || this.network.isEmpty()) throw new IllegalArgumentException("network is empty or null in conf nr. " + confNr);
         if (this.user == null || this.user.isEmpty()) throw new IllegalArgumentException("user is empty or null in conf nr. " + confNr);
+
+        if (this.signBatchSize < 1) throw new IllegalArgumentException("signBatchSize must be at least 1 in conf nr. " + confNr);
+        if (this.signBatchWindow < 0) throw new IllegalArgumentException("signBatchWindow must not be negative in conf nr. " + confNr);
+        if (this.signRateLimit < 0) throw new IllegalArgumentException("signRateLimit must not be negative in conf nr. " + confNr);
+        if (this.signRateBurst < 1) throw new IllegalArgumentException("signRateBurst must be at least 1 in conf nr. " + confNr);
+        if (this.signMaxInFlight < 0) throw new IllegalArgumentException("signMaxInFlight must not be negative in conf nr. " + confNr);
+        if (this.signLatencyTarget < 0) throw new IllegalArgumentException("signLatencyTarget must not be negative in conf nr. " + confNr);
+        if (this.submitBatchSize < 1) throw new IllegalArgumentException("submitBatchSize must be at least 1 in conf nr. " + confNr);
+        if (this.submitBatchLatency < 0) throw new IllegalArgumentException("submitBatchLatency must not be negative in conf nr. " + confNr);
+
+        if (this.digestThreads < 1) throw new IllegalArgumentException("digestThreads must be at least 1 in conf nr. " + confNr);
+        if (this.signThreads < 1) throw new IllegalArgumentException("signThreads must be at least 1 in conf nr. " + confNr);
+        if (this.submitThreads < 1) throw new IllegalArgumentException("submitThreads must be at least 1 in conf nr. " + confNr);
+        if (this.queueSize < 1) throw new IllegalArgumentException("queueSize must be at least 1 in conf nr. " + confNr);
+        if (this.queueReportInterval < 0) throw new IllegalArgumentException("queueReportInterval must not be negative in conf nr. " + confNr);
+        if (this.catchupThreads < 1) throw new IllegalArgumentException("catchupThreads must be at least 1 in conf nr. " + confNr);
+        if (this.extendInterval < 0) throw new IllegalArgumentException("extendInterval must not be negative in conf nr. " + confNr);
+        if (this.extendThreads < 1) throw new IllegalArgumentException("extendThreads must be at least 1 in conf nr. " + confNr);
+        if (this.outboxSegmentSize < 1024) throw new IllegalArgumentException("outboxSegmentSize must be at least 1024 in conf nr. " + confNr);
+        if (this.outboxMinRetryDelay < 0) throw new IllegalArgumentException("outboxMinRetryDelay must not be negative in conf nr. " + confNr);
+        if (this.outboxMaxRetryDelay < this.outboxMinRetryDelay) throw new IllegalArgumentException("outboxMaxRetryDelay must not be smaller than outboxMinRetryDelay in conf nr. " + confNr);
+        if (this.httpKeepAliveCache < 0) throw new IllegalArgumentException("httpKeepAliveCache must not be negative in conf nr. " + confNr);
+        if (this.httpConnectTimeout < 0) throw new IllegalArgumentException("httpConnectTimeout must not be negative in conf nr. " + confNr);
+        if (this.httpReadTimeout < 0) throw new IllegalArgumentException("httpReadTimeout must not be negative in conf nr. " + confNr);
+        if (!SignPipeline.BACKPRESSURE_BLOCK.equals(this.backpressure) && !SignPipeline.BACKPRESSURE_DROP.equals(this.backpressure)) {
+            throw new IllegalArgumentException("backpressure must be '" + SignPipeline.BACKPRESSURE_BLOCK + "' or '" + SignPipeline.BACKPRESSURE_DROP + "' in conf nr. " + confNr);
+        }
     }
 
     public String getUser() {
@@ -264,6 +361,251 @@ public class Conf {
         this.pubfileConstraint = pubfileConstraint;
     }
 
+    public boolean isAggrTransactions() {
+        return this.aggrTransactions;
+    }
+
+    public boolean getAggrTransactions() {
+        return this.aggrTransactions;
+    }
+
+    public void setAggrTransactions(boolean aggrTransactions) {
+        this.aggrTransactions = aggrTransactions;
+    }
+
+    public int getSignBatchSize() {
+        return this.signBatchSize;
+    }
+
+    public void setSignBatchSize(int signBatchSize) {
+        this.signBatchSize = signBatchSize;
+    }
+
+    public long getSignBatchWindow() {
+        return this.signBatchWindow;
+    }
+
+    public void setSignBatchWindow(long signBatchWindow) {
+        this.signBatchWindow = signBatchWindow;
+    }
+
+    public double getSignRateLimit() {
+        return this.signRateLimit;
+    }
+
+    public void setSignRateLimit(double signRateLimit) {
+        this.signRateLimit = signRateLimit;
+    }
+
+    public int getSignRateBurst() {
+        return this.signRateBurst;
+    }
+
+    public void setSignRateBurst(int signRateBurst) {
+        this.signRateBurst = signRateBurst;
+    }
+
+    public int getSignMaxInFlight() {
+        return this.signMaxInFlight;
+    }
+
+    public void setSignMaxInFlight(int signMaxInFlight) {
+        this.signMaxInFlight = signMaxInFlight;
+    }
+
+    public long getSignLatencyTarget() {
+        return this.signLatencyTarget;
+    }
+
+    public void setSignLatencyTarget(long signLatencyTarget) {
+        this.signLatencyTarget = signLatencyTarget;
+    }
+
+    public int getSubmitBatchSize() {
+        return this.submitBatchSize;
+    }
+
+    public void setSubmitBatchSize(int submitBatchSize) {
+        this.submitBatchSize = submitBatchSize;
+    }
+
+    public long getSubmitBatchLatency() {
+        return this.submitBatchLatency;
+    }
+
+    public void setSubmitBatchLatency(long submitBatchLatency) {
+        this.submitBatchLatency = submitBatchLatency;
+    }
+
+    public int getDigestThreads() {
+        return this.digestThreads;
+    }
+
+    public void setDigestThreads(int digestThreads) {
+        this.digestThreads = digestThreads;
+    }
+
+    public int getSignThreads() {
+        return this.signThreads;
+    }
+
+    public void setSignThreads(int signThreads) {
+        this.signThreads = signThreads;
+    }
+
+    public int getSubmitThreads() {
+        return this.submitThreads;
+    }
+
+    public void setSubmitThreads(int submitThreads) {
+        this.submitThreads = submitThreads;
+    }
+
+    public int getQueueSize() {
+        return this.queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public String getBackpressure() {
+        return this.backpressure;
+    }
+
+    public void setBackpressure(String backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    public String getCheckpointDir() {
+        return this.checkpointDir;
+    }
+
+    public void setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
+    /**
+     * Returns path to the high-water mark file of this organization and channel
+     * or null if checkpointing is disabled.
+     */
+    public Path getCheckpointPath() {
+        if (this.checkpointDir == null || this.checkpointDir.isEmpty()) {
+            return null;
+        }
+        return Paths.get(this.checkpointDir, this.commitOrg + "." + this.network + ".hwm");
+    }
+
+    public int getCatchupThreads() {
+        return this.catchupThreads;
+    }
+
+    public void setCatchupThreads(int catchupThreads) {
+        this.catchupThreads = catchupThreads;
+    }
+
+    /**
+     * Returns path to the file of unextended signatures of this organization and
+     * channel or null if checkpointing is disabled.
+     */
+    public Path getUnextendedPath() {
+        if (this.checkpointDir == null || this.checkpointDir.isEmpty()) {
+            return null;
+        }
+        return Paths.get(this.checkpointDir, this.commitOrg + "." + this.network + ".unextended");
+    }
+
+    public long getExtendInterval() {
+        return this.extendInterval;
+    }
+
+    public void setExtendInterval(long extendInterval) {
+        this.extendInterval = extendInterval;
+    }
+
+    public int getExtendThreads() {
+        return this.extendThreads;
+    }
+
+    public void setExtendThreads(int extendThreads) {
+        this.extendThreads = extendThreads;
+    }
+
+    public String getOutboxDir() {
+        return this.outboxDir;
+    }
+
+    public void setOutboxDir(String outboxDir) {
+        this.outboxDir = outboxDir;
+    }
+
+    /**
+     * Returns path to the outbox directory of this organization and channel
+     * or null if outbox is disabled.
+     */
+    public Path getOutboxPath() {
+        if (this.outboxDir == null || this.outboxDir.isEmpty()) {
+            return null;
+        }
+        return Paths.get(this.outboxDir, this.commitOrg + "." + this.network);
+    }
+
+    public int getOutboxSegmentSize() {
+        return this.outboxSegmentSize;
+    }
+
+    public void setOutboxSegmentSize(int outboxSegmentSize) {
+        this.outboxSegmentSize = outboxSegmentSize;
+    }
+
+    public long getOutboxMinRetryDelay() {
+        return this.outboxMinRetryDelay;
+    }
+
+    public void setOutboxMinRetryDelay(long outboxMinRetryDelay) {
+        this.outboxMinRetryDelay = outboxMinRetryDelay;
+    }
+
+    public long getOutboxMaxRetryDelay() {
+        return this.outboxMaxRetryDelay;
+    }
+
+    public void setOutboxMaxRetryDelay(long outboxMaxRetryDelay) {
+        this.outboxMaxRetryDelay = outboxMaxRetryDelay;
+    }
+
+    public long getQueueReportInterval() {
+        return this.queueReportInterval;
+    }
+
+    public void setQueueReportInterval(long queueReportInterval) {
+        this.queueReportInterval = queueReportInterval;
+    }
+
+    public int getHttpKeepAliveCache() {
+        return this.httpKeepAliveCache;
+    }
+
+    public void setHttpKeepAliveCache(int httpKeepAliveCache) {
+        this.httpKeepAliveCache = httpKeepAliveCache;
+    }
+
+    public int getHttpConnectTimeout() {
+        return this.httpConnectTimeout;
+    }
+
+    public void setHttpConnectTimeout(int httpConnectTimeout) {
+        this.httpConnectTimeout = httpConnectTimeout;
+    }
+
+    public int getHttpReadTimeout() {
+        return this.httpReadTimeout;
+    }
+
+    public void setHttpReadTimeout(int httpReadTimeout) {
+        this.httpReadTimeout = httpReadTimeout;
+    }
+
     public Gateway getGateway() throws IOException {
         Path walletPath = Paths.get(this.getWalletPath());
         Path connectionProfile = Paths.get(this.getConnectionProfile());
@@ -281,61 +623,157 @@ public class Conf {
         return builder.connect();
     }
 
-    private KSISigningClient getSigningClient() {
-        String key = this.getAggrKey();
-        String user = this.getAggrUser();
-        String url = this.getAggrUrl();
-    
-        ServiceCredentials credentials = new KSIServiceCredentials(user, key);
-        KSISigningClient ksiSigningClient = new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(url, credentials));
-     
-        return ksiSigningClient;
+    private HttpSettings applyHttpSettings(HttpSettings settings) {
+        if (this.httpConnectTimeout > 0) settings.setConnectionTimeout(this.httpConnectTimeout);
+        if (this.httpReadTimeout > 0) settings.setReadTimeout(this.httpReadTimeout);
+        return settings;
+    }
+
+    private synchronized KSISigningClient getSigningClient() {
+        if (this.signingClient == null) {
+            ServiceCredentials credentials = new KSIServiceCredentials(this.getAggrUser(), this.getAggrKey());
+            CredentialsAwareHttpSettings settings = new CredentialsAwareHttpSettings(this.getAggrUrl(), credentials);
+            applyHttpSettings(settings);
+            this.signingClient = new SimpleHttpSigningClient(settings);
+        }
+
+        return this.signingClient;
     }
     
-    private KSIExtenderClient getExtendingClient() {
-        String key = this.getExtKey();
-        String user = this.getExtUser();
-        String url = this.getExtUrl();
-    
-        ServiceCredentials credentials = new KSIServiceCredentials(user, key);
-        KSIExtenderClient ksiExtenderClient = new SimpleHttpExtenderClient(new CredentialsAwareHttpSettings(url, credentials));
-     
-        return ksiExtenderClient;
+    private synchronized KSIExtenderClient getExtendingClient() {
+        if (this.extenderClient == null) {
+            ServiceCredentials credentials = new KSIServiceCredentials(this.getExtUser(), this.getExtKey());
+            CredentialsAwareHttpSettings settings = new CredentialsAwareHttpSettings(this.getExtUrl(), credentials);
+            applyHttpSettings(settings);
+            this.extenderClient = new SimpleHttpExtenderClient(settings);
+        }
+
+        return this.extenderClient;
     }
 
-    public PublicationsHandler getPubHandler() throws KSIException {
-        String url = this.getPubfileUrl();
-        CertSelector certSelector = new X509CertificateSubjectRdnSelector(this.getPubfileConstraint());
-        KSIPublicationsFileClient ksiPublicationsFileClient = new SimpleHttpPublicationsFileClient(new HttpSettings(url));
-        
-        PublicationsHandlerBuilder bldr = new PublicationsHandlerBuilder();
-        bldr.setKsiProtocolPublicationsFileClient(ksiPublicationsFileClient);
-        bldr.setPublicationsFileCertificateConstraints(certSelector);
+    private synchronized KSIPublicationsFileClient getPublicationsFileClient() {
+        if (this.publicationsFileClient == null) {
+            this.publicationsFileClient = new SimpleHttpPublicationsFileClient(applyHttpSettings(new HttpSettings(this.getPubfileUrl())));
+        }
 
-        if (this.pubfileCert != null && !this.pubfileCert.isEmpty()) {
-            bldr.setPublicationsFilePkiTrustStore(new File(this.pubfileCert), "aaaaaa");
+        return this.publicationsFileClient;
+    }
+
+    /**
+     * Returns publications handler that is shared by all the users of this conf.
+     * Publications file is downloaded once and cached by the handler.
+     */
+    public synchronized PublicationsHandler getPubHandler() throws KSIException {
+        if (this.pubHandler == null) {
+            CertSelector certSelector = new X509CertificateSubjectRdnSelector(this.getPubfileConstraint());
+
+            PublicationsHandlerBuilder bldr = new PublicationsHandlerBuilder();
+            bldr.setKsiProtocolPublicationsFileClient(this.getPublicationsFileClient());
+            bldr.setPublicationsFileCertificateConstraints(certSelector);
+
+            if (this.pubfileCert != null && !this.pubfileCert.isEmpty()) {
+                bldr.setPublicationsFilePkiTrustStore(new File(this.pubfileCert), "aaaaaa");
+            }
+
+            this.pubHandler = bldr.build();
         }
 
-        PublicationsHandler publicationsHandler = bldr.build();
-        
-        return publicationsHandler;
+        return this.pubHandler;
     }
 
-    public Signer getSigner() {
-        KSISigningClient ksiSigningClient = this.getSigningClient();
-        Signer signer = new SignerBuilder().setSigningService(new KSISigningClientServiceAdapter(ksiSigningClient)).build();
-        return signer;
+    public synchronized KSISigningService getSigningService() {
+        if (this.signingService == null) {
+            this.signingService = new KSISigningClientServiceAdapter(this.getSigningClient());
+        }
+
+        return this.signingService;
     }
 
-    public Extender getExtender() throws KSIException {
-        KSIExtenderClient ksiExtenderClient = this.getExtendingClient();
-        PublicationsHandler pubHandler = this.getPubHandler();
-    
-        Extender extender = new ExtenderBuilder()
-            .setExtendingService(new KSIExtendingClientServiceAdapter(ksiExtenderClient)).setPublicationsHandler(pubHandler)
-            .build();
-        return extender;
-      }
+    /**
+     * Returns thread-safe signer that is shared by all the users of this conf.
+     */
+    public synchronized Signer getSigner() {
+        if (this.signer == null) {
+            this.signer = new SignerBuilder().setSigningService(this.getSigningService()).build();
+        }
+
+        return this.signer;
+    }
+
+    /**
+     * Returns limiter shared by all KSI signing requests of this configuration.
+     */
+    public synchronized SignLimiter getSignLimiter() {
+        if (this.signLimiter == null) {
+            this.signLimiter = new SignLimiter(this.signRateLimit, this.signRateBurst, this.signMaxInFlight,
+                this.signLatencyTarget, Logger.getLogger("ksihlf." + this.commitOrg));
+        }
+        return this.signLimiter;
+    }
+
+    /**
+     * Returns thread-safe extender that is shared by all the users of this conf.
+     */
+    public synchronized Extender getExtender() throws KSIException {
+        if (this.extender == null) {
+            this.extender = new ExtenderBuilder()
+                .setExtendingService(new KSIExtendingClientServiceAdapter(this.getExtendingClient()))
+                .setPublicationsHandler(this.getPubHandler())
+                .build();
+        }
+
+        return this.extender;
+    }
+
+    /**
+     * Closes the KSI service clients. Clients are recreated on next use.
+     */
+    @Override
+    public synchronized void close() {
+        closeQuietly(this.signer);
+        closeQuietly(this.extender);
+        closeQuietly(this.signingClient);
+        closeQuietly(this.extenderClient);
+        closeQuietly(this.publicationsFileClient);
+
+        this.signer = null;
+        this.extender = null;
+        this.signingService = null;
+        this.pubHandler = null;
+        this.signingClient = null;
+        this.extenderClient = null;
+        this.publicationsFileClient = null;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+
+        try {
+            c.close();
+        } catch (Exception e) {
+            // Nothing to do.
+        }
+    }
+
+    /**
+     * KSI service clients use HttpURLConnection that keeps alive and reuses the
+     * connections. The JVM-wide http.maxConnections is set to the max
+     * httpKeepAliveCache over all the confs. It only limits how many idle
+     * connections are kept per destination for reuse; connections in use are not
+     * bounded by it, the concurrency is limited by signMaxInFlight. Must be called
+     * before any connection is made.
+     */
+    static void applyHttpKeepAliveCache(List<Conf> conf) {
+        int max = 0;
+        for (Conf c : conf) {
+            max = Math.max(max, c.getHttpKeepAliveCache());
+        }
+
+        if (max > 0) {
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections", "" + max);
+        }
+    }
 
     @Override
     public String toString() {
@@ -357,6 +795,33 @@ public class Conf {
                 "  walletPath=       '" + getWalletPath() + "'\n" +
                 "  connectionProfile='" + getConnectionProfile() + "'\n" +
                 "  commitOrg=        '" + getCommitOrg() + "'\n" +
+
+                "  aggrTransactions= '" + isAggrTransactions() + "'\n" +
+                "  signBatchSize=    '" + getSignBatchSize() + "'\n" +
+                "  signBatchWindow=  '" + getSignBatchWindow() + "'\n" +
+                "  signRateLimit=    '" + getSignRateLimit() + "'\n" +
+                "  signRateBurst=    '" + getSignRateBurst() + "'\n" +
+                "  signMaxInFlight=  '" + getSignMaxInFlight() + "'\n" +
+                "  signLatencyTarget='" + getSignLatencyTarget() + "'\n" +
+                "  submitBatchSize=  '" + getSubmitBatchSize() + "'\n" +
+                "  submitBatchLatency='" + getSubmitBatchLatency() + "'\n" +
+                "  digestThreads=    '" + getDigestThreads() + "'\n" +
+                "  signThreads=      '" + getSignThreads() + "'\n" +
+                "  submitThreads=    '" + getSubmitThreads() + "'\n" +
+                "  queueSize=        '" + getQueueSize() + "'\n" +
+                "  backpressure=     '" + getBackpressure() + "'\n" +
+                "  queueReportInterval='" + getQueueReportInterval() + "'\n" +
+                "  checkpointDir=    '" + getCheckpointDir() + "'\n" +
+                "  catchupThreads=   '" + getCatchupThreads() + "'\n" +
+                "  extendInterval=   '" + getExtendInterval() + "'\n" +
+                "  extendThreads=    '" + getExtendThreads() + "'\n" +
+                "  outboxDir=        '" + getOutboxDir() + "'\n" +
+                "  outboxSegmentSize='" + getOutboxSegmentSize() + "'\n" +
+                "  outboxMinRetryDelay='" + getOutboxMinRetryDelay() + "'\n" +
+                "  outboxMaxRetryDelay='" + getOutboxMaxRetryDelay() + "'\n" +
+                "  httpKeepAliveCache='" + getHttpKeepAliveCache() + "'\n" +
+                "  httpConnectTimeout='" + getHttpConnectTimeout() + "'\n" +
+                "  httpReadTimeout=  '" + getHttpReadTimeout() + "'\n" +
                 
                 "  disabled= '" + isDisabled() + "'\n" +
                 "}";
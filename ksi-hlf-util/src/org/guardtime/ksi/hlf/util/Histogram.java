@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed buckets (in seconds) as used by Prometheus.
+ * Observations are recorded without locking.
+ */
+class Histogram {
+    static final double[] DEFAULT_BUCKETS = {
+        0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 900, 3600
+    };
+
+    private final double[] buckets;
+    private final LongAdder[] counts;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        this(DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param buckets Upper bounds of the buckets in seconds in ascending order.
+     */
+    public Histogram(double[] buckets) {
+        this.buckets = buckets.clone();
+        this.counts = new LongAdder[buckets.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void observeNanos(long nanos) {
+        double sec = nanos / 1e9;
+        for (int i = 0; i < buckets.length; i++) {
+            if (sec <= buckets[i]) {
+                counts[i].increment();
+                break;
+            }
+        }
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Sum of the observations in seconds. */
+    public double getSum() {
+        return sumNanos.sum() / 1e9;
+    }
+
+    /** Average of the observations in milliseconds. */
+    public double getAverageMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : sumNanos.sum() / 1e6 / n;
+    }
+
+    /**
+     * Writes the histogram in Prometheus text format.
+     *
+     * @param sb     Output.
+     * @param name   Metric name.
+     * @param labels Labels without braces (e.g. org="a",channel="b").
+     */
+    void write(StringBuilder sb, String name, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += counts[i].sum();
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(buckets[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(getCount()).append('\n');
+        sb.append(name).append("_sum{").append(labels).append("} ").append(getSum()).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(getCount()).append('\n');
+    }
+}
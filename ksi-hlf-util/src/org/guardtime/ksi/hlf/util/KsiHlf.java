@@ -29,22 +29,22 @@ import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.System;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import org.apache.commons.cli.*;
 
 import org.hyperledger.fabric.sdk.BlockEvent;
 import org.hyperledger.fabric.gateway.Gateway;
 import org.hyperledger.fabric.gateway.Network;
 
-import com.guardtime.ksi.unisignature.KSISignature;
-import com.guardtime.ksi.Signer;
-import com.guardtime.ksi.hashing.HashAlgorithm;
-
-import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.contract.api.BlockCoverage;
 import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
-import org.guardtime.ksi.hlf.contract.api.BlockHelper;
 
 public class KsiHlf {
     private static Options options;
@@ -75,6 +75,7 @@ public class KsiHlf {
         Option oConf = new Option("c", "conf", true, "Configuration file.");
         Option oLogcmd = new Option("logcmd", false, "Log to stdout.");
         Option oLog = new Option("log", true, "Log to file.");
+        Option oMetrics = new Option("metrics", true, "Serve metrics in Prometheus format on local port.");
         Option oHelp = new Option("h", "help", false, "Displayes this help.");
 
         oConf.setRequired(true);
@@ -82,6 +83,7 @@ public class KsiHlf {
         options.addOption(oConf);
         options.addOption(oLogcmd);
         options.addOption(oLog);
+        options.addOption(oMetrics);
         options.addOption(oHelp);
 
         try {
@@ -123,7 +125,18 @@ public class KsiHlf {
             }
 
             // Use every conf to setup a network listener for
-            // new blocks commited to the ledger.
+            // new blocks commited to the ledger. Every conf is
+            // served by its own supervised task.
+            Lifecycle lifecycle = new Lifecycle(logger).installShutdownHook();
+            TaskSupervisor supervisor = new TaskSupervisor(logger, lifecycle);
+            lifecycle.addResource(supervisor);
+            Conf.applyHttpKeepAliveCache(conf);
+            conf.forEach(c -> lifecycle.addResource(c));
+
+            // Metrics are available over JMX, optionally also over HTTP.
+            if (cmd.hasOption("metrics")) {
+                lifecycle.addResource(new MetricsServer(Integer.parseInt(cmd.getOptionValue("metrics")), logger).start());
+            }
             conf.forEach(c -> {
                 Logger subLogger = Logger.getLogger(logger.getName() + "." + c.getCommitOrg());
                 if (c.isDisabled()) {
@@ -131,30 +144,36 @@ public class KsiHlf {
                     return;
                 }
 
-                new SignTask(c, subLogger).run();
-
+                supervisor.start(c.getCommitOrg() + "/" + c.getNetwork(), new SignTask(c, subLogger, supervisor.getScheduler(), lifecycle), true);
             });
 
-            while (true)
-                ;
+            // Park until shutdown is requested.
+            lifecycle.awaitStop();
         } catch (Exception e) {
             // e.printStackTrace();
             logger.log(Level.INFO, "Unable to run KsiHlf!", e);
             System.exit(-1);
         }
-
-        while (true)
-            ;
     }
 }
 
 class SignTask extends Thread {
     private Conf c;
     private Logger log;
+    private ScheduledExecutorService scheduler;
+    private Lifecycle lifecycle;
+    private long height;
+    private Outbox outbox;
+    private AutoExtender extender;
+
+    /* Interval in seconds for resubmitting signatures from the outbox. */
+    private static final long RESUBMIT_INTERVAL = 1;
 
-    public SignTask(Conf c, Logger log) {
+    public SignTask(Conf c, Logger log, ScheduledExecutorService scheduler, Lifecycle lifecycle) {
         this.c = c;
         this.log = log;
+        this.scheduler = scheduler;
+        this.lifecycle = lifecycle;
     }
 
     @Override
@@ -169,67 +188,165 @@ class SignTask extends Thread {
         log.log(Level.INFO, "Read wallet info from: " + c.getWalletPath());
         log.log(Level.INFO, "Using connection profile " + c.getConnectionProfile());
         log.log(Level.INFO, "Using connection profile " + c.getUser());
+        lifecycle.register();
         try (Gateway gateway = c.getGateway()) {
-            // Add handler for kill -9
-            Runtime.getRuntime().addShutdownHook(new Thread() {
-                @Override
-                public void run() {
-                    log.log(Level.INFO, "Closing Gateway");
-                    gateway.close();
-                };
-            });
-
             // Access PaperNet network
 
             log.log(Level.INFO, "Use network channel: " + c.getNetwork());
             Network network = gateway.getNetwork(c.getNetwork());
-
-            network.addBlockListener((BlockEvent be) -> {
-                /* HF has hardcoded hashig algorithm?? */
-                BlockHelper bh = new BlockHelper(be, HashAlgorithm.SHA2_256);
-                KsiContractApi ksicontract = new KsiContractApi(network);
-
-                if (bh.isOnlyKsiTransaction()) {
-                    log.log(Level.INFO, "Ignoring block " + be.getBlockNumber() + " with only KSI transaction!");
-                    return;
+            KsiContractApi ksicontract = new KsiContractApi(network);
+            Checkpoint checkpoint = openCheckpoint(network);
+            outbox = openOutbox();
+
+            SignPipeline pipeline = new SignPipeline(c, "live", false, ksicontract, scheduler,
+                checkpoint, outbox, log);
+            SignPipeline catchup = null;
+            if (c.getExtendInterval() > 0) {
+                extender = new AutoExtender(c, ksicontract, c.getUnextendedPath(), log).start();
+                pipeline.addCommitListener(extender::track);
+            }
+            AtomicReference<Consumer<BlockEvent>> catchupListener = new AtomicReference<>();
+            Consumer<BlockEvent> listener;
+
+            /* Block listener only feeds the pipeline, so event delivery is not blocked by network calls. */
+            if (checkpoint == null) {
+                listener = network.addBlockListener((BlockEvent be) -> pipeline.accept(be));
+            } else {
+                long height = this.height;
+                listener = network.addBlockListener(height, (BlockEvent be) -> {
+                    if (checkpoint.claim(be.getBlockNumber())) pipeline.accept(be);
+                });
+
+                long from = checkpoint.getHighWaterMark() + 1;
+                if (from < height) {
+                    log.log(Level.INFO, "Catching up unsigned blocks " + from + " - " + (height - 1) + ".");
+                    SignPipeline lane = new SignPipeline(c, "catchup", true, ksicontract, scheduler, checkpoint, outbox, log);
+                    if (extender != null) {
+                        lane.addCommitListener(extender::track);
+                    }
+                    catchup = lane;
+                    BlockCoverage coverage = getCoverage(ksicontract, from, height - 1);
+
+                    /* Replay listener is removed as soon as the backlog has been delivered. */
+                    catchupListener.set(network.addBlockListener(from, (BlockEvent be) -> {
+                        long blockNr = be.getBlockNumber();
+                        if (blockNr < height && checkpoint.claim(blockNr)) {
+                            /* Blocks already in the ledger (e.g. signed before the checkpoint was stored) are not signed again. */
+                            if (coverage != null && coverage.isSigned(blockNr)) {
+                                checkpoint.done(blockNr);
+                            } else {
+                                lane.accept(be);
+                            }
+                        }
+                        if (blockNr >= height - 1) {
+                            Consumer<BlockEvent> l = catchupListener.getAndSet(null);
+                            if (l != null) {
+                                log.log(Level.INFO, "All catch-up blocks delivered.");
+                                scheduler.execute(() -> network.removeBlockListener(l));
+                            }
+                        }
+                    }));
                 }
+            }
+            log.log(Level.FINE, "Block Event Listener added.");
 
-                KsiWrapper sig;
-                try {
-                    log.log(Level.INFO, "Block: " + be.getBlockNumber());
-                    log.log(Level.INFO, "  Hash to be signed: " + bh.getRootHash() + "(lvl:" + bh.getLevel() + ")");
-                    log.log(Level.FINE, "  RecHash: " + Arrays.toString(bh.getRecordHashes()));
-
-                    // System.out.println("======= DATA =======");
-                    // System.out.println(be.getBlock().getData().getData(0).toStringUtf8());
-                    // System.out.println("======= DATA =======");
-
-                    sig = signBlock(bh, be.getBlockNumber());
-                    log.log(Level.INFO,
-                            "  Pushing KSI[" + be.getBlockNumber() + "] " + sig.getKsi().getAggregationTime());
-                    ksicontract.pushSignature(sig);
-                } catch (Exception e) {
-                    log.log(Level.SEVERE, "  Signing failed!", e);
-                    log.log(Level.SEVERE, e.getMessage());
-                    log.log(Level.SEVERE, e.toString());
+            // Park until shutdown is requested, then drain the pipeline before closing the gateway.
+            // Meanwhile resubmit the signatures from the outbox.
+            try {
+                while (!lifecycle.awaitStop(RESUBMIT_INTERVAL, TimeUnit.SECONDS)) {
+                    pipeline.resubmit();
                 }
-            });
-            log.log(Level.FINE, "Block Event Listener added.");
-            // DO not exit and close the thread.
-            while (true)
-                ;
+            } finally {
+                network.removeBlockListener(listener);
+                Consumer<BlockEvent> l = catchupListener.getAndSet(null);
+                if (l != null) {
+                    network.removeBlockListener(l);
+                }
+                log.log(Level.INFO, "Closing signing pipeline");
+                if (catchup != null) {
+                    catchup.close();
+                }
+                pipeline.close();
+                if (checkpoint != null) {
+                    log.log(Level.INFO, "High-water mark: " + checkpoint.getHighWaterMark());
+                }
+                log.log(Level.INFO, "Closing Gateway");
+            }
+        } catch (InterruptedException e) {
+            log.log(Level.WARNING, "Interrupted!");
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            log.log(Level.SEVERE, "Failure to setup block listener!", e);
+            /* Let the supervisor to restart the task. */
+            throw new IllegalStateException("Failure to setup block listener!", e);
+        } finally {
+            if (extender != null) {
+                log.log(Level.INFO, "Closing auto-extender (" + extender.getPendingCount() + " signature(s) unextended)");
+                extender.close();
+                extender = null;
+            }
+            if (outbox != null) {
+                log.log(Level.INFO, "Closing outbox (" + outbox.getPendingCount() + " signature(s) pending)");
+                outbox.close();
+                outbox = null;
+            }
+            lifecycle.deregister();
         }
     }
 
-    private KsiWrapper signBlock(BlockHelper bh, long blockNr) throws Exception {
+    /**
+     * Opens the outbox and replays the signatures that were not committed.
+     *
+     * @return Outbox or null if outbox is disabled.
+     */
+    private Outbox openOutbox() throws IOException {
+        Path path = c.getOutboxPath();
+        if (path == null) {
+            return null;
+        }
+
+        Outbox ret = new Outbox(path, c.getOutboxSegmentSize(), c.getOutboxMinRetryDelay(), c.getOutboxMaxRetryDelay(), log);
+        ret.open();
+        log.log(Level.INFO, "Using outbox " + path + " (" + ret.getPendingCount() + " signature(s) pending).");
+        return ret;
+    }
+
+    /**
+     * Gets the blocks of the catch-up range that are already signed.
+     *
+     * @return BlockCoverage or null if the contract does not support it.
+     */
+    private BlockCoverage getCoverage(KsiContractApi ksicontract, long from, long to) {
         try {
-            Signer signer = this.c.getSigner();
-            KSISignature sig = signer.sign(bh.getRootHash(), bh.getLevel());
-            return KsiWrapper.newFromKSI(sig, bh.getRecordHashes(), blockNr, c.getCommitOrg());
+            BlockCoverage coverage = ksicontract.getCoverage(from, to, c.getCommitOrg(), false);
+            log.log(Level.INFO, "Catch-up coverage of " + coverage + ".");
+            return coverage;
         } catch (Exception e) {
-            throw e;
+            log.log(Level.WARNING, "Unable to get catch-up coverage, signing all the blocks: " + e.getMessage());
+            return null;
         }
     }
+
+    /**
+     * Loads the high-water mark of signed blocks and the current height of the channel.
+     * When there is no checkpoint yet, signing starts from the current height.
+     *
+     * @return Checkpoint or null if checkpointing is disabled.
+     */
+    private Checkpoint openCheckpoint(Network network) throws Exception {
+        Path path = c.getCheckpointPath();
+        if (path == null) {
+            return null;
+        }
+
+        Checkpoint checkpoint = new Checkpoint(path, log);
+        this.height = network.getChannel().queryBlockchainInfo().getHeight();
+
+        if (!checkpoint.load()) {
+            log.log(Level.INFO, "No checkpoint found at " + path + ", starting from block " + height + ".");
+            checkpoint.reset(height - 1);
+        }
+
+        log.log(Level.INFO, "Using checkpoint " + path + " (high-water mark " + checkpoint.getHighWaterMark() + ", height " + height + ").");
+        return checkpoint;
+    }
 }
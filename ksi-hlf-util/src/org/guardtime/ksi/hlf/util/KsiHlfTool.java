@@ -48,9 +48,10 @@ public class KsiHlfTool {
     private static void printHelp() {
         String name = KsiHlfTool.class.getName();
         System.out.println("Usage:");
-        System.out.println("  " + name + " -verify -c <conf> -f <first block> [-l <last block>]");
+        System.out.println("  " + name + " -verify -c <conf> -f <first block> [-l <last block>] [-blockfiles <path>] [-anchor-stride <n>]");
         System.out.println("  " + name + " -extend -c <conf> -f <first block> [-l <last block>]");
         System.out.println("  " + name + " -sign   -c <conf> -f <first block> [-l <last block>]");
+        System.out.println("  " + name + " -txproof -c <conf> -f <first block> [-l <last block>] [-tx <index>] [-o <dir>]");
         System.out.println("");
         System.out.println("Guardtime's KSI Blockchain is an industrial scale blockchain platform that");
         System.out.println("cryptographically ensures data integrity and proves time of existence. The KSI");
@@ -79,7 +80,9 @@ public class KsiHlfTool {
         OptionGroup command = new OptionGroup()
                 .addOption(Option.builder().longOpt("verify").hasArg(false).desc("Verify blocks.").build())
                 .addOption(Option.builder().longOpt("extend").hasArg(false).desc("Extend blocks.").build())
-                .addOption(Option.builder().longOpt("sign").hasArg(false).desc("Resign blocks.").build());
+                .addOption(Option.builder().longOpt("sign").hasArg(false).desc("Resign blocks.").build())
+                .addOption(Option.builder().longOpt("txproof").hasArg(false)
+                        .desc("Extract transaction proofs from blocks signed with transaction aggregation.").build());
 
         OptionGroup policy = new OptionGroup()
                 .addOption(Option.builder().longOpt("ver-int").hasArg(false).desc("Perform internal verification.")
@@ -102,6 +105,10 @@ public class KsiHlfTool {
         Option oHelp = new Option("h", "help", false, "Displayes this help.");
         Option oFirst = new Option("f", "first", true, "First block to process.");
         Option oLast = new Option("l", "last", true, "Last block to process.");
+        Option oTx = Option.builder().longOpt("tx").hasArg(true).desc("Index of the transaction in block (default all).").build();
+        Option oOut = new Option("o", "out", true, "Output directory for transaction proofs.");
+        Option oBlockFiles = Option.builder().longOpt("blockfiles").hasArg(true)
+                .desc("Read blocks and signatures from peer block files (chains/<channel>) or block snapshot instead of the gateway (only with -verify and -txproof).").build();
 
         oConf.setRequired(true);
         oFirst.setRequired(true);
@@ -114,6 +121,11 @@ public class KsiHlfTool {
         options.addOption(oHelp);
         options.addOption(oFirst);
         options.addOption(oLast);
+        options.addOption(oTx);
+        options.addOption(oOut);
+        options.addOption(oBlockFiles);
+        options.addOption(Option.builder().longOpt("anchor-stride").hasArg(true)
+                .desc("Verify the header chain and the KSI signature only on the first signed block after every n blocks and on the latest signed block.").build());
         options.addOption(oPubStr);
         options.addOption(oPermitExtend);
         options.addOptionGroup(policy);
@@ -134,11 +146,16 @@ public class KsiHlfTool {
         logger.setLevel(Level.FINER);
         logger.setUseParentHandlers(false);
 
-        if (!(cmd.hasOption("verify") || cmd.hasOption("extend") || cmd.hasOption("sign"))) {
+        if (!(cmd.hasOption("verify") || cmd.hasOption("extend") || cmd.hasOption("sign") || cmd.hasOption("txproof"))) {
             printHelp();
             System.exit(1);
         }
 
+        if (cmd.hasOption("blockfiles") && (cmd.hasOption("sign") || cmd.hasOption("extend"))) {
+            System.out.println("Option -blockfiles can only be used with -verify and -txproof!");
+            System.exit(1);
+        }
+
         String cnfFile = cmd.getOptionValue("conf");
 
         try {
@@ -158,8 +175,13 @@ public class KsiHlfTool {
                 logger.addHandler(h);
             }
 
-            // Use every conf to setup a network listener for new blocks commited to
-            // the ledger.
+            // Use every conf to process the blocks. Every conf is processed
+            // concurrently by its own task.
+            Lifecycle lifecycle = new Lifecycle(logger).installShutdownHook();
+            TaskSupervisor supervisor = new TaskSupervisor(logger, lifecycle);
+            lifecycle.addResource(supervisor);
+            Conf.applyHttpKeepAliveCache(conf);
+            conf.forEach(c -> lifecycle.addResource(c));
             conf.forEach(c -> {
                 Logger subLogger = Logger.getLogger(logger.getName() + "." + c.getCommitOrg());
                 if (c.isDisabled()) {
@@ -168,21 +190,30 @@ public class KsiHlfTool {
                 }
 
                 try {
+                    ToolTask task = null;
                     if (cmd.hasOption("sign")) {
-                        new ToolTaskSign(c, subLogger, cmd).run();
+                        task = new ToolTaskSign(c, subLogger, cmd, lifecycle);
                     } else if (cmd.hasOption("extend")) {
-                        new ToolTaskExtend(c, subLogger, cmd).run();
+                        task = new ToolTaskExtend(c, subLogger, cmd, lifecycle);
                     } else if (cmd.hasOption("verify")) {
-                        new ToolTaskVerify(c, subLogger, cmd).run();
+                        task = new ToolTaskVerify(c, subLogger, cmd, lifecycle);
+                    } else if (cmd.hasOption("txproof")) {
+                        task = new ToolTaskTxProof(c, subLogger, cmd, lifecycle);
                     } else {
 
                     }
+
+                    if (task != null) {
+                        supervisor.start(c.getCommitOrg() + "/" + c.getNetwork(), task, false);
+                    }
                 } catch (Exception e) {
                     logger.log(Level.SEVERE, "Unexpected: Unable to init task!", e);
                 }
 
             });
 
+            supervisor.awaitTermination();
+
         } catch (Exception e) {
             // e.printStackTrace();
             logger.log(Level.INFO, "Unable to run KsiHlfTool!", e);
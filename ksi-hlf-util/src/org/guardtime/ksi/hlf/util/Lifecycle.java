@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lifecycle manages the orderly shutdown of the tools. Instead of busy looping,
+ * threads that must stay alive park on {@link #awaitStop()}. Tasks that have work
+ * to finish before exit (e.g. draining in-flight signatures and closing the gateway)
+ * register themselves as participants and the shutdown waits until they deregister.
+ * After that the registered resources are closed in reverse order.
+ *
+ * A single JVM shutdown hook is used to trigger the shutdown.
+ */
+class Lifecycle {
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 60;
+
+    private final Logger log;
+    private final long shutdownTimeout;
+    private final CountDownLatch stopRequested = new CountDownLatch(1);
+    private final AtomicBoolean shutdownStarted = new AtomicBoolean();
+    private final Phaser participants = new Phaser(1);
+    private final Deque<AutoCloseable> resources = new ArrayDeque<>();
+
+    public Lifecycle(Logger log) {
+        this(log, DEFAULT_SHUTDOWN_TIMEOUT);
+    }
+
+    /**
+     * @param log             Logger.
+     * @param shutdownTimeout Max time in seconds to wait participants to finish.
+     */
+    public Lifecycle(Logger log, long shutdownTimeout) {
+        this.log = log;
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * Installs JVM shutdown hook (e.g. SIGTERM, SIGINT) that performs the shutdown.
+     */
+    public Lifecycle installShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "ksihlf-shutdown"));
+        return this;
+    }
+
+    /**
+     * Registers a participant. Shutdown waits until participant calls {@link #deregister()}.
+     */
+    public void register() {
+        participants.register();
+    }
+
+    public void deregister() {
+        participants.arriveAndDeregister();
+    }
+
+    /**
+     * Registers a resource to be closed after all the participants have finished.
+     * Resources are closed in reverse order of the registration.
+     */
+    public void addResource(AutoCloseable resource) {
+        synchronized (resources) {
+            resources.push(resource);
+        }
+    }
+
+    public boolean isStopping() {
+        return stopRequested.getCount() == 0;
+    }
+
+    /**
+     * Parks the calling thread until the stop is requested.
+     */
+    public void awaitStop() throws InterruptedException {
+        stopRequested.await();
+    }
+
+    /**
+     * Parks the calling thread until the stop is requested or timeout elapses.
+     *
+     * @return true if the stop was requested.
+     */
+    public boolean awaitStop(long timeout, TimeUnit unit) throws InterruptedException {
+        return stopRequested.await(timeout, unit);
+    }
+
+    /**
+     * Requests stop, waits until the participants have finished and closes the resources.
+     */
+    public void shutdown() {
+        if (!shutdownStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        log.log(Level.INFO, "Shutting down.");
+        stopRequested.countDown();
+
+        try {
+            int phase = participants.arrive();
+            participants.awaitAdvanceInterruptibly(phase, shutdownTimeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            log.log(Level.WARNING, "Tasks did not finish within " + shutdownTimeout + "s!");
+        } catch (InterruptedException e) {
+            log.log(Level.WARNING, "Interrupted while waiting tasks to finish!");
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (resources) {
+            while (!resources.isEmpty()) {
+                AutoCloseable r = resources.pop();
+                try {
+                    r.close();
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Unable to close resource!", e);
+                }
+            }
+        }
+        log.log(Level.INFO, "Shutdown complete.");
+    }
+}
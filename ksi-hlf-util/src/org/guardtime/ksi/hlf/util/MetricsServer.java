@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * MetricsServer serves the metrics of all organizations and channels in
+ * Prometheus text format on path /metrics. The server is bound to the loopback
+ * interface only.
+ */
+class MetricsServer implements AutoCloseable {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final Logger log;
+
+    /**
+     * @param port Local port to listen on.
+     * @param log  Logger.
+     */
+    public MetricsServer(int port, Logger log) throws IOException {
+        if (port < 1 || port > 65535) throw new IllegalArgumentException("Invalid metrics port " + port + "!");
+
+        this.log = log;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", this::handle);
+    }
+
+    public MetricsServer start() {
+        server.start();
+        log.log(Level.INFO, "Serving metrics on " + server.getAddress() + "/metrics");
+        return this;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            if (!"GET".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body;
+            try {
+                body = SignMetrics.writePrometheus(SignMetrics.all()).getBytes(UTF_8);
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Unable to render metrics!", e);
+                ex.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            /* Headers are sent, so a failure while writing can only be logged. */
+            ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(body);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to serve metrics!", e);
+        } finally {
+            ex.close();
+        }
+    }
+}
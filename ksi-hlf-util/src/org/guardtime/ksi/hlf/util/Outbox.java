@@ -0,0 +1,415 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+
+/**
+ * Outbox is a durable local journal of KSI signatures that are waiting to be
+ * committed to the ledger. A signature is journaled before it is submitted and
+ * acknowledged after the submit has succeeded. Signatures that fail to be
+ * submitted are kept in the outbox and handed out for resubmission with
+ * exponential backoff. On start, the signatures that were not acknowledged are
+ * replayed from the journal, so a failed submit or a crash never requires
+ * re-signing of the block.
+ *
+ * The journal is a sequence of fixed size memory-mapped segment files. Records
+ * are only appended:
+ * <pre>
+ * [int length][byte type][long id][payload][int crc32]
+ * </pre>
+ * where type is PUT (payload is serialized KsiWrapper) or ACK (empty payload).
+ * Zero length marks the end of the written data in a segment. A torn record is
+ * detected by the checksum and ends the replay of the segment. Segments are
+ * deleted oldest first, as soon as all their signatures are acknowledged.
+ *
+ * Records are not forced to disk one by one. Call {@link #sync()} after
+ * journaling a batch of signatures, so a single fsync covers the whole batch.
+ */
+class Outbox implements AutoCloseable {
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final int TRAILER_SIZE = 4;
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long minRetryDelay;
+    private final long maxRetryDelay;
+    private final Logger log;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<Long, Entry> pending = new LinkedHashMap<>();
+    private Segment current;
+    private long nextId;
+    private boolean dirty;
+
+    /**
+     * Signature in the outbox.
+     */
+    static class Entry {
+        private final long id;
+        private final KsiWrapper sig;
+        private final Segment segment;
+        private int attempts;
+        private long nextAttempt;
+        private boolean inFlight;
+
+        private Entry(long id, KsiWrapper sig, Segment segment) {
+            this.id = id;
+            this.sig = sig;
+            this.segment = segment;
+            this.nextAttempt = System.nanoTime();
+        }
+
+        public KsiWrapper getSignature() {
+            return this.sig;
+        }
+
+        public int getAttempts() {
+            return this.attempts;
+        }
+    }
+
+    private static class Segment {
+        private final long nr;
+        private final Path path;
+        private final FileChannel channel;
+        private MappedByteBuffer buf;
+        private int live;
+
+        Segment(long nr, Path path, FileChannel channel, MappedByteBuffer buf) {
+            this.nr = nr;
+            this.path = path;
+            this.channel = channel;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * @param dir           Directory of the segment files.
+     * @param segmentSize   Size of a segment file in bytes.
+     * @param minRetryDelay Delay in milliseconds before the first resubmission.
+     * @param maxRetryDelay Max delay in milliseconds between resubmissions.
+     * @param log           Logger.
+     */
+    public Outbox(Path dir, int segmentSize, long minRetryDelay, long maxRetryDelay, Logger log) {
+        if (dir == null) throw new NullPointerException("Outbox directory must not be null!");
+        if (segmentSize < 1024) throw new IllegalArgumentException("Outbox segment size must be at least 1024 bytes!");
+        if (minRetryDelay < 0) throw new IllegalArgumentException("Min retry delay must not be negative!");
+        if (maxRetryDelay < minRetryDelay) throw new IllegalArgumentException("Max retry delay must not be smaller than min retry delay!");
+
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.minRetryDelay = minRetryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.log = log;
+    }
+
+    /**
+     * Opens the outbox and replays the existing segments. Signatures that were not
+     * acknowledged are due for resubmission immediately.
+     *
+     * @return Count of signatures replayed from the journal.
+     */
+    public synchronized int open() throws IOException {
+        Files.createDirectories(dir);
+
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), p);
+                } catch (NumberFormatException e) {
+                    log.log(Level.WARNING, "Ignoring unexpected file " + p + " in outbox!");
+                }
+            }
+        }
+
+        long lastNr = 0;
+        for (Map.Entry<Long, Path> f : files.entrySet()) {
+            Segment s = map(f.getKey(), f.getValue(), true);
+            segments.add(s);
+            replay(s);
+            lastNr = f.getKey();
+        }
+
+        /* Always continue in a new segment, the tail of the last one may be torn. */
+        current = map(lastNr + 1, segmentPath(lastNr + 1), false);
+        segments.add(current);
+        releaseSegments();
+
+        if (!pending.isEmpty()) {
+            log.log(Level.INFO, "Replayed " + pending.size() + " unacknowledged signature(s) from outbox " + dir + ".");
+        }
+        return pending.size();
+    }
+
+    /**
+     * Appends the signature to the journal. The record is durable after the next {@link #sync()}.
+     */
+    public synchronized Entry put(KsiWrapper sig) throws IOException {
+        if (sig == null) throw new NullPointerException("Signature must not be null!");
+        if (current == null) throw new IllegalStateException("Outbox is not open!");
+
+        long id = nextId++;
+        Segment s = append(TYPE_PUT, id, sig.serialize());
+        Entry e = new Entry(id, sig, s);
+        e.inFlight = true;
+        s.live++;
+        pending.put(id, e);
+        return e;
+    }
+
+    /**
+     * Forces the appended records to the disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (dirty && current != null) {
+            current.buf.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Acknowledges that the signature was committed to the ledger.
+     */
+    public synchronized void ack(Entry e) {
+        if (pending.remove(e.id) == null) {
+            return;
+        }
+
+        try {
+            append(TYPE_ACK, e.id, new byte[0]);
+        } catch (IOException ex) {
+            /* Worst case the signature is pushed once more after restart. */
+            log.log(Level.WARNING, "Unable to journal acknowledgement of block " + e.sig.getBlockNumber() + " signature!", ex);
+        }
+
+        e.segment.live--;
+        releaseSegments();
+    }
+
+    /**
+     * Returns the signature to the outbox to be resubmitted after backoff delay.
+     */
+    public synchronized void failed(Entry e) {
+        if (!pending.containsKey(e.id)) {
+            return;
+        }
+
+        long delay = minRetryDelay << Math.min(e.attempts, 30);
+        e.attempts++;
+        e.nextAttempt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(Math.max(delay, 0), maxRetryDelay));
+        e.inFlight = false;
+    }
+
+    /**
+     * Returns signatures whose backoff delay has passed and marks them as being resubmitted.
+     *
+     * @param max Max count of signatures returned.
+     */
+    public synchronized List<Entry> due(int max) {
+        List<Entry> ret = new ArrayList<>();
+        long now = System.nanoTime();
+
+        for (Entry e : pending.values()) {
+            if (ret.size() >= max) {
+                break;
+            }
+
+            if (!e.inFlight && e.nextAttempt - now <= 0) {
+                e.inFlight = true;
+                ret.add(e);
+            }
+        }
+        return ret;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            sync();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to sync outbox " + dir + "!", e);
+        }
+
+        for (Segment s : segments) {
+            try {
+                s.channel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to close outbox segment " + s.path + "!", e);
+            }
+            s.buf = null;
+        }
+        segments.clear();
+        current = null;
+    }
+
+    private Segment append(byte type, long id, byte[] payload) throws IOException {
+        int size = HEADER_SIZE + payload.length + TRAILER_SIZE;
+        if (size + 4 > segmentSize) {
+            throw new IOException("Outbox record of " + size + " bytes does not fit into segment of " + segmentSize + " bytes!");
+        }
+
+        if (current.buf.remaining() < size + 4) {
+            /* Make the full segment durable before moving on. */
+            current.buf.force();
+            current = map(current.nr + 1, segmentPath(current.nr + 1), false);
+            segments.add(current);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(longToBytes(id));
+        crc.update(payload);
+
+        /* Length is written last, so a partially written record stays invisible. */
+        MappedByteBuffer buf = current.buf;
+        int start = buf.position();
+        buf.position(start + 4);
+        buf.put(type);
+        buf.putLong(id);
+        buf.put(payload);
+        buf.putInt((int) crc.getValue());
+        buf.putInt(start, payload.length + 1);
+
+        dirty = true;
+        return current;
+    }
+
+    private void replay(Segment s) {
+        MappedByteBuffer buf = s.buf;
+
+        while (buf.remaining() >= HEADER_SIZE + TRAILER_SIZE) {
+            int start = buf.position();
+            int len = buf.getInt();
+            if (len <= 0 || len - 1 + HEADER_SIZE - 4 + TRAILER_SIZE > buf.remaining()) {
+                buf.position(start);
+                break;
+            }
+
+            byte type = buf.get();
+            long id = buf.getLong();
+            byte[] payload = new byte[len - 1];
+            buf.get(payload);
+            int stored = buf.getInt();
+
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(longToBytes(id));
+            crc.update(payload);
+            if ((int) crc.getValue() != stored) {
+                log.log(Level.WARNING, "Torn record at " + start + " in outbox segment " + s.path + ", ignoring the rest of the segment.");
+                buf.position(start);
+                break;
+            }
+
+            nextId = Math.max(nextId, id + 1);
+            if (type == TYPE_PUT) {
+                try {
+                    Entry e = new Entry(id, new KsiWrapper().parse(payload), s);
+                    s.live++;
+                    pending.put(id, e);
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Unable to parse signature " + id + " in outbox segment " + s.path + "!", ex);
+                }
+            } else if (type == TYPE_ACK) {
+                Entry e = pending.remove(id);
+                if (e != null) {
+                    e.segment.live--;
+                }
+            }
+        }
+    }
+
+    /* Deletes the oldest segments that have no unacknowledged signatures. */
+    private void releaseSegments() {
+        while (segments.size() > 1 && segments.peekFirst() != current && segments.peekFirst().live == 0) {
+            Segment s = segments.pollFirst();
+            try {
+                s.channel.close();
+                s.buf = null;
+                Files.deleteIfExists(s.path);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to delete outbox segment " + s.path + "!", e);
+            }
+        }
+    }
+
+    /*
+     * Maps the segment file. Existing segments are mapped at their file size, as they
+     * may have been written with different segment size. New segments get the
+     * configured segment size.
+     */
+    private Segment map(long nr, Path path, boolean existing) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = existing ? ch.size() : segmentSize;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Outbox segment " + path + " is too large to be mapped!");
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(nr, path, ch, buf);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private Path segmentPath(long nr) {
+        return dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nr, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] longToBytes(long v) {
+        byte[] b = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+        return b;
+    }
+}
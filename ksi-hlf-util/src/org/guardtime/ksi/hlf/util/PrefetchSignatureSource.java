@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.guardtime.ksi.hlf.contract.api.BlockSignature;
+import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
+import org.guardtime.ksi.hlf.contract.api.KsiContractUnsupportedException;
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+
+/**
+ * Signature source that fetches the signatures from the ledger in windows of
+ * consecutive blocks (see {@link KsiContractApi#getSignatures}) instead of one
+ * query per block. The window follows the direction of the requests, so walking
+ * the blocks backwards is also served from the window. Blocks outside of the range
+ * of the task are fetched one by one.
+ *
+ * If the installed contract does not support range queries, it falls back to
+ * single block queries. If a window can not be fetched for other reasons, the
+ * block is queried alone. Invalid signature of a block fails only that block.
+ */
+class PrefetchSignatureSource implements SignatureSource {
+    private final KsiContractApi contract;
+    private final long first;
+    private final long last;
+    private final int size;
+    private final Logger log;
+
+    private final Map<Long, BlockSignature> window = new HashMap<>();
+    private String windowOrg;
+    private long windowFrom = 0;
+    private long windowTo = -1;
+    private boolean unsupported = false;
+
+    /**
+     * @param contract  Contract API.
+     * @param first     First block of the task.
+     * @param last      Last block of the task.
+     * @param size      Count of blocks in a window.
+     * @param log       Logger.
+     */
+    public PrefetchSignatureSource(KsiContractApi contract, long first, long last, int size, Logger log) {
+        if (contract == null) throw new NullPointerException("Contract API must not be null!");
+        if (size < 1) throw new IllegalArgumentException("Prefetch size must be at least 1!");
+
+        this.contract = contract;
+        this.first = first;
+        this.last = last;
+        this.size = size;
+        this.log = log;
+    }
+
+    @Override
+    public KsiWrapper getSignature(long block, String org) throws Exception {
+        if (unsupported || block < first || block > last) {
+            return contract.getSignature(block, org);
+        }
+
+        if (block < windowFrom || block > windowTo || !org.equals(windowOrg)) {
+            /* Moving backwards from the current window, fill the window below the block. */
+            boolean backwards = org.equals(windowOrg) && windowFrom <= windowTo && block < windowFrom;
+            long from = backwards ? Math.max(first, block - size + 1) : block;
+            long to = backwards ? block : Math.min(last, block + size - 1);
+
+            try {
+                fill(from, to, org);
+            } catch (KsiContractUnsupportedException e) {
+                log.log(Level.WARNING, "Contract does not support range queries, getting KSI signatures one by one: " + e.getMessage());
+                unsupported = true;
+                return contract.getSignature(block, org);
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Unable to get KSI signatures of blocks " + from + ".." + to + " with single query, getting block " + block + " alone: " + e.getMessage());
+                log.log(Level.FINE, e.getMessage(), e);
+                return contract.getSignature(block, org);
+            }
+        }
+
+        BlockSignature sig = window.get(block);
+        return sig == null ? null : sig.getSignature();
+    }
+
+    private void fill(long from, long to, String org) {
+        window.clear();
+        windowOrg = null;
+
+        log.log(Level.FINE, "Prefetching KSI signatures of blocks " + from + ".." + to);
+        Iterator<BlockSignature> itr = contract.getSignatures(from, to, org, Math.min(size, KsiContractApi.DEFAULT_PAGE_SIZE));
+        while (itr.hasNext()) {
+            BlockSignature sig = itr.next();
+            window.put(sig.getBlockNumber(), sig);
+        }
+
+        windowOrg = org;
+        windowFrom = from;
+        windowTo = to;
+    }
+}
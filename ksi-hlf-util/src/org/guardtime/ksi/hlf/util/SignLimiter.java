@@ -0,0 +1,258 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * SignLimiter limits the requests sent to the KSI aggregator. It combines two
+ * controls:
+ * <ol>
+ * <li> token bucket - limits the request rate (requests per second) with a burst.
+ * <li> in-flight window - limits the count of concurrent requests.
+ * </ol>
+ * Both are adjusted in AIMD style: every successful request increases the window
+ * (by 1/window, so roughly by one per round trip) and the rate (by 1% of max rate).
+ * Throttle responses and requests slower than the latency target halve both of
+ * them, at most once per observed round trip. Neither grows above the configured
+ * maximum.
+ *
+ * Throttling is detected from the error messages of the exception chain: HTTP
+ * status 429/503 following "HTTP", "status" or "code" (e.g. "HTTP/1.1 503",
+ * "status code: 429"), "too many requests", "service unavailable", "rate limit",
+ * "throttle", "overload" or "quota". Bare numbers (e.g. block 429) do not match.
+ *
+ * With max rate 0 and max in-flight 0 the limiter is disabled and requests are
+ * passed through.
+ */
+class SignLimiter {
+    private static final double MIN_RATE = 0.1;
+    private static final Pattern THROTTLE_STATUS = Pattern.compile("\\b(?:http(?:/\\d\\.\\d)?|status|code)\\W{0,4}(?:429|503)(?!\\w|\\.\\d)");
+    private static final String[] THROTTLE_PATTERNS = {
+        "too many requests", "service unavailable", "rate limit", "throttl", "overload", "quota"
+    };
+
+    private final double maxRate;
+    private final int burst;
+    private final int maxInFlight;
+    private final long latencyTarget;
+    private final Logger log;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private double window;
+    private int inFlight;
+    private long lastDecrease;
+    private long throttled;
+
+    /**
+     * @param maxRate       Max request rate per second. Value 0 disables rate limiting.
+     * @param burst         Max count of requests sent at once when tokens have accumulated.
+     * @param maxInFlight   Max count of concurrent requests. Value 0 disables the window.
+     * @param latencyTarget Request latency in milliseconds that is treated as congestion.
+     *                      Value 0 disables latency based decrease.
+     * @param log           Logger.
+     */
+    public SignLimiter(double maxRate, int burst, int maxInFlight, long latencyTarget, Logger log) {
+        if (maxRate < 0) throw new IllegalArgumentException("Max rate must not be negative!");
+        if (burst < 1) throw new IllegalArgumentException("Burst must be at least 1!");
+        if (maxInFlight < 0) throw new IllegalArgumentException("Max in-flight must not be negative!");
+        if (latencyTarget < 0) throw new IllegalArgumentException("Latency target must not be negative!");
+
+        this.maxRate = maxRate;
+        this.burst = burst;
+        this.maxInFlight = maxInFlight;
+        this.latencyTarget = latencyTarget;
+        this.log = log;
+
+        this.rate = maxRate;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+        this.window = maxInFlight;
+        this.lastDecrease = System.nanoTime();
+    }
+
+    public boolean isEnabled() {
+        return maxRate > 0 || maxInFlight > 0;
+    }
+
+    /**
+     * Runs the signing request within the limits.
+     */
+    public <T> T call(Callable<T> request) throws Exception {
+        if (!isEnabled()) {
+            return request.call();
+        }
+
+        acquire();
+        long start = System.nanoTime();
+        try {
+            T ret = request.call();
+            release(System.nanoTime() - start, false);
+            return ret;
+        } catch (Exception e) {
+            release(System.nanoTime() - start, isThrottle(e));
+            throw e;
+        }
+    }
+
+    /** Current request rate limit per second (0 if rate is not limited). */
+    public double getRate() {
+        lock.lock();
+        try {
+            return this.rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Current in-flight window (0 if the window is disabled). */
+    public int getWindow() {
+        lock.lock();
+        try {
+            return (int) this.window;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return this.inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Count of throttle responses observed. */
+    public long getThrottled() {
+        lock.lock();
+        try {
+            return this.throttled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (!isEnabled()) {
+            return "unlimited";
+        }
+
+        lock.lock();
+        try {
+            return String.format("rate=%.1f/s window=%d in-flight=%d throttled=%d", rate, (int) window, inFlight, throttled);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the exception (or its cause) looks like a throttle response.
+     */
+    static boolean isThrottle(Throwable t) {
+        for (int depth = 0; t != null && depth < 10; t = t.getCause(), depth++) {
+            String msg = t.getMessage();
+            if (msg == null) continue;
+
+            msg = msg.toLowerCase();
+            for (String p : THROTTLE_PATTERNS) {
+                if (msg.contains(p)) return true;
+            }
+            if (THROTTLE_STATUS.matcher(msg).find()) return true;
+        }
+        return false;
+    }
+
+    private void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (maxInFlight > 0 && inFlight >= Math.max(1, (int) window)) {
+                    changed.await();
+                    continue;
+                }
+
+                if (maxRate > 0) {
+                    refill();
+                    if (tokens < 1) {
+                        long wait = (long) ((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+                        changed.awaitNanos(Math.max(wait, 1));
+                        continue;
+                    }
+                    tokens -= 1;
+                }
+
+                inFlight++;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long latency, boolean throttle) {
+        lock.lock();
+        try {
+            inFlight--;
+
+            boolean slow = latencyTarget > 0 && latency > TimeUnit.MILLISECONDS.toNanos(latencyTarget);
+            if (throttle) {
+                throttled++;
+            }
+
+            if (throttle || slow) {
+                /* Decrease at most once per round trip, concurrent requests report the same congestion. */
+                long now = System.nanoTime();
+                if (now - lastDecrease > latency) {
+                    lastDecrease = now;
+                    if (maxInFlight > 0) window = Math.max(1, window / 2);
+                    if (maxRate > 0) rate = Math.max(MIN_RATE, rate / 2);
+                    log.log(Level.WARNING, "Signing limits decreased due to " + (throttle ? "throttling" : "latency") + ": " + this);
+                }
+            } else {
+                if (maxInFlight > 0) window = Math.min(maxInFlight, window + 1 / window);
+                if (maxRate > 0) rate = Math.min(maxRate, rate + maxRate * 0.01);
+            }
+
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.guardtime.ksi.exceptions.KSIException;
+
+import org.guardtime.ksi.hlf.wrapper.ErrCodeEnum;
+import org.guardtime.ksi.hlf.wrapper.KsiWrapperException;
+
+/**
+ * SignMetrics collects the runtime metrics of the signing daemon for a single
+ * organization and channel. There is one instance per organization and channel
+ * (see {@link #get(String, String)}), so the metrics survive the restarts of the
+ * signing task. Every instance is registered as JMX MBean and is served in
+ * Prometheus text format by {@link MetricsServer}.
+ */
+public class SignMetrics implements SignMetricsMBean {
+    private static final Map<String, SignMetrics> REGISTRY = new ConcurrentSkipListMap<>();
+    private static final Logger LOG = Logger.getLogger("ksihlf");
+
+    private final String org;
+    private final String channel;
+
+    private final LongAdder blocksReceived = new LongAdder();
+    private final LongAdder blocksSkipped = new LongAdder();
+    private final LongAdder blocksSigned = new LongAdder();
+    private final LongAdder signaturesPushed = new LongAdder();
+    private final AtomicLong lastSignedBlock = new AtomicLong(-1);
+    private final Histogram signLatency = new Histogram();
+    private final Histogram pushLatency = new Histogram();
+    private final Histogram commitLag = new Histogram();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    /* Creation time (millis since epoch) of the blocks in the pipeline. */
+    private final Map<Long, Long> blockTimes = new ConcurrentHashMap<>();
+
+    private SignMetrics(String org, String channel) {
+        this.org = org;
+        this.channel = channel;
+    }
+
+    /**
+     * Returns metrics of the organization and channel. The metrics are created
+     * and registered in JMX on first use.
+     */
+    public static SignMetrics get(String org, String channel) {
+        return REGISTRY.computeIfAbsent(org + "/" + channel, k -> {
+            SignMetrics m = new SignMetrics(org, channel);
+            m.registerMBean();
+            return m;
+        });
+    }
+
+    public static Collection<SignMetrics> all() {
+        return new ArrayList<>(REGISTRY.values());
+    }
+
+    /**
+     * Records a block received from the ledger.
+     *
+     * @param blockNr Block number.
+     * @param created Creation time of the block in milliseconds since epoch.
+     */
+    public void received(long blockNr, long created) {
+        blocksReceived.increment();
+        blockTimes.put(blockNr, created);
+    }
+
+    public void skipped(long blockNr) {
+        blocksSkipped.increment();
+    }
+
+    public void signed(long blockNr, long nanos) {
+        blocksSigned.increment();
+        signLatency.observeNanos(nanos);
+    }
+
+    /**
+     * Records a push transaction of one or more signatures.
+     */
+    public void pushed(long nanos) {
+        pushLatency.observeNanos(nanos);
+    }
+
+    /**
+     * Records the signature of the block committed to the ledger.
+     */
+    public void committed(long blockNr) {
+        signaturesPushed.increment();
+        lastSignedBlock.accumulateAndGet(blockNr, Math::max);
+
+        Long created = blockTimes.remove(blockNr);
+        if (created != null) {
+            commitLag.observeNanos(Math.max(0, System.currentTimeMillis() - created) * 1000000L);
+        }
+    }
+
+    /**
+     * Forgets the block when its handling has finished.
+     */
+    public void done(long blockNr) {
+        blockTimes.remove(blockNr);
+    }
+
+    /**
+     * Records a failure in the stage. Error code is resolved from the exception chain.
+     */
+    public void failed(String stage, Throwable t) {
+        failed(stage, errCode(t));
+    }
+
+    public void failed(String stage, String code) {
+        failures.computeIfAbsent(stage + "/" + code, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Registers a gauge. Name may contain labels in Prometheus format, e.g. queue_depth{stage="sign"}.
+     */
+    public void setGauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    @Override
+    public String getOrg() {
+        return this.org;
+    }
+
+    @Override
+    public String getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public long getBlocksReceived() {
+        return blocksReceived.sum();
+    }
+
+    @Override
+    public long getBlocksSkipped() {
+        return blocksSkipped.sum();
+    }
+
+    @Override
+    public long getBlocksSigned() {
+        return blocksSigned.sum();
+    }
+
+    @Override
+    public long getSignaturesPushed() {
+        return signaturesPushed.sum();
+    }
+
+    @Override
+    public long getLastSignedBlock() {
+        return lastSignedBlock.get();
+    }
+
+    @Override
+    public double getSignLatencyAvgMillis() {
+        return signLatency.getAverageMillis();
+    }
+
+    @Override
+    public double getPushLatencyAvgMillis() {
+        return pushLatency.getAverageMillis();
+    }
+
+    @Override
+    public double getCommitLagAvgMillis() {
+        return commitLag.getAverageMillis();
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> ret = new TreeMap<>();
+        failures.forEach((k, v) -> ret.put(k, v.sum()));
+        return ret;
+    }
+
+    @Override
+    public Map<String, Double> getGauges() {
+        Map<String, Double> ret = new TreeMap<>();
+        gauges.forEach((k, v) -> ret.put(k, v.getAsDouble()));
+        return ret;
+    }
+
+    /**
+     * Writes metrics of all organizations and channels in Prometheus text format.
+     */
+    static String writePrometheus(Collection<SignMetrics> metrics) {
+        StringBuilder sb = new StringBuilder();
+
+        family(sb, "ksihlf_blocks_received_total", "counter", "Blocks received from the ledger.");
+        metrics.forEach(m -> m.sample(sb, "ksihlf_blocks_received_total", "", m.getBlocksReceived()));
+        family(sb, "ksihlf_blocks_skipped_total", "counter", "Blocks skipped as they contain only KSI transactions.");
+        metrics.forEach(m -> m.sample(sb, "ksihlf_blocks_skipped_total", "", m.getBlocksSkipped()));
+        family(sb, "ksihlf_blocks_signed_total", "counter", "Blocks signed with KSI.");
+        metrics.forEach(m -> m.sample(sb, "ksihlf_blocks_signed_total", "", m.getBlocksSigned()));
+        family(sb, "ksihlf_signatures_pushed_total", "counter", "KSI signatures committed to the ledger.");
+        metrics.forEach(m -> m.sample(sb, "ksihlf_signatures_pushed_total", "", m.getSignaturesPushed()));
+        family(sb, "ksihlf_last_signed_block", "gauge", "Highest block number whose signature was committed.");
+        metrics.forEach(m -> m.sample(sb, "ksihlf_last_signed_block", "", m.getLastSignedBlock()));
+
+        family(sb, "ksihlf_failures_total", "counter", "Failures by stage and error code.");
+        metrics.forEach(m -> m.failures.forEach((k, v) -> {
+            int i = k.indexOf('/');
+            m.sample(sb, "ksihlf_failures_total", "stage=\"" + k.substring(0, i) + "\",code=\"" + k.substring(i + 1) + "\"", v.sum());
+        }));
+
+        family(sb, "ksihlf_sign_latency_seconds", "histogram", "Latency of KSI signing.");
+        metrics.forEach(m -> m.signLatency.write(sb, "ksihlf_sign_latency_seconds", m.labels()));
+        family(sb, "ksihlf_push_latency_seconds", "histogram", "Latency of ledger push transactions.");
+        metrics.forEach(m -> m.pushLatency.write(sb, "ksihlf_push_latency_seconds", m.labels()));
+        family(sb, "ksihlf_commit_lag_seconds", "histogram", "Time from block creation to commit of its KSI signature.");
+        metrics.forEach(m -> m.commitLag.write(sb, "ksihlf_commit_lag_seconds", m.labels()));
+
+        /* Gauges are grouped by name. */
+        Map<String, StringBuilder> byName = new TreeMap<>();
+        metrics.forEach(m -> m.gauges.forEach((k, v) -> {
+            int i = k.indexOf('{');
+            String name = "ksihlf_" + (i < 0 ? k : k.substring(0, i));
+            String labels = i < 0 ? "" : k.substring(i + 1, k.length() - 1);
+            m.sample(byName.computeIfAbsent(name, n -> new StringBuilder()), name, labels, v.getAsDouble());
+        }));
+        byName.forEach((name, samples) -> {
+            family(sb, name, "gauge", "Current value of " + name + ".");
+            sb.append(samples);
+        });
+
+        return sb.toString();
+    }
+
+    private String labels() {
+        return "org=\"" + escape(org) + "\",channel=\"" + escape(channel) + "\"";
+    }
+
+    private void sample(StringBuilder sb, String name, String extra, double value) {
+        sb.append(name).append('{').append(labels());
+        if (!extra.isEmpty()) {
+            sb.append(',').append(extra);
+        }
+        sb.append("} ");
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static void family(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String escape(String s) {
+        return s == null ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String errCode(Throwable t) {
+        for (int depth = 0; t != null && depth < 10; t = t.getCause(), depth++) {
+            if (t instanceof KsiWrapperException && ((KsiWrapperException) t).getErr() != null) {
+                return ((KsiWrapperException) t).getErr().name();
+            }
+            if (t instanceof KSIException) {
+                return ErrCodeEnum.ERR_KSI.name();
+            }
+        }
+        return ErrCodeEnum.ERR_UNKNOWN.name();
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.guardtime.ksi.hlf:type=SignMetrics,org=" + ObjectName.quote(org) + ",channel=" + ObjectName.quote(channel));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Unable to register metrics MBean for " + org + "/" + channel + "!", e);
+        }
+    }
+}
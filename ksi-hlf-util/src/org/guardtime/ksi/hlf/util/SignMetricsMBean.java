@@ -0,0 +1,54 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.Map;
+
+/**
+ * JMX view of the signing daemon metrics of a single organization and channel.
+ */
+public interface SignMetricsMBean {
+    String getOrg();
+
+    String getChannel();
+
+    long getBlocksReceived();
+
+    long getBlocksSkipped();
+
+    long getBlocksSigned();
+
+    long getSignaturesPushed();
+
+    /** Highest block number whose signature was committed to the ledger, -1 if none. */
+    long getLastSignedBlock();
+
+    double getSignLatencyAvgMillis();
+
+    double getPushLatencyAvgMillis();
+
+    double getCommitLagAvgMillis();
+
+    /** Failure counts by stage and error code (e.g. "sign/ERR_KSI"). */
+    Map<String, Long> getFailures();
+
+    /** Current values of the gauges (queue depths, limiter state, outbox size). */
+    Map<String, Double> getGauges();
+}
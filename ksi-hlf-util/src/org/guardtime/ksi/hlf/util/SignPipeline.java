@@ -0,0 +1,593 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.guardtime.ksi.Signer;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import org.guardtime.ksi.hlf.contract.api.BlockHelper;
+import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
+import org.guardtime.ksi.hlf.contract.api.KsiContractUnsupportedException;
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.hyperledger.fabric.sdk.BlockInfo;
+
+/**
+ * SignPipeline decouples HLF block listener from KSI signing and ledger submit.
+ * Every block passes three stages with their own bounded queue and worker pool:
+ * <ol>
+ * <li> digest - computing of the block record hashes and local aggregation.
+ * <li> sign   - signing of the block root hash with KSI (optionally in batches).
+ * <li> submit - pushing the KSI signature to the ledger (optionally in batches).
+ * </ol>
+ * When a queue is full, backpressure policy "block" makes the producer to wait
+ * for free space and policy "drop" discards the block (it can be signed later by
+ * KsiHlfTool).
+ *
+ * The daemon runs a live lane for new blocks and optionally a catch-up lane for
+ * the blocks committed while it was down. Catch-up lane has its own smaller worker
+ * pools and always blocks on backpressure, so it does not starve the live lane.
+ * With checkpoint, a block is completed in the checkpoint only when its signature
+ * is committed to the ledger or journaled into the outbox (or the block needs no
+ * signature). Failed and dropped blocks are only released, so the high-water mark
+ * stays below them and they are replayed after restart.
+ *
+ * When outbox is used, signatures are journaled before they are pushed and the
+ * ones that failed are resubmitted by {@link #resubmit()}.
+ */
+class SignPipeline implements AutoCloseable {
+    static final String BACKPRESSURE_BLOCK = "block";
+    static final String BACKPRESSURE_DROP = "drop";
+
+    private final Conf c;
+    private final String lane;
+    private final boolean catchup;
+    private final Checkpoint checkpoint;
+    private final Outbox outbox;
+    private final Logger log;
+    private final KsiContractApi ksicontract;
+    private final Signer signer;
+    private final BlockBatchSigner batchSigner;
+    private final SignLimiter limiter;
+    private final SignMetrics metrics;
+    private final List<Consumer<KsiWrapper>> commitListeners = new CopyOnWriteArrayList<>();
+    private final Batcher<KsiWrapper> submitBatcher;
+    /* Set when the contract has no setKsiBatch, signatures are then pushed one by one. */
+    private volatile boolean batchUnsupported;
+
+    private final ThreadPoolExecutor digestStage;
+    private final ThreadPoolExecutor signStage;
+    private final ThreadPoolExecutor submitStage;
+    private final ScheduledFuture<?> reporter;
+
+    public SignPipeline(Conf c, KsiContractApi ksicontract, ScheduledExecutorService scheduler, Logger log) {
+        this(c, "live", false, ksicontract, scheduler, null, null, log);
+    }
+
+    /**
+     * @param c           Configuration containing pipeline parameters.
+     * @param lane        Name of the lane used in thread names and logging.
+     * @param catchup     If true, catch-up lane pool sizes and blocking backpressure are used.
+     * @param ksicontract Contract api used to push the signatures.
+     * @param scheduler   Scheduler used for periodic queue depth reporting.
+     * @param checkpoint  Checkpoint of the handled blocks. May be null.
+     * @param outbox      Journal of the signatures waiting for ledger commit. May be null.
+     * @param log         Logger.
+     */
+    public SignPipeline(Conf c, String lane, boolean catchup, KsiContractApi ksicontract,
+                        ScheduledExecutorService scheduler, Checkpoint checkpoint, Outbox outbox, Logger log) {
+        this.c = c;
+        this.lane = lane;
+        this.catchup = catchup;
+        this.checkpoint = checkpoint;
+        this.outbox = outbox;
+        this.log = log;
+        this.ksicontract = ksicontract;
+
+        if (c.getSignBatchSize() > 1) {
+            log.log(Level.INFO, "Signing blocks in batches of max " + c.getSignBatchSize() + " blocks within " + c.getSignBatchWindow() + "ms.");
+            this.batchSigner = new BlockBatchSigner(c.getSigningService(), HashAlgorithm.SHA2_256, c.getSignBatchSize(), c.getSignBatchWindow(),
+                c.getQueueSize(), c.getSignLimiter(), log);
+            this.signer = null;
+        } else {
+            this.batchSigner = null;
+            this.signer = c.getSigner();
+        }
+        this.limiter = c.getSignLimiter();
+        this.metrics = SignMetrics.get(c.getCommitOrg(), c.getNetwork());
+
+        String name = "ksihlf-" + c.getCommitOrg() + "-" + lane;
+        this.digestStage = newStage(name + "-digest", catchup ? c.getCatchupThreads() : c.getDigestThreads());
+        this.signStage = newStage(name + "-sign", catchup ? c.getCatchupThreads() : c.getSignThreads());
+        this.submitStage = newStage(name + "-submit", catchup ? c.getCatchupThreads() : c.getSubmitThreads());
+
+        if (c.getSubmitBatchSize() > 1) {
+            log.log(Level.INFO, "Pushing signatures in batches of max " + c.getSubmitBatchSize() + " signatures within " + c.getSubmitBatchLatency() + "ms.");
+            this.submitBatcher = new Batcher<>(c.getSubmitBatchSize(), c.getSubmitBatchLatency(), c.getQueueSize(),
+                this::submitBatch, name + "-submit-batcher", log);
+        } else {
+            this.submitBatcher = null;
+        }
+
+        metrics.setGauge(queueGauge("digest"), this::getDigestQueueDepth);
+        metrics.setGauge(queueGauge("sign"), this::getSignQueueDepth);
+        metrics.setGauge(queueGauge("submit"), this::getSubmitQueueDepth);
+        if (limiter.isEnabled()) {
+            metrics.setGauge("sign_rate_limit", limiter::getRate);
+            metrics.setGauge("sign_window", limiter::getWindow);
+            metrics.setGauge("sign_in_flight", limiter::getInFlight);
+        }
+        if (outbox != null && !catchup) {
+            metrics.setGauge("outbox_pending", outbox::getPendingCount);
+        }
+
+        if (c.getQueueReportInterval() > 0) {
+            this.reporter = scheduler.scheduleAtFixedRate(this::reportQueueDepths,
+                c.getQueueReportInterval(), c.getQueueReportInterval(), TimeUnit.SECONDS);
+        } else {
+            this.reporter = null;
+        }
+    }
+
+    /**
+     * Feeds new block into the pipeline. Depending on the backpressure policy the
+     * call blocks when the digest queue is full or the block is dropped.
+     */
+    public void accept(BlockInfo binf) {
+        long blockNr = binf.getBlockNumber();
+        try {
+            metrics.received(blockNr, getBlockTime(binf));
+            digestStage.execute(() -> digest(binf));
+        } catch (RejectedExecutionException e) {
+            log.log(Level.SEVERE, "Block " + blockNr + " dropped as the pipeline is full or closed!");
+            metrics.failed("digest", "DROPPED");
+            finished(blockNr);
+        }
+    }
+
+    /**
+     * Adds listener that is notified with every signature committed to the ledger.
+     */
+    public void addCommitListener(Consumer<KsiWrapper> listener) {
+        commitListeners.add(listener);
+    }
+
+    public int getDigestQueueDepth() {
+        return digestStage.getQueue().size();
+    }
+
+    public int getSignQueueDepth() {
+        return signStage.getQueue().size() + (batchSigner != null ? batchSigner.getQueueDepth() : 0);
+    }
+
+    public int getSubmitQueueDepth() {
+        return submitStage.getQueue().size() + (submitBatcher != null ? submitBatcher.getQueueDepth() : 0);
+    }
+
+    /**
+     * Stops accepting new blocks and waits until the blocks already in the pipeline
+     * are signed and pushed.
+     */
+    @Override
+    public void close() {
+        if (reporter != null) {
+            reporter.cancel(false);
+        }
+
+        shutdownStage(digestStage, "digest");
+        shutdownStage(signStage, "sign");
+        if (batchSigner != null) {
+            batchSigner.close();
+        }
+        if (submitBatcher != null) {
+            submitBatcher.close();
+        }
+        shutdownStage(submitStage, "submit");
+
+        metrics.removeGauge(queueGauge("digest"));
+        metrics.removeGauge(queueGauge("sign"));
+        metrics.removeGauge(queueGauge("submit"));
+    }
+
+    private String queueGauge(String stage) {
+        return "queue_depth{lane=\"" + lane + "\",stage=\"" + stage + "\"}";
+    }
+
+    /* Returns the creation time of the block (timestamp of its first transaction) or current time. */
+    private static long getBlockTime(BlockInfo binf) {
+        try {
+            if (binf.getEnvelopeCount() > 0) {
+                return binf.getEnvelopeInfo(0).getTimestamp().getTime();
+            }
+        } catch (Exception e) {
+            /* Fall back to receiving time. */
+        }
+        return System.currentTimeMillis();
+    }
+
+    private void reportQueueDepths() {
+        log.log(Level.INFO, "Queue depths (" + lane + "): digest=" + getDigestQueueDepth() +
+                            " sign=" + getSignQueueDepth() +
+                            " submit=" + getSubmitQueueDepth() +
+                            (limiter.isEnabled() ? " limiter: " + limiter : ""));
+    }
+
+    private void digest(BlockInfo binf) {
+        long blockNr = binf.getBlockNumber();
+        try {
+            /* HF has hardcoded hashig algorithm?? */
+            BlockHelper bh = new BlockHelper(binf, HashAlgorithm.SHA2_256, c.isAggrTransactions());
+
+            if (bh.isOnlyKsiTransaction()) {
+                log.log(Level.INFO, "Ignoring block " + blockNr + " with only KSI transaction!");
+                metrics.skipped(blockNr);
+                completed(blockNr);
+                finished(blockNr);
+                return;
+            }
+
+            log.log(Level.INFO, "Block: " + blockNr);
+            log.log(Level.INFO, "  Hash to be signed: " + bh.getRootHash() + "(lvl:" + bh.getLevel() + ")");
+            log.log(Level.FINE, "  RecHash: " + Arrays.toString(bh.getRecordHashes()));
+
+            signStage.execute(() -> sign(bh, blockNr));
+        } catch (RejectedExecutionException e) {
+            log.log(Level.SEVERE, "Block " + blockNr + " dropped as sign queue is full or closed!");
+            metrics.failed("sign", "DROPPED");
+            finished(blockNr);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "  Digesting of block " + blockNr + " failed!", e);
+            metrics.failed("digest", e);
+            finished(blockNr);
+        }
+    }
+
+    private void sign(BlockHelper bh, long blockNr) {
+        try {
+            DataHash[] recHash = bh.getRecordHashes();
+            long start = System.nanoTime();
+
+            if (batchSigner != null) {
+                boolean block = catchup || !BACKPRESSURE_DROP.equals(c.getBackpressure());
+                batchSigner.submit(bh.getRootHash(), bh.getLevel(), block).whenComplete((res, err) -> {
+                    if (err != null) {
+                        log.log(Level.SEVERE, "  Signing of block " + blockNr + " failed!", err);
+                        metrics.failed("sign", err);
+                        finished(blockNr);
+                        return;
+                    }
+
+                    /* Nobody waits for this future, so failures must be handled here. */
+                    try {
+                        metrics.signed(blockNr, System.nanoTime() - start);
+                        submit(KsiWrapper.newFromKSI(res.getSignature(), recHash, res.getLevel(), blockNr, c.getCommitOrg()));
+                    } catch (Exception e) {
+                        log.log(Level.SEVERE, "  Signing of block " + blockNr + " failed!", e);
+                        metrics.failed("sign", e);
+                        finished(blockNr);
+                    }
+                });
+            } else {
+                KSISignature sig = limiter.call(() -> signer.sign(bh.getRootHash(), bh.getLevel()));
+                metrics.signed(blockNr, System.nanoTime() - start);
+                submit(KsiWrapper.newFromKSI(sig, recHash, blockNr, c.getCommitOrg()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.log(Level.SEVERE, "Block " + blockNr + " dropped as interrupted!");
+            finished(blockNr);
+        } catch (RejectedExecutionException e) {
+            log.log(Level.SEVERE, "Block " + blockNr + " dropped as batch sign queue is full!");
+            metrics.failed("sign", "DROPPED");
+            finished(blockNr);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "  Signing of block " + blockNr + " failed!", e);
+            metrics.failed("sign", e);
+            finished(blockNr);
+        }
+    }
+
+    private void submit(KsiWrapper sig) {
+        try {
+            if (submitBatcher != null) {
+                if (!submitBatcher.add(sig, catchup || !BACKPRESSURE_DROP.equals(c.getBackpressure()))) {
+                    throw new RejectedExecutionException("Submit queue is full!");
+                }
+            } else {
+                submitStage.execute(() -> push(sig));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.log(Level.SEVERE, "Signature of block " + sig.getBlockNumber() + " dropped as interrupted!");
+            finished(sig.getBlockNumber());
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            log.log(Level.SEVERE, "Signature of block " + sig.getBlockNumber() + " dropped as submit queue is full or closed!");
+            metrics.failed("push", "DROPPED");
+            finished(sig.getBlockNumber());
+        }
+    }
+
+    private void submitBatch(List<KsiWrapper> sigs) {
+        try {
+            submitStage.execute(() -> pushBatch(sigs));
+        } catch (RejectedExecutionException e) {
+            log.log(Level.SEVERE, "Batch of " + sigs.size() + " signature(s) dropped as submit queue is full or closed!");
+            metrics.failed("push", "DROPPED");
+            sigs.forEach(sig -> finished(sig.getBlockNumber()));
+        }
+    }
+
+    private void pushBatch(List<KsiWrapper> sigs) {
+        List<Outbox.Entry> entries = null;
+        boolean[] committed = null;
+        try {
+            entries = journal(sigs);
+            log.log(Level.INFO, "  Pushing batch of " + sigs.size() + " KSI signature(s) [" +
+                                sigs.get(0).getBlockNumber() + ".." + sigs.get(sigs.size() - 1).getBlockNumber() + "]");
+            committed = send(sigs, entries, true);
+        } finally {
+            settle(sigs, entries != null, committed);
+        }
+    }
+
+    private void push(KsiWrapper sig) {
+        List<KsiWrapper> sigs = Collections.singletonList(sig);
+        List<Outbox.Entry> entries = null;
+        boolean[] committed = null;
+        try {
+            entries = journal(sigs);
+            log.log(Level.INFO, "  Pushing KSI[" + sig.getBlockNumber() + "] " + sig.getKsi().getAggregationTime());
+            committed = send(sigs, entries, false);
+        } finally {
+            settle(sigs, entries != null, committed);
+        }
+    }
+
+    /*
+     * Completes the blocks whose signatures are journaled in the outbox or committed
+     * to the ledger. All the blocks are finished.
+     */
+    private void settle(List<KsiWrapper> sigs, boolean journaled, boolean[] committed) {
+        for (int i = 0; i < sigs.size(); i++) {
+            long blockNr = sigs.get(i).getBlockNumber();
+            if (journaled || (committed != null && committed[i])) {
+                completed(blockNr);
+            }
+            finished(blockNr);
+        }
+    }
+
+    /**
+     * Resubmits the signatures from the outbox whose backoff delay has passed.
+     * Resubmission stops at the first failure.
+     *
+     * @return Count of signatures resubmitted.
+     */
+    public int resubmit() {
+        if (outbox == null) {
+            return 0;
+        }
+
+        int count = 0;
+        List<Outbox.Entry> due;
+        while (!(due = outbox.due(Math.max(c.getSubmitBatchSize(), 1))).isEmpty()) {
+            List<KsiWrapper> sigs = new ArrayList<>(due.size());
+            due.forEach(e -> sigs.add(e.getSignature()));
+
+            log.log(Level.INFO, "  Resubmitting " + sigs.size() + " KSI signature(s) from outbox [" +
+                                sigs.get(0).getBlockNumber() + ".." + sigs.get(sigs.size() - 1).getBlockNumber() + "]" +
+                                " (attempt " + (due.get(0).getAttempts() + 1) + ")");
+            /* Same transaction as the live pushes, so contracts without setKsiBatch work too. */
+            if ((submitBatcher != null ? send(sigs, due, true) : sendEach(sigs, due)) == null) {
+                break;
+            }
+            count += sigs.size();
+        }
+        return count;
+    }
+
+    /*
+     * Journals the signatures into the outbox before they are pushed.
+     * Returns null if the outbox is disabled or journaling failed.
+     */
+    private List<Outbox.Entry> journal(List<KsiWrapper> sigs) {
+        if (outbox == null) {
+            return null;
+        }
+
+        List<Outbox.Entry> entries = new ArrayList<>(sigs.size());
+        try {
+            for (KsiWrapper sig : sigs) {
+                entries.add(outbox.put(sig));
+            }
+            outbox.sync();
+            return entries;
+        } catch (Exception e) {
+            log.log(Level.WARNING, "  Unable to journal " + sigs.size() + " signature(s) into outbox, pushing without it!", e);
+            entries.forEach(outbox::ack);
+            return null;
+        }
+    }
+
+    /*
+     * Pushes the signatures to the ledger. On success the journaled entries are
+     * acknowledged. Signatures rejected by the contract are not retried. When the
+     * transaction fails, the journaled entries are returned to the outbox.
+     * Returns the flags of the committed signatures or null if the transaction failed.
+     */
+    private boolean[] send(List<KsiWrapper> sigs, List<Outbox.Entry> entries, boolean batch) {
+        if (batch && batchUnsupported) {
+            return sendEach(sigs, entries);
+        }
+
+        long start = System.nanoTime();
+        try {
+            List<String> errors = batch ? ksicontract.pushSignatures(sigs) : null;
+            if (!batch) {
+                ksicontract.pushSignature(sigs.get(0));
+            }
+            metrics.pushed(System.nanoTime() - start);
+
+            boolean[] committed = new boolean[sigs.size()];
+            for (int i = 0; i < sigs.size(); i++) {
+                if (errors != null && errors.get(i) != null) {
+                    log.log(Level.SEVERE, "  Pushing of block " + sigs.get(i).getBlockNumber() + " signature failed: " + errors.get(i));
+                    metrics.failed("push", "REJECTED");
+                } else {
+                    metrics.committed(sigs.get(i).getBlockNumber());
+                    committed(sigs.get(i));
+                    committed[i] = true;
+                }
+                if (entries != null) {
+                    outbox.ack(entries.get(i));
+                }
+            }
+            return committed;
+        } catch (KsiContractUnsupportedException e) {
+            log.log(Level.WARNING, "  Contract does not support batch push, pushing signatures one by one!");
+            batchUnsupported = true;
+            return sendEach(sigs, entries);
+        } catch (Exception e) {
+            metrics.failed("push", e);
+            if (entries != null) {
+                log.log(Level.WARNING, "  Pushing of " + sigs.size() + " signature(s) failed, kept in outbox for resubmission!", e);
+                entries.forEach(outbox::failed);
+            } else {
+                log.log(Level.SEVERE, "  Pushing of " + sigs.size() + " signature(s) failed!", e);
+            }
+            return null;
+        }
+    }
+
+    /*
+     * Pushes the signatures one by one like {@link #send}. When a push fails, the
+     * rest are not pushed and their journaled entries are returned to the outbox.
+     * Returns null if the first push failed.
+     */
+    private boolean[] sendEach(List<KsiWrapper> sigs, List<Outbox.Entry> entries) {
+        boolean[] committed = new boolean[sigs.size()];
+        for (int i = 0; i < sigs.size(); i++) {
+            boolean[] res = send(Collections.singletonList(sigs.get(i)), entries == null ? null : Collections.singletonList(entries.get(i)), false);
+            if (res == null) {
+                if (entries != null) {
+                    entries.subList(i + 1, entries.size()).forEach(outbox::failed);
+                }
+                return i == 0 ? null : committed;
+            }
+            committed[i] = res[0];
+        }
+        return committed;
+    }
+
+    private void committed(KsiWrapper sig) {
+        for (Consumer<KsiWrapper> l : commitListeners) {
+            try {
+                l.accept(sig);
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Commit listener of block " + sig.getBlockNumber() + " failed!", e);
+            }
+        }
+    }
+
+    /*
+     * Marks the block handled in the checkpoint, so the high-water mark can move past it.
+     * Called only when the block needs no more signing.
+     */
+    private void completed(long blockNr) {
+        if (checkpoint != null) {
+            checkpoint.done(blockNr);
+        }
+    }
+
+    /*
+     * Called once for every block when its handling has finished (successfully or not).
+     * Releases the block in the checkpoint if it was not completed.
+     */
+    private void finished(long blockNr) {
+        metrics.done(blockNr);
+        if (checkpoint != null) {
+            checkpoint.release(blockNr);
+        }
+    }
+
+    private ThreadPoolExecutor newStage(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(c.getQueueSize()), tf, getRejectionHandler());
+    }
+
+    private RejectedExecutionHandler getRejectionHandler() {
+        if (!catchup && BACKPRESSURE_DROP.equals(c.getBackpressure())) {
+            return new ThreadPoolExecutor.AbortPolicy();
+        }
+
+        /* Block the producer until there is free space in the queue. */
+        return (r, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Stage is closed!");
+            }
+
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for free space in the queue!", e);
+            }
+        };
+    }
+
+    private void shutdownStage(ThreadPoolExecutor stage, String name) {
+        stage.shutdown();
+        try {
+            while (!stage.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.log(Level.INFO, "Waiting " + name + " stage to finish (queue depth " + stage.getQueue().size() + ").");
+            }
+        } catch (InterruptedException e) {
+            log.log(Level.WARNING, "Interrupted while waiting " + name + " stage to finish!");
+            stage.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
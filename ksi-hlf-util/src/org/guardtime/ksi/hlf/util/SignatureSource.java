@@ -0,0 +1,33 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+
+/**
+ * Source of KSI signatures of HLF blocks, e.g. the ledger queried through
+ * KsiContractApi or local block files (see {@link BlockFileSignatureSource}).
+ */
+interface SignatureSource {
+    /**
+     * Returns the KsiWrapper of the block issued by the org or null if the block is not signed.
+     */
+    KsiWrapper getSignature(long block, String org) throws Exception;
+}
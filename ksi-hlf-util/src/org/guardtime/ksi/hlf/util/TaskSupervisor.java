@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TaskSupervisor runs every task (one per configuration) in its own thread, so that
+ * tasks of different organizations/channels are served concurrently. Failure of a
+ * task is isolated from other tasks. Tasks started with restart enabled are
+ * restarted with exponential backoff when they fail or return.
+ *
+ * The supervisor also owns a scheduler that is shared by all the tasks for
+ * periodic jobs.
+ */
+class TaskSupervisor implements AutoCloseable {
+    private static final long DEFAULT_MIN_RESTART_DELAY = 5;
+    private static final long DEFAULT_MAX_RESTART_DELAY = 300;
+
+    private final Logger log;
+    private final Lifecycle lifecycle;
+    private final long minRestartDelay;
+    private final long maxRestartDelay;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    public TaskSupervisor(Logger log, Lifecycle lifecycle) {
+        this(log, lifecycle, DEFAULT_MIN_RESTART_DELAY, DEFAULT_MAX_RESTART_DELAY);
+    }
+
+    /**
+     * @param log             Logger.
+     * @param lifecycle       Lifecycle of the application. Tasks are not restarted
+     *                        when the application is stopping.
+     * @param minRestartDelay Delay in seconds before the first restart of a task.
+     * @param maxRestartDelay Max delay in seconds between the restarts of a task.
+     */
+    public TaskSupervisor(Logger log, Lifecycle lifecycle, long minRestartDelay, long maxRestartDelay) {
+        if (lifecycle == null) throw new NullPointerException("Lifecycle must not be null!");
+        if (minRestartDelay < 0) throw new IllegalArgumentException("Min restart delay must not be negative!");
+        if (maxRestartDelay < minRestartDelay) throw new IllegalArgumentException("Max restart delay must not be smaller than min restart delay!");
+
+        this.log = log;
+        this.lifecycle = lifecycle;
+        this.minRestartDelay = minRestartDelay;
+        this.maxRestartDelay = maxRestartDelay;
+        this.workers = Executors.newCachedThreadPool(newThreadFactory("ksihlf-task-"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(newThreadFactory("ksihlf-scheduler-"));
+    }
+
+    /**
+     * Returns scheduler shared by all supervised tasks.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Starts the task in a separate thread.
+     *
+     * @param name    Name of the task used in logging.
+     * @param task    Task to be run.
+     * @param restart If true, task is restarted when it fails or returns.
+     */
+    public void start(String name, Runnable task, boolean restart) {
+        if (name == null) throw new NullPointerException("Task name must not be null!");
+        if (task == null) throw new NullPointerException("Task must not be null!");
+        if (shutdown) throw new IllegalStateException("Task supervisor is shut down!");
+
+        pending.incrementAndGet();
+        launch(name, task, restart, minRestartDelay);
+    }
+
+    /**
+     * Waits until all the tasks that are not restarted have finished.
+     */
+    public void awaitTermination() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                pending.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops restarting of tasks and interrupts the running tasks.
+     */
+    public void shutdown() {
+        shutdown = true;
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private void launch(String name, Runnable task, boolean restart, long delay) {
+        workers.execute(() -> {
+            long started = System.nanoTime();
+
+            try {
+                log.log(Level.FINE, "Starting task " + name + ".");
+                task.run();
+                log.log(Level.FINE, "Task " + name + " finished.");
+            } catch (Throwable t) {
+                log.log(Level.SEVERE, "Task " + name + " failed!", t);
+            }
+
+            if (restart && !shutdown && !lifecycle.isStopping()) {
+                /* Reset backoff when the task was running longer than max restart delay. */
+                long uptime = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+                long next = uptime > maxRestartDelay ? minRestartDelay : delay;
+
+                log.log(Level.INFO, "Restarting task " + name + " in " + next + "s.");
+                try {
+                    scheduler.schedule(() -> launch(name, task, restart, Math.min(Math.max(next * 2, 1), maxRestartDelay)),
+                        next, TimeUnit.SECONDS);
+                    return;
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Unable to restart task " + name + "!", e);
+                }
+            }
+
+            finished();
+        });
+    }
+
+    private void finished() {
+        synchronized (pending) {
+            pending.decrementAndGet();
+            pending.notifyAll();
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
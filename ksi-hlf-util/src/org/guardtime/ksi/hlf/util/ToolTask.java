@@ -19,24 +19,45 @@
 
 package org.guardtime.ksi.hlf.util;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+
 import org.apache.commons.cli.CommandLine;
 import org.hyperledger.fabric.gateway.Gateway;
 import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.protos.common.Common;
 import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.wrapper.TxProof;
 import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
+import org.guardtime.ksi.hlf.contract.api.BlockCoverage;
 import org.guardtime.ksi.hlf.contract.api.BlockHelper;
 
 abstract class ToolTask extends Thread {
+    /* Count of blocks whose signatures are fetched from the ledger with single query. */
+    static final int PREFETCH_SIZE = 500;
+
     private Conf c;
     protected Logger log;
+    private Lifecycle lifecycle;
     private int firstBlock;
     private int lastBlock;
+    private Path blockFiles;
+    /* Reader of the offline run and positions of the blocks read so far (see fetchBlock). */
+    private BlockFileReader blockReader;
+    private final Map<Long, Long> blockPositions = new HashMap<>();
+    private KsiContractApi contract;
+    private SignatureSource signatures;
 
-    public ToolTask(Conf c, Logger log, CommandLine cmd) {
+    public ToolTask(Conf c, Logger log, CommandLine cmd, Lifecycle lifecycle) {
         this.c = c;
         this.log = log;
+        this.lifecycle = lifecycle;
 
         int fb = Integer.parseInt(cmd.getOptionValue("first"));
         int lb = fb;
@@ -47,8 +68,16 @@ abstract class ToolTask extends Thread {
 
         this.firstBlock = fb;
         this.lastBlock = lb;
+
+        if (cmd.hasOption("blockfiles")) {
+            this.blockFiles = Paths.get(cmd.getOptionValue("blockfiles"));
+        }
     }
 
+    /**
+     * Processes a single block. Note that ksicontract is null when blocks are read
+     * from local block files.
+     */
     abstract public void doTask(KsiContractApi ksicontract, BlockHelper bh, int blockNr, KsiWrapper sig)
             throws Exception;
 
@@ -61,62 +90,198 @@ abstract class ToolTask extends Thread {
             return;
         }
 
+        lifecycle.register();
+        try {
+            if (this.blockFiles != null) {
+                runOffline();
+            } else {
+                runOnline();
+            }
+        } finally {
+            lifecycle.deregister();
+        }
+    }
+
+    private void runOnline() {
         log.log(Level.INFO, "Read wallet info from: " + c.getWalletPath());
         log.log(Level.INFO, "Using connection profile " + c.getConnectionProfile());
         log.log(Level.INFO, "Using connection profile " + c.getUser());
         try (Gateway gateway = c.getGateway()) {
-            // Add handler for kill -9
-            Runtime.getRuntime().addShutdownHook(new Thread() {
-                @Override
-                public void run() {
-                    log.log(Level.FINE, "Closing Gateway");
-                    gateway.close();
-                };
-            });
-
             // Access PaperNet network
             log.log(Level.INFO, "Use network channel: " + c.getNetwork());
             Network network = gateway.getNetwork(c.getNetwork());
             KsiContractApi ksicontract = new KsiContractApi(network);
+            this.contract = ksicontract;
+            int prefetch = getPrefetchSize();
+            if (prefetch > 1) {
+                this.signatures = new PrefetchSignatureSource(ksicontract, this.firstBlock, this.lastBlock, prefetch, log);
+            } else {
+                this.signatures = ksicontract::getSignature;
+            }
+
+            BlockCoverage coverage = getCoverage(ksicontract);
 
             for (int i = this.firstBlock; i < this.lastBlock + 1; i++) {
+                if (lifecycle.isStopping()) {
+                    log.log(Level.INFO, "Stopping before block " + i + ".");
+                    break;
+                }
+
+                if (coverage != null && coverage.isSigned(i)) {
+                    log.log(Level.INFO, "  Skipping block " + i + " as it is already signed.");
+                    continue;
+                }
+
                 try {
                     log.log(Level.INFO, "Getting block " + i);
-                    BlockHelper bh = ksicontract.getBlock(i);
+                    process(ksicontract, ksicontract.getBlock(i), i);
+                } catch (Exception e) {
+                    log.log(Level.INFO, e.getMessage(), e);
+                    // e.printStackTrace();
+                }
+            }
 
-                    if (bh.isOnlyKsiTransaction()) {
-                        log.log(Level.INFO,
-                                "  Skipping block " + i + " as it contains only KSI signature transaction.");
-                        continue;
-                    }
+            finish();
 
-                    log.log(Level.INFO, "  Getting KSI signature " + i);
-                    KsiWrapper sig = ksicontract.getSignature((long) i, this.getConf().getCommitOrg());
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Failure to setup block listener!", e);
+            log.log(Level.SEVERE, e.getMessage());
+            e.printStackTrace();
+        } finally {
+            log.log(Level.FINE, "Closing Gateway");
+        }
+    }
 
-                    /* Skip not existing signature, if not signing task. */
-                    if (sig == null && !this.getClass().equals(ToolTaskSign.class)) {
-                        log.log(Level.INFO, "  Skipping block " + i + " as it does not contain KSI signature.");
-                        // log.log(Level.INFO, " Class: " + this.getClass());
-                        // log.log(Level.INFO, " Class: " + BlockSignTask.class);
-                        continue;
-                    }
+    /**
+     * Processes the blocks read from local block files. Signatures are read from
+     * the KSI contract transactions in the same block files, so no gateway is needed.
+     */
+    private void runOffline() {
+        log.log(Level.INFO, "Reading blocks from: " + this.blockFiles);
+        try (BlockFileSignatureSource sigs = new BlockFileSignatureSource(this.blockFiles, c.getCommitOrg(), this.firstBlock, this.lastBlock, log);
+             BlockFileReader reader = new BlockFileReader(this.blockFiles)) {
+            this.signatures = sigs;
+            this.blockReader = reader;
+            if (!reader.skipTo(this.firstBlock)) {
+                log.log(Level.INFO, "Block " + this.firstBlock + " not found!");
+                return;
+            }
 
-                    doTask(ksicontract, bh, i, sig);
+            Common.Block block;
+            while ((block = reader.next()) != null && block.getHeader().getNumber() <= this.lastBlock) {
+                int i = (int) block.getHeader().getNumber();
+                this.blockPositions.put((long) i, reader.getPosition());
+                if (lifecycle.isStopping()) {
+                    log.log(Level.INFO, "Stopping before block " + i + ".");
+                    break;
+                }
 
+                try {
+                    log.log(Level.INFO, "Read block " + i);
+                    process(null, new BlockHelper(block, HashAlgorithm.SHA2_256, false), i);
                 } catch (Exception e) {
                     log.log(Level.INFO, e.getMessage(), e);
-                    // e.printStackTrace();
                 }
             }
 
+            finish();
         } catch (Exception e) {
-            log.log(Level.SEVERE, "Failure to setup block listener!", e);
-            log.log(Level.SEVERE, e.getMessage());
-            e.printStackTrace();
+            log.log(Level.SEVERE, "Unable to read block files!", e);
+        } finally {
+            this.blockReader = null;
+            this.blockPositions.clear();
+        }
+    }
+
+    /**
+     * Processes a block: skips blocks with only KSI transactions, gets the signature
+     * and calls {@link #doTask}.
+     */
+    protected void process(KsiContractApi ksicontract, BlockHelper bh, int i) throws Exception {
+        if (bh.isOnlyKsiTransaction()) {
+            log.log(Level.INFO,
+                    "  Skipping block " + i + " as it contains only KSI signature transaction.");
+            return;
+        }
+
+        log.log(Level.INFO, "  Getting KSI signature " + i);
+        KsiWrapper sig = fetchSignature(i);
+
+        /* Skip not existing signature, if not signing task. */
+        if (sig == null && !this.getClass().equals(ToolTaskSign.class)) {
+            log.log(Level.INFO, "  Skipping block " + i + " as it does not contain KSI signature.");
+            return;
+        }
+
+        /* Existing signature tells if transactions were aggregated, new ones follow the conf. */
+        boolean txAggregation = (sig == null || this instanceof ToolTaskSign) ? c.isAggrTransactions() : TxProof.isTxAggregated(sig);
+
+        doTask(ksicontract, bh.withTxAggregation(txAggregation), i, sig);
+    }
+
+    /**
+     * Returns the coverage of the blocks of the task when the blocks that already have
+     * a signature are to be skipped without fetching them. Default is null (no blocks
+     * are skipped).
+     */
+    protected BlockCoverage getCoverage(KsiContractApi ksicontract) {
+        return null;
+    }
+
+    /**
+     * Returns the count of blocks whose signatures are fetched from the ledger with
+     * single query. Value 1 fetches every signature separately.
+     */
+    protected int getPrefetchSize() {
+        return PREFETCH_SIZE;
+    }
+
+    /**
+     * Called after the last block is processed.
+     */
+    protected void finish() throws Exception {
+    }
+
+    /**
+     * Returns the KsiWrapper of the block from the ledger or from block files.
+     */
+    protected KsiWrapper fetchSignature(long block) throws Exception {
+        return this.signatures.getSignature(block, this.getConf().getCommitOrg());
+    }
+
+    /**
+     * Returns the block from the ledger or from block files (null if not found).
+     */
+    protected BlockHelper fetchBlock(long block) throws Exception {
+        if (this.blockFiles == null) {
+            return this.contract.getBlock(block);
+        }
+
+        /* Blocks already read are read again at their position. */
+        Long pos = this.blockPositions.get(block);
+        if (pos != null && this.blockReader != null) {
+            return new BlockHelper(this.blockReader.read(pos), HashAlgorithm.SHA2_256, false);
+        }
+
+        try (BlockFileReader reader = new BlockFileReader(this.blockFiles)) {
+            if (!reader.skipTo(block)) {
+                return null;
+            }
+
+            Common.Block b = reader.next();
+            return b.getHeader().getNumber() == block ? new BlockHelper(b, HashAlgorithm.SHA2_256, false) : null;
         }
     }
 
     public Conf getConf() {
         return this.c;
     }
+
+    public int getFirstBlock() {
+        return this.firstBlock;
+    }
+
+    public int getLastBlock() {
+        return this.lastBlock;
+    }
 }
\ No newline at end of file
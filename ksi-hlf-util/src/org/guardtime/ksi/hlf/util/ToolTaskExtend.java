@@ -31,8 +31,8 @@ import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
 import org.guardtime.ksi.hlf.contract.api.BlockHelper;
 
 class ToolTaskExtend extends ToolTask {
-    public ToolTaskExtend(Conf c, Logger log, CommandLine cmd) {
-        super(c, log, cmd);
+    public ToolTaskExtend(Conf c, Logger log, CommandLine cmd, Lifecycle lifecycle) {
+        super(c, log, cmd, lifecycle);
     }
 
     @Override
@@ -27,11 +27,31 @@ import com.guardtime.ksi.Signer;
 import com.guardtime.ksi.unisignature.KSISignature;
 import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
 import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
+import org.guardtime.ksi.hlf.contract.api.BlockCoverage;
 import org.guardtime.ksi.hlf.contract.api.BlockHelper;
 
 class ToolTaskSign extends ToolTask {
-    public ToolTaskSign(Conf c, Logger log, CommandLine cmd) {
-        super(c, log, cmd);
+    public ToolTaskSign(Conf c, Logger log, CommandLine cmd, Lifecycle lifecycle) {
+        super(c, log, cmd, lifecycle);
+    }
+
+    /**
+     * Gets the blocks already signed with single query, so that only the unsigned
+     * blocks are fetched and signed.
+     */
+    @Override
+    protected BlockCoverage getCoverage(KsiContractApi ksicontract) {
+        try {
+            BlockCoverage coverage = ksicontract.getCoverage(getFirstBlock(), getLastBlock(), this.getConf().getCommitOrg(), false);
+            log.log(Level.INFO, "Coverage of " + coverage);
+            for (long[] r : coverage.getUnsignedRanges()) {
+                log.log(Level.FINE, "  Unsigned blocks " + r[0] + ".." + r[1]);
+            }
+            return coverage;
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Unable to get block coverage, checking every block: " + e.getMessage());
+            return null;
+        }
     }
 
     @Override
@@ -45,7 +65,7 @@ class ToolTaskSign extends ToolTask {
 
     private KsiWrapper signBlock(BlockHelper bh, int blockNr) throws Exception {
         Signer signer = this.getConf().getSigner();
-        KSISignature sig = signer.sign(bh.getRootHash(), bh.getLevel());
+        KSISignature sig = this.getConf().getSignLimiter().call(() -> signer.sign(bh.getRootHash(), bh.getLevel()));
         ByteArrayOutputStream os = new ByteArrayOutputStream(0xffff);
         // DataHash hH = bh.getHeaderHash();
         // DataHash mH = bh.getMetadataHash();
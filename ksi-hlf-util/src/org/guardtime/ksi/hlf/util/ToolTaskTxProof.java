@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.guardtime.ksi.hlf.contract.api.BlockHelper;
+import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
+import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.wrapper.TxProof;
+
+/**
+ * Extracts proofs of single transactions from blocks signed with transaction
+ * aggregation. Proofs are written to &lt;dir&gt;/&lt;org&gt;.&lt;block&gt;.&lt;tx&gt;.txproof or
+ * logged if output directory is not specified.
+ */
+class ToolTaskTxProof extends ToolTask {
+    private final Integer tx;
+    private final String outDir;
+
+    public ToolTaskTxProof(Conf c, Logger log, CommandLine cmd, Lifecycle lifecycle) {
+        super(c, log, cmd, lifecycle);
+        this.tx = cmd.hasOption("tx") ? Integer.parseInt(cmd.getOptionValue("tx")) : null;
+        this.outDir = cmd.getOptionValue("o");
+    }
+
+    @Override
+    public void doTask(KsiContractApi ksicontract, BlockHelper bh, int blockNr, KsiWrapper sig) throws Exception {
+        if (!TxProof.isTxAggregated(sig)) {
+            log.log(Level.INFO, "  Block " + blockNr + " is not signed with transaction aggregation! Skipping.");
+            return;
+        }
+
+        int first = tx != null ? tx : 0;
+        int last = tx != null ? tx : bh.getTxCount() - 1;
+        for (int i = first; i <= last; i++) {
+            TxProof proof = bh.getTxProof(i, sig);
+            proof.verifyEnvelope(bh.getTxEnvelope(i));
+
+            if (outDir == null) {
+                log.log(Level.INFO, "  Tx " + i + ": " + proof);
+            } else {
+                Path p = Paths.get(outDir, sig.getOrg() + "." + blockNr + "." + i + ".txproof");
+                Files.write(p, proof.toString().getBytes(UTF_8));
+                log.log(Level.INFO, "  Tx " + i + " proof written to " + p);
+            }
+        }
+    }
+}
@@ -37,13 +37,36 @@ import com.guardtime.ksi.SignatureVerifier;
 import org.apache.commons.cli.CommandLine;
 import org.guardtime.ksi.hlf.contract.api.KsiContractApi;
 import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.wrapper.SignatureCache;
+import org.guardtime.ksi.hlf.wrapper.TxProof;
 import org.guardtime.ksi.hlf.contract.api.BlockHelper;
 
+/**
+ * Verifies the KSI signatures of the blocks.
+ *
+ * With anchor stride the header chain is verified instead: every block is checked
+ * to link to the header hash of the previous block and to match with its data
+ * hash, and the KSI signature is fully verified only on anchor blocks - the first
+ * signed block after every stride blocks and the latest signed block of the range.
+ * A verified anchor covers all the blocks back to the previous anchor, as the
+ * header of the anchor commits to all the previous headers. Note that block
+ * metadata is not part of the header and is only verified on anchors.
+ */
 class ToolTaskVerify extends ToolTask {
     ContextAwarePolicy policy;
 
-    public ToolTaskVerify(Conf c, Logger log, CommandLine cmd) throws Exception {
-        super(c, log, cmd);
+    private final int anchorStride;
+    private DataHash prevHeaderHash;
+    private long prevBlock = -1;
+    /* First block that is not covered by an anchor yet (-1 if all are covered). */
+    private long spanStart = -1;
+    private long anchors;
+    private long anchorFailures;
+    private long linkFailures;
+    private long covered;
+
+    public ToolTaskVerify(Conf c, Logger log, CommandLine cmd, Lifecycle lifecycle) throws Exception {
+        super(c, log, cmd, lifecycle);
 
         /* Create verification policy: */
         if (cmd.hasOption("ver-int")) {
@@ -69,6 +92,114 @@ class ToolTaskVerify extends ToolTask {
             policy = ContextAwarePolicyAdapter.createDefaultPolicy(c.getPubHandler(), c.getExtender());
         }
 
+        this.anchorStride = cmd.hasOption("anchor-stride") ? Integer.parseInt(cmd.getOptionValue("anchor-stride")) : 0;
+        if (this.anchorStride < 0) throw new IllegalArgumentException("Anchor stride must not be negative!");
+    }
+
+    @Override
+    protected void process(KsiContractApi ksicontract, BlockHelper bh, int blockNr) throws Exception {
+        if (anchorStride == 0) {
+            super.process(ksicontract, bh, blockNr);
+            return;
+        }
+
+        checkLink(bh, blockNr);
+        if (spanStart < 0) {
+            spanStart = blockNr;
+        }
+
+        /* Only the candidate anchors need the signature. */
+        if (blockNr - spanStart + 1 >= anchorStride && !bh.isOnlyKsiTransaction()) {
+            KsiWrapper sig = fetchSignature(blockNr);
+            if (sig != null) {
+                anchor(bh, blockNr, sig);
+            }
+        }
+    }
+
+    @Override
+    protected int getPrefetchSize() {
+        /* Only every anchorStride-th signature is needed. */
+        return anchorStride > 0 ? 1 : super.getPrefetchSize();
+    }
+
+    @Override
+    protected void finish() throws Exception {
+        log.log(Level.FINE, "Signature cache: " + SignatureCache.getDefault());
+        if (anchorStride == 0) {
+            return;
+        }
+
+        /* The rest of the blocks are covered by the latest signed block. */
+        if (spanStart >= 0) {
+            for (long i = prevBlock; i >= spanStart; i--) {
+                BlockHelper bh = fetchBlock(i);
+                if (bh == null || bh.isOnlyKsiTransaction()) {
+                    continue;
+                }
+
+                KsiWrapper sig = fetchSignature(i);
+                if (sig != null) {
+                    long end = prevBlock;
+                    anchor(bh, i, sig);
+                    if (i < end) {
+                        log.log(Level.INFO, "X NOT COVERED: Blocks " + (i + 1) + ".." + end + " are not followed by a signed block!");
+                    }
+                    break;
+                }
+            }
+
+            if (spanStart >= 0) {
+                log.log(Level.INFO, "X NOT COVERED: Blocks " + spanStart + ".." + prevBlock + " have no signed block to anchor to!");
+            }
+        }
+
+        log.log(Level.INFO, "Header chain summary: " + covered + " block(s) covered by " + anchors + " anchor(s), " +
+                            anchorFailures + " anchor failure(s), " + linkFailures + " link failure(s).");
+    }
+
+    /**
+     * Checks that the block links to the previous block and matches with its data hash.
+     */
+    private void checkLink(BlockHelper bh, long blockNr) throws Exception {
+        boolean ok = true;
+        /* Block skipped or failed in between, the link can not be checked. */
+        if (prevBlock >= 0 && prevBlock != blockNr - 1) {
+            log.log(Level.INFO, "X FAILED: Block " + blockNr + " can not be linked to block " + prevBlock + " as the blocks in between are missing!");
+            ok = false;
+        } else if (prevBlock >= 0 && !bh.getPreviousHeaderHash().equals(prevHeaderHash)) {
+            log.log(Level.INFO, "X FAILED: Previous hash of block " + blockNr + " does not match with the header hash of block " + prevBlock + "!");
+            ok = false;
+        }
+        if (!bh.isDataHashValid()) {
+            log.log(Level.INFO, "X FAILED: Data hash of block " + blockNr + " does not match with the block data!");
+            ok = false;
+        }
+
+        /* Chain is broken, the blocks before can not be covered by any later anchor. */
+        if (!ok) {
+            linkFailures++;
+            if (spanStart >= 0) {
+                log.log(Level.INFO, "X NOT COVERED: Blocks " + spanStart + ".." + prevBlock + " are not linked to any anchor!");
+            }
+            spanStart = -1;
+        }
+
+        prevHeaderHash = bh.getHeaderHash();
+        prevBlock = blockNr;
+    }
+
+    private void anchor(BlockHelper bh, long blockNr, KsiWrapper sig) {
+        log.log(Level.INFO, "Anchor block " + blockNr + ":");
+        if (verifyBlock(sig, bh.withTxAggregation(TxProof.isTxAggregated(sig)), this.getConf())) {
+            log.log(Level.INFO, "  Covers blocks " + spanStart + ".." + blockNr);
+            covered += blockNr - spanStart + 1;
+            anchors++;
+        } else {
+            log.log(Level.INFO, "X NOT COVERED: Blocks " + spanStart + ".." + blockNr + " (anchor failed)!");
+            anchorFailures++;
+        }
+        spanStart = -1;
     }
 
     @Override
@@ -88,6 +219,9 @@ class ToolTaskVerify extends ToolTask {
             log.log(Level.INFO, "    Sig extended : -");
         }
         log.log(Level.INFO, "    Sig in hash  : " + ksig.getInputHash());
+        if (sig.getAggregationLevel() != null) {
+            log.log(Level.INFO, "    Sig aggr lvl : " + sig.getAggregationLevel());
+        }
         try {
             log.log(Level.INFO, "    Block hash   : " + bh.getRootHash());
         } catch (Exception e) {
@@ -124,7 +258,7 @@ class ToolTaskVerify extends ToolTask {
         return;
     }
 
-    private void verifyBlock(KsiWrapper sig, BlockHelper bh, Conf c) {
+    private boolean verifyBlock(KsiWrapper sig, BlockHelper bh, Conf c) {
         try {
             SignatureVerifier verifier = new SignatureVerifier();
             KSISignature ksig = sig.getKsi();
@@ -132,6 +266,12 @@ class ToolTaskVerify extends ToolTask {
             /* Compare the record hashes. */
             compareRecordHashes(sig, bh);
 
+            /* Block aggregated with other blocks can not be signed at lower level than the block itself. */
+            if (sig.getAggregationLevel() != null && sig.getAggregationLevel() < bh.getLevel()) {
+                log.log(Level.INFO, "X FAILED: Signature aggregation level " + sig.getAggregationLevel() + " is lower than block level " + bh.getLevel() + "!");
+                return false;
+            }
+
             /* Verify KSI signature and the root of the local aggregation. */
             VerificationResult verificationResult = verifier.verify(ksig, bh.getRootHash(), (long) bh.getLevel(),
                     this.policy);
@@ -144,10 +284,10 @@ class ToolTaskVerify extends ToolTask {
 
                 if (rps.equals(VerificationResultCode.OK)) {
                     log.log(Level.INFO, "  OK: " + r.getPolicy().getName());
-                    return;
+                    return true;
                 } else if (rps.equals(VerificationResultCode.FAIL)) {
                     log.log(Level.INFO, "X FAILED: " + r.getPolicy().getName());
-                    return;
+                    return false;
                 }
             }
             log.log(Level.INFO, "    Verifying NA!");
@@ -156,5 +296,6 @@ class ToolTaskVerify extends ToolTask {
             log.log(Level.INFO, e.toString());
             log.log(Level.INFO, e.getMessage());
         }
+        return false;
     }
 }
\ No newline at end of file
@@ -19,9 +19,14 @@
 
 package org.guardtime.ksi.hlf.wrapper;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 import org.guardtime.ksi.hlf.ledgerapi.State;
 import org.hyperledger.fabric.contract.annotation.DataType;
@@ -32,7 +37,6 @@ import org.json.JSONPropertyIgnore;
 import org.json.JSONPropertyName;
 
 import com.guardtime.ksi.unisignature.KSISignature;
-import com.guardtime.ksi.SignatureReader;
 import com.guardtime.ksi.exceptions.KSIException;
 import com.guardtime.ksi.hashing.DataHash;
 
@@ -54,11 +58,39 @@ import com.guardtime.ksi.tree.HashTreeBuilder;
  *                              // Value is used in HLF ledger key construction.
  *  "ksig":     <base64 str>,   // KSI signature in base64 encoding.
  *  "rechash":  [<base64 str>], // Optional list of record hashes used in local
- *                              // aggregation. 
+ *                              // aggregation: header and metadata hash and, if
+ *                              // transactions are aggregated, the root hash of
+ *                              // the transactions (see TxProof).
  *  "extended": <bool>          // Boolean value set true if "ksig" is extended.
- *  "version":  <int>           // Version of the data struct (1).
+ *  "version":  <int>           // Version of the data struct (1 or 2).
+ *  "lvl":      <int>           // Only in version 2. The level of the local aggregation
+ *                              // tree root that was built over several blocks and
+ *                              // was signed with single KSI request.
  *  }
  * 
+ * For ledger state the object can also be serialized in compact binary encoding
+ * (version 3) where signature and record hashes are stored as raw bytes. The
+ * encoding starts with byte 0x00 (never the first byte of JSON) and version byte,
+ * followed by TLV records [byte type][varint length][value]:
+ *
+ *  0x01 block    - 8 byte big-endian block number.
+ *  0x02 org      - UTF-8 organization ID.
+ *  0x03 ksig     - KSI signature.
+ *  0x04 rechash  - Record hash imprint (repeated in order).
+ *  0x05 lvl      - 1 byte aggregation level, present only for version 2 content.
+ *  0x06 extended - Optional 1 byte extended flag.
+ *
+ * Parsing dispatches by the first byte, so both encodings are always readable.
+ * {@link #toString()} always returns JSON.
+ *
+ * The wrappers created with {@link #newFromBase64} and {@link #newFromKSI} are
+ * validated immediately. The wrappers parsed from the ledger state only keep the
+ * signature in the form it was stored (base64 string or the raw bytes of the
+ * binary state, without copying) and parse the KSI signature and the record hashes
+ * when {@link #getKsi()} or {@link #getRecordHash()} is called for the first time.
+ * Thus reading and forwarding the state does not cost KSI parsing. Call
+ * {@link #validate()} to check such a wrapper explicitly. Lazy parsing is thread safe.
+ *
  * Notes:
  *  Json field name must match with the variable. In that case Java Object returned by the
  *  transaction is represented correctly.
@@ -67,6 +99,9 @@ import com.guardtime.ksi.tree.HashTreeBuilder;
 public class KsiWrapper extends State {
     @Property()
     private String ksig;
+    private byte[] ksigBin;
+    private int ksigOff;
+    private int ksigLen;
 
     @Property()
     private String[] rechash;
@@ -82,12 +117,26 @@ public class KsiWrapper extends State {
     
     @Property()
     private String org;
+
+    @Property()
+    private long lvl;
     
     
-    private DataHash[] recordHash;
-    private KSISignature sig;
+    private boolean extendedKnown;
+    private volatile DataHash[] recordHash;
+    private volatile SignatureCache.Entry sig;
+    private volatile boolean validated;
+    private long stateEncoding = Version.VER_1;
     private static final long CURRENT_VERSION = Version.VER_1;
 
+    private static final byte BIN_MARKER = 0x00;
+    private static final int T_BLOCK = 0x01;
+    private static final int T_ORG = 0x02;
+    private static final int T_KSIG = 0x03;
+    private static final int T_RECHASH = 0x04;
+    private static final int T_LVL = 0x05;
+    private static final int T_EXTENDED = 0x06;
+
     public static String getKey(long block, String org) {
         if (org == null) throw new NullPointerException("Unable to construct KsiWrapper key as org is null!");
         if (org.isEmpty()) throw new IllegalArgumentException("Unable to construct KsiWrapper key as org is empty string!");
@@ -95,24 +144,40 @@ public class KsiWrapper extends State {
         return org + "." + block;
     }
 
+    /**
+     * Returns the key with zero padded (19 digit) block number, so that the keys of
+     * the organization are ordered by the block number.
+     */
+    public static String getOrderedKey(long block, String org) {
+        if (org == null) throw new NullPointerException("Unable to construct KsiWrapper key as org is null!");
+        if (org.isEmpty()) throw new IllegalArgumentException("Unable to construct KsiWrapper key as org is empty string!");
+        if (block < 0) throw new IllegalArgumentException("Unable to construct KsiWrapper key as block " + block + " < 0!");
+        return org + "." + String.format("%019d", block);
+    }
+
     public static KsiWrapper newFromBase64(String base64, String[] recHash, long blockNumber, String org) throws NullPointerException, IllegalArgumentException, KsiWrapperException {
-        return newFromBin(CURRENT_VERSION, base64ToBin(base64), base64, recHash, blockNumber, org);
+        return newLazy(CURRENT_VERSION, base64, null, 0, 0, recHash, 0, blockNumber, org).validate();
+    }
+
+    public static KsiWrapper newFromBase64(String base64, String[] recHash, long lvl, long blockNumber, String org) throws NullPointerException, IllegalArgumentException, KsiWrapperException {
+        return newLazy(Version.VER_2, base64, null, 0, 0, recHash, lvl, blockNumber, org).validate();
     }
 
     public static KsiWrapper newFromBase64(String base64, long blockNumber, String org) throws NullPointerException, IllegalArgumentException, KsiWrapperException {
         return newFromBase64(base64, new String[0], blockNumber, org);
-        // return newFromBin(CURRENT_VERSION, base64ToBin(base64), base64, new String[0], blockNumber, org);
     }
     
     public static KsiWrapper newFromKSI(KSISignature sig, DataHash[] recHash, long blockNumber, String org) throws NullPointerException, IllegalArgumentException, KsiWrapperException {
-        ByteArrayOutputStream arrayBuilder = new ByteArrayOutputStream(0x2000);
-        try {
-            sig.writeTo(arrayBuilder);
-        } catch (KSIException e) {
-            throw new KsiWrapperException("Unable to serialize KSI signature!", ErrCodeEnum.ERR_KSI, e);
-        }
-        byte[] bin = arrayBuilder.toByteArray();
-        return newFromBin(CURRENT_VERSION, bin, binToBase64(bin), recordHashesToBase64(recHash), blockNumber, org);
+        return newFromKSI(CURRENT_VERSION, sig, recHash, 0, blockNumber, org);
+    }
+
+    /**
+     * Creates version 2 wrapper for a block that was aggregated together with other blocks
+     * before signing. The lvl is the level of the local aggregation tree root that was
+     * actually signed by the KSI service.
+     */
+    public static KsiWrapper newFromKSI(KSISignature sig, DataHash[] recHash, long lvl, long blockNumber, String org) throws NullPointerException, IllegalArgumentException, KsiWrapperException {
+        return newFromKSI(Version.VER_2, sig, recHash, lvl, blockNumber, org);
     }
 
     public static KsiWrapper newFromKSI(KSISignature sig, long blockNumber, String org) throws NullPointerException, IllegalArgumentException, KsiWrapperException {
@@ -121,12 +186,63 @@ public class KsiWrapper extends State {
 
     @JSONPropertyIgnore
     public KSISignature isInitialized() {
-        return sig;
+        if (this.ksig == null && this.ksigBin == null) {
+            return null;
+        }
+        return getKsi();
     }
 
+    /**
+     * Returns the KSI signature. The signature is parsed on the first call.
+     * @throws KsiWrapperException if the signature can not be parsed.
+     */
     @JSONPropertyIgnore
-    public KSISignature getKsi() {
-        return sig;
+    public KSISignature getKsi() throws KsiWrapperException {
+        return getKsiInfo().getSignature();
+    }
+
+    /**
+     * Returns the KSI signature with its aggregation time, input hash and publication
+     * time. The signature is taken from {@link SignatureCache#getDefault()} or parsed
+     * on the first call.
+     * @throws KsiWrapperException if the signature can not be parsed.
+     */
+    @JSONPropertyIgnore
+    public SignatureCache.Entry getKsiInfo() throws KsiWrapperException {
+        SignatureCache.Entry tmp = this.sig;
+        if (tmp == null) {
+            synchronized (this) {
+                tmp = this.sig;
+                if (tmp == null) {
+                    tmp = readSignature();
+                    this.sig = tmp;
+                }
+            }
+        }
+        return tmp;
+    }
+
+    /**
+     * Parses the KSI signature and verifies that it matches with the record hashes
+     * and the extended flag. The check is performed only once.
+     * @return this object.
+     * @throws KsiWrapperException if the wrapper is not valid.
+     */
+    public KsiWrapper validate() throws KsiWrapperException {
+        if (this.validated) {
+            return this;
+        }
+
+        KSISignature tmp = getKsi();
+        if (this.extendedKnown && this.extended != tmp.isExtended()) {
+            throw new KsiWrapperException("KSI Wrapper extended flag does not match with the signature!", ErrCodeEnum.ERR_WRAP_VERIFICATION_FAILURE);
+        }
+        if (this.rechash != null && this.rechash.length != 0) {
+            verifyRecordHashes(tmp, getRecordHash());
+        }
+
+        this.validated = true;
+        return this;
     }
     
     @JSONPropertyName("org")
@@ -136,16 +252,30 @@ public class KsiWrapper extends State {
     
     @JSONPropertyName("ksig")
     public String getKsiBase64() {
+        if (this.ksig == null) {
+            ByteBuffer enc = Base64.getEncoder().encode(ByteBuffer.wrap(this.ksigBin, this.ksigOff, this.ksigLen));
+            return new String(enc.array(), enc.arrayOffset() + enc.position(), enc.remaining(), US_ASCII);
+        }
         return ksig;
     }
 
     @JSONPropertyIgnore
     public byte[] getKsiBin() {
+        if (this.ksig == null) {
+            return Arrays.copyOfRange(this.ksigBin, this.ksigOff, this.ksigOff + this.ksigLen);
+        }
         return base64ToBin(ksig);
     }
 
+    /**
+     * Returns the extended flag. If the flag was not stored with the state, the
+     * signature is parsed.
+     */
     @JSONPropertyName("extended")
     public boolean isExtended() {
+        if (!this.extendedKnown) {
+            return getKsi().isExtended();
+        }
         return extended;
     }
 
@@ -159,6 +289,18 @@ public class KsiWrapper extends State {
         return ver;
     }
 
+    /**
+     * Returns the level of the local aggregation tree root built over several blocks
+     * or null if the object version does not contain the level (version 1).
+     */
+    @JSONPropertyName("lvl")
+    public Long getAggregationLevel() {
+        if (ver == Version.VER_1) {
+            return null;
+        }
+        return lvl;
+    }
+
     @JSONPropertyName("rechash")
     public String[] getRecHash() {
         return this.rechash;
@@ -166,20 +308,79 @@ public class KsiWrapper extends State {
   
     @JSONPropertyIgnore
     public DataHash[] getRecordHash() {
-        if (this.recordHash == null) {
-            DataHash[] tmp = new DataHash[this.rechash.length];
+        DataHash[] tmp = this.recordHash;
+        if (tmp == null) {
+            tmp = new DataHash[this.rechash.length];
             for (int i = 0; i < this.rechash.length; i++) {
                 tmp[i] = new DataHash(base64ToBin(this.rechash[i]));
             }
 
+            /* Concurrent callers may decode it twice, but the result is the same. */
             this.recordHash = tmp;
         }
-        return this.recordHash;
+        return tmp;
+    }
+
+    /**
+     * Returns the encoding used by {@link #serialize()}: Version.VER_1 for JSON or
+     * Version.VER_3 for binary.
+     */
+    @JSONPropertyIgnore
+    public long getStateEncoding() {
+        return this.stateEncoding;
+    }
+
+    /**
+     * Sets the encoding used by {@link #serialize()} (see {@link #getStateEncoding()}).
+     */
+    public void setStateEncoding(long encoding) {
+        if (encoding != Version.VER_1 && encoding != Version.VER_3) {
+            throw new IllegalArgumentException("KSI Wrapper state encoding must be " + Version.VER_1 + " (JSON) or " + Version.VER_3 + " (binary)!");
+        }
+        this.stateEncoding = encoding;
+    }
+
+    @Override
+    public byte[] serialize() {
+        if (this.stateEncoding == Version.VER_3) {
+            return serializeBinary();
+        }
+        return super.serialize();
+    }
+
+    /**
+     * Serializes the object in compact binary encoding (version 3).
+     */
+    public byte[] serializeBinary() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(0x1000);
+        out.write(BIN_MARKER);
+        out.write((int) Version.VER_3);
+
+        byte[] blockBin = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            blockBin[i] = (byte) (this.block >>> (56 - i * 8));
+        }
+        writeTlv(out, T_BLOCK, blockBin);
+        writeTlv(out, T_ORG, this.org.getBytes(UTF_8));
+        if (this.ksig == null) {
+            writeTlv(out, T_KSIG, this.ksigBin, this.ksigOff, this.ksigLen);
+        } else {
+            writeTlv(out, T_KSIG, getKsiBin());
+        }
+        for (String hsh : this.rechash) {
+            writeTlv(out, T_RECHASH, base64ToBin(hsh));
+        }
+        if (this.ver == Version.VER_2) {
+            writeTlv(out, T_LVL, new byte[] {(byte) this.lvl});
+        }
+        writeTlv(out, T_EXTENDED, new byte[] {(byte) (isExtended() ? 1 : 0)});
+
+        return out.toByteArray();
     }
 
     @Override
     public String toString() {
-        byte[] tmp = this.serialize();
+        byte[] tmp = super.serialize();
         return new String(tmp, UTF_8);
     }
 
@@ -208,7 +409,7 @@ public class KsiWrapper extends State {
         checkMandatoryKey(json, "ver");
         long ver = getLong(json, "ver");
         
-        if (ver == Version.VER_1) {
+        if (ver == Version.VER_1 || ver == Version.VER_2) {
             checkMandatoryKey(json, "ksig");
             checkMandatoryKey(json, "block");
             getLong(json, "block");
@@ -221,6 +422,11 @@ public class KsiWrapper extends State {
             
         }
 
+        if (ver == Version.VER_2) {
+            checkMandatoryKey(json, "lvl");
+            getLong(json, "lvl");
+        }
+
         return ver;
     }
 
@@ -246,20 +452,15 @@ public class KsiWrapper extends State {
     //     return State.serialize(sig);
     // }
 
-    private static void verifyRecordHashes(KSISignature ksig, String[] recHash) {
-        // if (recHash.length == 0) {
-        //     throw new KsiWrapperException("The count of record hashes must be 2, but is " + recHash.length);
-        // }
-        
-        // System.out.println("Verifying KSI signature input hash.");
-        DataHash headerHash = new DataHash(base64ToBin(recHash[0]));
-        DataHash fabricMetaDataHash = new DataHash(base64ToBin(recHash[1]));
-        ImprintNode hn = new ImprintNode(headerHash);
-        ImprintNode mn = new ImprintNode(fabricMetaDataHash);
-        
+    /**
+     * Verifies that the local aggregation tree built over all the record hashes
+     * (header, metadata and optional transaction root hash) matches with the signature.
+     */
+    private static void verifyRecordHashes(KSISignature ksig, DataHash[] recHash) {
         HashTreeBuilder tb = new HashTreeBuilder();
-        tb.add(hn);
-        tb.add(mn);
+        for (DataHash hsh : recHash) {
+            tb.add(new ImprintNode(hsh));
+        }
         ImprintNode root = tb.build();
         DataHash rootHash = new DataHash(root.getValue());
 
@@ -271,52 +472,78 @@ public class KsiWrapper extends State {
     }
 
     /**
-     * Creates new KsiWrapper from binary input. Note that also base64 representation is needed for internal use.
-     * This approach is used to be able to create new wrapper from KSI signature or from base64 string.
-     * See {@link #newFromBase64} and {@link #newFromKsi} for public functions to construct wrapper.
-     * 
+     * Creates new KsiWrapper that holds the signature either as base64 string or as a
+     * slice of binary array (base64 is null). The slice is not copied. The signature is
+     * not parsed, see {@link #getKsi()} and {@link #validate()}.
+     * See {@link #newFromBase64} and {@link #newFromKSI} for public functions to construct wrapper.
      */
-    private static KsiWrapper newFromBin(long ver, byte[] bin, String base64, String[] recHash, long blockNumber, String org) throws KsiWrapperException {
-        if (bin == null) throw new NullPointerException("KSI signature binary array for parsing is null!");
-        if (bin.length == 0) throw new IllegalArgumentException("KSI signature binary array for parsing is empty!");
-        
-        if (base64 == null) throw new NullPointerException("KSI signature base64 representation is null!");
-        if (base64.isEmpty()) throw new IllegalArgumentException("KSI signature base64 representation is empty!");
+    private static KsiWrapper newLazy(long ver, String base64, byte[] bin, int off, int len, String[] recHash, long lvl, long blockNumber, String org) throws KsiWrapperException {
+        if (base64 == null) {
+            if (bin == null) throw new NullPointerException("KSI signature base64 representation is null!");
+            if (len == 0) throw new IllegalArgumentException("KSI signature binary array for parsing is empty!");
+        } else if (base64.isEmpty()) {
+            throw new IllegalArgumentException("KSI signature base64 representation is empty!");
+        }
         
         if (org == null) throw new NullPointerException("KSI signature wrapper org is null!");
         if (org.isEmpty()) throw new IllegalArgumentException("KSI signature wrapper org is empty!");
         
         if (blockNumber < 0) throw new IllegalArgumentException("KSI signature wrapper block can not be negative!");
+        if (lvl < 0 || lvl > 0xff) throw new IllegalArgumentException("KSI signature wrapper aggregation level must be in range [0, 255]!");
 
         if (!Version.isSupported(ver)) throw new KsiWrapperException(
             "Unsupported KSI Wrapper version: " + ver + "! Supported versions: " + Version.getSupportedVersionsString() + ".",
             ErrCodeEnum.ERR_INVALID_OBJECT_VERSION);
 
-        KSISignature sig;
-        try {
-            SignatureReader rdr = new SignatureReader();
-            sig = rdr.read(bin);
-        } catch (Exception e) {
-            throw new KsiWrapperException("Unable to parse KSI signature.", ErrCodeEnum.ERR_KSI, e);
-        }
         KsiWrapper tmp = new KsiWrapper();
         
         tmp.ksig = base64;
+        tmp.ksigBin = bin;
+        tmp.ksigOff = off;
+        tmp.ksigLen = len;
         tmp.rechash = recHash;
-        tmp.extended = sig.isExtended();
         tmp.block = blockNumber;
-        tmp.sig = sig;
         tmp.key = KsiWrapper.getKey(blockNumber, org);
         tmp.org = org;
         tmp.ver = ver;
-
-        if (recHash != null && recHash.length != 0) {
-            verifyRecordHashes(sig, recHash);
-        }
+        tmp.lvl = lvl;
 
         return tmp;
     } 
 
+    private static KsiWrapper newFromKSI(long ver, KSISignature sig, DataHash[] recHash, long lvl, long blockNumber, String org) throws KsiWrapperException {
+        byte[] bin = ksiToBin(sig);
+        KsiWrapper tmp = newLazy(ver, null, bin, 0, bin.length, recordHashesToBase64(recHash), lvl, blockNumber, org);
+        tmp.sig = SignatureCache.getDefault().put(bin, sig);
+        tmp.extended = sig.isExtended();
+        tmp.extendedKnown = true;
+        return tmp.validate();
+    }
+
+    private SignatureCache.Entry readSignature() throws KsiWrapperException {
+        try {
+            if (this.ksig == null) {
+                return SignatureCache.getDefault().get(this.ksigBin, this.ksigOff, this.ksigLen);
+            }
+            byte[] bin = base64ToBin(this.ksig);
+            return SignatureCache.getDefault().get(bin, 0, bin.length);
+        } catch (Exception e) {
+            throw new KsiWrapperException("Unable to parse KSI signature.", ErrCodeEnum.ERR_KSI, e);
+        }
+    }
+
+    private static byte[] ksiToBin(KSISignature sig) throws KsiWrapperException {
+        if (sig == null) throw new NullPointerException("KSI signature to be wrapped is null!");
+
+        ByteArrayOutputStream arrayBuilder = new ByteArrayOutputStream(0x2000);
+        try {
+            sig.writeTo(arrayBuilder);
+        } catch (KSIException e) {
+            throw new KsiWrapperException("Unable to serialize KSI signature!", ErrCodeEnum.ERR_KSI, e);
+        }
+        return arrayBuilder.toByteArray();
+    }
+
     private static byte[] base64ToBin(String str) {
         return Base64.getDecoder().decode(str);
     }
@@ -341,18 +568,137 @@ public class KsiWrapper extends State {
       private static void copy(KsiWrapper source, KsiWrapper target) {
         target.block = source.block;
         target.extended = source.extended;
+        target.extendedKnown = source.extendedKnown;
         target.key = source.key;
         target.ksig = source.ksig;
+        target.ksigBin = source.ksigBin;
+        target.ksigOff = source.ksigOff;
+        target.ksigLen = source.ksigLen;
         target.org = source.org;
         target.rechash = source.rechash;
         target.recordHash = source.recordHash;
         target.sig = source.sig;
+        target.validated = source.validated;
         target.ver = source.ver;
+        target.lvl = source.lvl;
+        target.stateEncoding = source.stateEncoding;
       } 
 
+      private static void writeTlv(ByteArrayOutputStream out, int type, byte[] value) {
+        writeTlv(out, type, value, 0, value.length);
+      }
+
+      private static void writeTlv(ByteArrayOutputStream out, int type, byte[] value, int off, int length) {
+        out.write(type);
+        long len = length;
+        while ((len & ~0x7fL) != 0) {
+            out.write((int) ((len & 0x7f) | 0x80));
+            len >>>= 7;
+        }
+        out.write((int) len);
+        out.write(value, off, length);
+      }
+
+      private static KsiWrapper deserializeBinary(byte[] data) throws KsiWrapperException {
+        if (data.length < 2 || data[1] != Version.VER_3) {
+            long ver = data.length < 2 ? Version.VER_INVALID : data[1];
+            throw new KsiWrapperException(
+                        "Unsupported KSI Wrapper binary version: " + ver + "! Supported binary version: " + Version.VER_3 + ".",
+                        ErrCodeEnum.ERR_INVALID_OBJECT_VERSION);
+        }
+
+        Long blockNumber = null;
+        String org = null;
+        int ksigOff = -1;
+        int ksigLen = 0;
+        List<String> recHash = new ArrayList<>();
+        Long lvl = null;
+        Boolean extended = null;
+
+        int pos = 2;
+        while (pos < data.length) {
+            int type = data[pos++] & 0xff;
+
+            long len = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= data.length || shift > 28) {
+                    throw new KsiWrapperException("Unable to parse KSI Wrapper binary object! Invalid TLV length.", ErrCodeEnum.ERR_INVALID_JSON_OBJECT);
+                }
+                byte b = data[pos++];
+                len |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            if (len > data.length - pos) {
+                throw new KsiWrapperException("Unable to parse KSI Wrapper binary object! TLV exceeds the data.", ErrCodeEnum.ERR_INVALID_JSON_OBJECT);
+            }
+
+            int off = pos;
+            pos += (int) len;
+            switch (type) {
+                case T_BLOCK:
+                    if (len != 8) throw new KsiWrapperException("Unable to parse KSI Wrapper binary object! Invalid block.", ErrCodeEnum.ERR_INVALID_JSON_OBJECT);
+                    long nr = 0;
+                    for (int i = 0; i < 8; i++) {
+                        nr = (nr << 8) | (data[off + i] & 0xff);
+                    }
+                    blockNumber = nr;
+                    break;
+                case T_ORG:
+                    org = new String(data, off, (int) len, UTF_8);
+                    break;
+                case T_KSIG:
+                    ksigOff = off;
+                    ksigLen = (int) len;
+                    break;
+                case T_RECHASH:
+                    recHash.add(binToBase64(Arrays.copyOfRange(data, off, pos)));
+                    break;
+                case T_LVL:
+                    if (len != 1) throw new KsiWrapperException("Unable to parse KSI Wrapper binary object! Invalid lvl.", ErrCodeEnum.ERR_INVALID_JSON_OBJECT);
+                    lvl = (long) (data[off] & 0xff);
+                    break;
+                case T_EXTENDED:
+                    if (len != 1) throw new KsiWrapperException("Unable to parse KSI Wrapper binary object! Invalid extended flag.", ErrCodeEnum.ERR_INVALID_JSON_OBJECT);
+                    extended = data[off] != 0;
+                    break;
+                default:
+                    throw new KsiWrapperException("Unable to parse KSI Wrapper binary object! Unknown TLV type " + type + ".", ErrCodeEnum.ERR_INVALID_JSON_OBJECT);
+            }
+        }
+
+        if (blockNumber == null || org == null || ksigOff < 0 || recHash.isEmpty()) {
+            throw new KsiWrapperException("KSI Wrapper binary object missing mandatory field (block, org, ksig or rechash)!", ErrCodeEnum.ERR_INVALID_JSON_OBJECT);
+        }
+
+        KsiWrapper tmp;
+        try {
+            String[] recHashArr = recHash.toArray(new String[0]);
+            if (lvl != null) {
+                tmp = newLazy(Version.VER_2, null, data, ksigOff, ksigLen, recHashArr, lvl, blockNumber, org);
+            } else {
+                tmp = newLazy(Version.VER_1, null, data, ksigOff, ksigLen, recHashArr, 0, blockNumber, org);
+            }
+        } catch (KsiWrapperException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KsiWrapperException("Unable to parse KSI signature!", ErrCodeEnum.ERR_UNEXPECTED, e);
+        }
+
+        if (extended != null) {
+            tmp.extended = extended;
+            tmp.extendedKnown = true;
+        }
+        tmp.stateEncoding = Version.VER_3;
+        return tmp;
+      }
+
       private static KsiWrapper deserialize(byte[] data) throws NullPointerException, IllegalArgumentException, KsiWrapperException {
         if (data == null) throw new NullPointerException("Deserializing of " + KsiWrapper.class.getName() + " failed as input is null!");
         if (data.length == 0) throw new IllegalArgumentException("Deserializing of " + KsiWrapper.class.getName() + " failed as input is empty!");
+
+        if (data[0] == BIN_MARKER) {
+            return deserializeBinary(data);
+        }
         
         String j = new String(data, UTF_8);
      
@@ -361,17 +707,25 @@ public class KsiWrapper extends State {
         // Check and get version. Verify mandatory keys.
         long ver = checkVersion(json);
         
-        if (ver == Version.VER_1) {
+        if (ver == Version.VER_1 || ver == Version.VER_2) {
             String state = json.getString("ksig");
             long blockNumber = getLong(json, "block");
             String org = json.getString("org");
             String[] recHash = getRecHashList(json, "rechash");
-        
+            long lvl = ver == Version.VER_2 ? getLong(json, "lvl") : 0;
+
+            KsiWrapper tmp;
             try {
-                return newFromBase64(state, recHash, blockNumber, org);
+                tmp = newLazy(ver, state, null, 0, 0, recHash, lvl, blockNumber, org);
             } catch (Exception e) {
                 throw new KsiWrapperException("Unable to parse KSI signature!", ErrCodeEnum.ERR_UNEXPECTED, e);
             }
+
+            if (json.has("extended")) {
+                tmp.extended = json.getBoolean("extended");
+                tmp.extendedKnown = true;
+            }
+            return tmp;
         } else {
             throw new KsiWrapperException("Unexpected failure. Deserializing version: " + ver + " not implemented.", ErrCodeEnum.ERR_UNEXPECTED);
         }
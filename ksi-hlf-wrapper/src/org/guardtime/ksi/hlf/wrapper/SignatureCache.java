@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+
+package org.guardtime.ksi.hlf.wrapper;
+
+import java.io.ByteArrayInputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.guardtime.ksi.SignatureReader;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+/**
+ * Process wide cache of parsed KSI signatures. The key is the SHA-256 hash of the
+ * serialized signature, so the same signature read several times (e.g. by
+ * repeated verification or summary queries) is parsed only once. Together with
+ * the signature its aggregation time, input hash and publication time are kept.
+ *
+ * The cache is bounded by the count of signatures and the least recently used
+ * entry is evicted first. Max size 0 disables the cache. The cache is thread safe.
+ */
+public final class SignatureCache {
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final SignatureCache DEFAULT = new SignatureCache(DEFAULT_MAX_SIZE);
+
+    private final LinkedHashMap<DataHash, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxSize;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Parsed KSI signature with the fields derived from it.
+     */
+    public static final class Entry {
+        private final KSISignature sig;
+        private final Date aggregationTime;
+        private final DataHash inputHash;
+        private final Date publicationTime;
+
+        private Entry(KSISignature sig) {
+            this.sig = sig;
+            this.aggregationTime = sig.getAggregationTime();
+            this.inputHash = sig.getInputHash();
+            this.publicationTime = sig.isExtended() ? sig.getPublicationTime() : null;
+        }
+
+        public KSISignature getSignature() {
+            return sig;
+        }
+
+        public Date getAggregationTime() {
+            return aggregationTime;
+        }
+
+        public DataHash getInputHash() {
+            return inputHash;
+        }
+
+        /**
+         * Returns publication time or null if the signature is not extended.
+         */
+        public Date getPublicationTime() {
+            return publicationTime;
+        }
+    }
+
+    public SignatureCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the cache used by {@link KsiWrapper}.
+     */
+    public static SignatureCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sets the max count of cached signatures. Extra entries are evicted immediately.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) throw new IllegalArgumentException("Signature cache size must not be negative!");
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the parsed signature from the cache or parses and caches it.
+     * @param bin array containing the serialized KSI signature.
+     * @param off offset of the signature.
+     * @param len length of the signature.
+     * @throws Exception if the signature can not be parsed.
+     */
+    public Entry get(byte[] bin, int off, int len) throws Exception {
+        if (bin == null) throw new NullPointerException("KSI signature binary array is null!");
+
+        DataHash key = null;
+        if (getMaxSize() > 0) {
+            key = new DataHasher(HashAlgorithm.SHA2_256).addData(bin, off, len).getHash();
+            synchronized (this) {
+                Entry e = map.get(key);
+                if (e != null) {
+                    hits++;
+                    return e;
+                }
+                misses++;
+            }
+        }
+
+        /* Parse outside of the lock, concurrent misses of the same signature may parse it twice. */
+        Entry e = new Entry(new SignatureReader().read(new ByteArrayInputStream(bin, off, len)));
+        if (key != null) {
+            synchronized (this) {
+                map.put(key, e);
+                evict();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Caches already parsed signature with its serialized form.
+     */
+    Entry put(byte[] bin, KSISignature sig) {
+        Entry e = new Entry(sig);
+        if (getMaxSize() > 0) {
+            DataHash key = new DataHasher(HashAlgorithm.SHA2_256).addData(bin).getHash();
+            synchronized (this) {
+                map.put(key, e);
+                evict();
+            }
+        }
+        return e;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the ratio of hits to all the lookups or 0 if there has been no lookups.
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("size=%d/%d hits=%d misses=%d evictions=%d hit-rate=%.1f%%",
+                             map.size(), maxSize, hits, misses, evictions, getHitRate() * 100);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<DataHash, Entry>> itr = map.entrySet().iterator();
+        while (map.size() > maxSize && itr.hasNext()) {
+            itr.next();
+            itr.remove();
+            evictions++;
+        }
+    }
+}
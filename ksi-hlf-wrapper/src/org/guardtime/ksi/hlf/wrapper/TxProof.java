@@ -0,0 +1,298 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package org.guardtime.ksi.hlf.wrapper;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.tree.ImprintNode;
+
+/**
+ * TxProof is a proof of a single transaction of HLF block that was signed with
+ * transaction aggregation. In that mode the record hashes of the KsiWrapper are
+ * (header hash, metadata hash, transaction root hash), where transaction root is
+ * the root of local aggregation tree built over the hashes of the transaction
+ * envelopes. The proof contains the hash of one envelope, the hash chain from
+ * that envelope to the transaction root and the KsiWrapper, so the transaction
+ * can be verified without the rest of the block.
+ *
+ * The proof is encoded in JSON:
+ *
+ * {
+ *  "block":   <int>,           // The number of the HLF block.
+ *  "org":     <str>,           // Organization ID that issued the KSI signature.
+ *  "tx":      <int>,           // Index of the transaction in block data.
+ *  "txhash":  <base64 str>,    // Imprint of the transaction envelope hash.
+ *  "chain":   [{               // Hash chain from transaction to transaction root.
+ *      "hash":  <base64 str>,  // Imprint of the sibling.
+ *      "right": <bool>,        // True if the sibling is on the right.
+ *      "lvl":   <int>          // Level of the parent node.
+ *  }],
+ *  "ksiwrapper": {...}         // KsiWrapper of the block.
+ * }
+ */
+public class TxProof {
+    /** Count of record hashes in KsiWrapper when transactions are aggregated. */
+    public static final int TX_RECORD_COUNT = 3;
+    /** Index of the transaction root hash in the record hashes. */
+    public static final int TX_ROOT_INDEX = 2;
+
+    private final KsiWrapper sig;
+    private final int index;
+    private final DataHash txHash;
+    private final List<Link> chain;
+
+    /**
+     * Single step of the hash chain: sibling of the node and the level of the parent.
+     */
+    public static class Link {
+        private final DataHash sibling;
+        private final boolean right;
+        private final long level;
+
+        public Link(DataHash sibling, boolean right, long level) {
+            if (sibling == null) throw new NullPointerException("Hash chain sibling is null!");
+            if (level < 1 || level > 0xff) throw new IllegalArgumentException("Hash chain level must be in range [1, 255]!");
+
+            this.sibling = sibling;
+            this.right = right;
+            this.level = level;
+        }
+
+        public DataHash getSibling() {
+            return sibling;
+        }
+
+        /** Returns true if the sibling is the right child of the parent. */
+        public boolean isRight() {
+            return right;
+        }
+
+        public long getLevel() {
+            return level;
+        }
+    }
+
+    public TxProof(KsiWrapper sig, int index, DataHash txHash, List<Link> chain) {
+        if (sig == null) throw new NullPointerException("Transaction proof KsiWrapper is null!");
+        if (txHash == null) throw new NullPointerException("Transaction proof transaction hash is null!");
+        if (chain == null) throw new NullPointerException("Transaction proof hash chain is null!");
+        if (index < 0) throw new IllegalArgumentException("Transaction proof index can not be negative!");
+
+        this.sig = sig;
+        this.index = index;
+        this.txHash = txHash;
+        this.chain = Collections.unmodifiableList(new ArrayList<>(chain));
+    }
+
+    public static boolean isTxAggregated(KsiWrapper sig) {
+        return sig.getRecHash() != null && sig.getRecHash().length == TX_RECORD_COUNT;
+    }
+
+    public KsiWrapper getKsiWrapper() {
+        return sig;
+    }
+
+    public long getBlockNumber() {
+        return sig.getBlockNumber();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public DataHash getTxHash() {
+        return txHash;
+    }
+
+    public List<Link> getChain() {
+        return chain;
+    }
+
+    /**
+     * Computes the transaction root hash from the transaction hash and the hash chain.
+     * The parents are hashed with the algorithm of the transaction root hash in the
+     * KsiWrapper (the local aggregation hash algorithm).
+     */
+    public DataHash getTxRootHash() {
+        if (!isTxAggregated(sig)) {
+            throw new KsiWrapperException("KSI Wrapper of block " + sig.getBlockNumber() + " is not signed with transaction aggregation!", ErrCodeEnum.ERR_WRAP_VERIFICATION_FAILURE);
+        }
+        return getRootHash(txHash, chain, sig.getRecordHash()[TX_ROOT_INDEX].getAlgorithm());
+    }
+
+    /**
+     * Verifies that the transaction hash is aggregated into the transaction root hash
+     * of the KsiWrapper. Note that KsiWrapper itself verifies that the record hashes
+     * match with the KSI signature, but the KSI signature still has to be verified.
+     */
+    public void verify() throws KsiWrapperException {
+        if (!isTxAggregated(sig)) {
+            throw new KsiWrapperException("KSI Wrapper of block " + sig.getBlockNumber() + " is not signed with transaction aggregation!", ErrCodeEnum.ERR_WRAP_VERIFICATION_FAILURE);
+        }
+
+        if (!getTxRootHash().equals(sig.getRecordHash()[TX_ROOT_INDEX])) {
+            throw new KsiWrapperException("Transaction root hash calculated from the hash chain does not match with the KSI Wrapper!", ErrCodeEnum.ERR_WRAP_VERIFICATION_FAILURE);
+        }
+    }
+
+    /**
+     * Verifies that the proof is for the transaction hash given.
+     */
+    public void verify(DataHash hash) throws KsiWrapperException {
+        if (!txHash.equals(hash)) {
+            throw new KsiWrapperException("Transaction hash does not match with the proof!", ErrCodeEnum.ERR_WRAP_VERIFICATION_FAILURE);
+        }
+        verify();
+    }
+
+    /**
+     * Verifies that the proof is for the raw transaction envelope given (envelope
+     * is hashed with HLF hash algorithm SHA-256).
+     */
+    public void verifyEnvelope(byte[] envelope) throws KsiWrapperException {
+        if (envelope == null) throw new NullPointerException("Transaction envelope is null!");
+        verify(new DataHasher(HashAlgorithm.SHA2_256).addData(envelope).getHash());
+    }
+
+    /**
+     * Computes the root hash of the hash chain. Parent of two nodes is hashed as
+     * in KSI HashTreeBuilder: hash(left imprint || right imprint || level), where
+     * hash is the aggregation hash algorithm of the tree. The leaves (transaction
+     * envelope hashes) are always SHA-256.
+     */
+    public static DataHash getRootHash(DataHash leaf, List<Link> chain, HashAlgorithm aggrHashAlgo) {
+        if (aggrHashAlgo == null) throw new NullPointerException("Aggregation hash algorithm is null!");
+
+        DataHash hsh = leaf;
+        for (Link l : chain) {
+            DataHasher hasher = new DataHasher(aggrHashAlgo);
+            if (l.isRight()) {
+                hasher.addData(hsh.getImprint()).addData(l.getSibling().getImprint());
+            } else {
+                hasher.addData(l.getSibling().getImprint()).addData(hsh.getImprint());
+            }
+            hasher.addData(new byte[] {(byte) l.getLevel()});
+            hsh = hasher.getHash();
+        }
+        return hsh;
+    }
+
+    /**
+     * Extracts the hash chain from the leaf to the root of the tree built by
+     * HashTreeBuilder. The leaf is looked up by reference.
+     */
+    public static List<Link> getChain(ImprintNode root, ImprintNode leaf) {
+        Deque<Link> path = new ArrayDeque<>();
+        if (!findPath(root, leaf, path)) {
+            throw new IllegalArgumentException("Leaf is not part of the tree!");
+        }
+        return new ArrayList<>(path);
+    }
+
+    private static boolean findPath(ImprintNode node, ImprintNode leaf, Deque<Link> path) {
+        if (node == leaf) {
+            return true;
+        }
+
+        ImprintNode left = (ImprintNode) node.getLeftChildNode();
+        ImprintNode right = (ImprintNode) node.getRightChildNode();
+        if (left == null || right == null) {
+            return false;
+        }
+
+        /* Links are collected from the leaf towards the root. */
+        if (findPath(left, leaf, path)) {
+            path.addLast(new Link(new DataHash(right.getValue()), true, node.getLevel()));
+            return true;
+        }
+        if (findPath(right, leaf, path)) {
+            path.addLast(new Link(new DataHash(left.getValue()), false, node.getLevel()));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        JSONArray jchain = new JSONArray();
+        for (Link l : chain) {
+            JSONObject jl = new JSONObject();
+            jl.put("hash", binToBase64(l.getSibling().getImprint()));
+            jl.put("right", l.isRight());
+            jl.put("lvl", l.getLevel());
+            jchain.put(jl);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("block", sig.getBlockNumber());
+        json.put("org", sig.getOrg());
+        json.put("tx", index);
+        json.put("txhash", binToBase64(txHash.getImprint()));
+        json.put("chain", jchain);
+        json.put("ksiwrapper", new JSONObject(sig.toString()));
+        return json.toString();
+    }
+
+    public static TxProof parse(String str) throws KsiWrapperException {
+        if (str == null) throw new NullPointerException("Transaction proof to be parsed is null!");
+
+        try {
+            JSONObject json = new JSONObject(str);
+            KsiWrapper sig = new KsiWrapper().parse(json.getJSONObject("ksiwrapper").toString().getBytes(UTF_8));
+
+            if (sig.getBlockNumber() != json.getLong("block") || !sig.getOrg().equals(json.getString("org"))) {
+                throw new KsiWrapperException("Transaction proof block or org does not match with the KSI Wrapper!", ErrCodeEnum.ERR_INVALID_JSON_OBJECT);
+            }
+
+            List<Link> chain = new ArrayList<>();
+            JSONArray jchain = json.getJSONArray("chain");
+            for (int i = 0; i < jchain.length(); i++) {
+                JSONObject jl = jchain.getJSONObject(i);
+                chain.add(new Link(new DataHash(base64ToBin(jl.getString("hash"))), jl.getBoolean("right"), jl.getLong("lvl")));
+            }
+
+            return new TxProof(sig, json.getInt("tx"), new DataHash(base64ToBin(json.getString("txhash"))), chain);
+        } catch (KsiWrapperException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KsiWrapperException("Unable to parse transaction proof!", ErrCodeEnum.ERR_INVALID_JSON_OBJECT, e);
+        }
+    }
+
+    private static byte[] base64ToBin(String str) {
+        return Base64.getDecoder().decode(str);
+    }
+
+    private static String binToBase64(byte[] bin) {
+        return new String(Base64.getEncoder().encode(bin));
+    }
+}
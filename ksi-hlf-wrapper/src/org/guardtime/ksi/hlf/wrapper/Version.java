@@ -22,14 +22,23 @@ package org.guardtime.ksi.hlf.wrapper;
 public class Version {
     public static final long VER_INVALID = -1;
     public static final long VER_1 = 1;
+    /* Same as VER_1, but block is aggregated with other blocks before signing. */
+    public static final long VER_2 = 2;
+    /*
+     * Compact binary encoding of VER_1 and VER_2 content (TLV with raw signature and
+     * imprints) used for ledger state. Content version is restored from the data.
+     * It is an encoding, not a content version, so it is not in the supported versions.
+     */
+    public static final long VER_3 = 3;
 
     public static String getSupportedVersionsString() {
         return "[" + 
-                 VER_1 + 
+                 VER_1 + ", " +
+                 VER_2 +
                 "]"; 
     }
 
     public static boolean isSupported(long ver) {
-        return ver == VER_1;
+        return ver == VER_1 || ver == VER_2;
     }
 }
\ No newline at end of file
@@ -21,15 +21,23 @@ package test.guardtime.ksi.hlf.wrapper;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 import java.nio.charset.StandardCharsets;
 import java.io.InvalidObjectException;
+import java.util.Arrays;
+import java.util.Base64;
 
 import org.guardtime.ksi.hlf.ledgerapi.State;
 
 import com.guardtime.ksi.exceptions.KSIException;
 import com.guardtime.ksi.unisignature.KSISignature;
 import org.guardtime.ksi.hlf.wrapper.KsiWrapper;
+import org.guardtime.ksi.hlf.wrapper.KsiWrapperException;
+import org.guardtime.ksi.hlf.wrapper.SignatureCache;
+import org.guardtime.ksi.hlf.wrapper.Version;
 
 public class KsiWrapperTest {
     // private final String ksigBase64 =
@@ -89,4 +97,92 @@ public class KsiWrapperTest {
         assertEquals(ksigw.isExtended(), newKsi.isExtended(), "Is extended flag do not match.");
         assertEquals(ksigw.getKsiBase64(), newKsi.getKsiBase64(), "KSI signature base64 do not match.");
     }
-}
\ No newline at end of file
+
+    @Test
+    void test_binaryEncoding() throws Exception {
+        KsiWrapper ksigw = KsiWrapper.newFromBase64(ksigBase64, rechash, 2, "gt");
+        byte[] json = ksigw.serialize();
+
+        ksigw.setStateEncoding(Version.VER_3);
+        byte[] bin = ksigw.serialize();
+        assertTrue(bin.length < json.length, "Binary encoding is not smaller than JSON.");
+
+        KsiWrapper newKsi = new KsiWrapper().parse(bin);
+        assertEquals(Version.VER_1, newKsi.getVersion(), "Content version does not match.");
+        assertEquals(Version.VER_3, newKsi.getStateEncoding(), "State encoding does not match.");
+        assertEquals(ksigw.getBlockNumber(), newKsi.getBlockNumber(), "Block numbers do not match.");
+        assertEquals(ksigw.getOrg(), newKsi.getOrg(), "Orgs do not match.");
+        assertEquals(ksigw.getKsiBase64(), newKsi.getKsiBase64(), "KSI signature base64 do not match.");
+        assertArrayEquals(ksigw.getRecHash(), newKsi.getRecHash(), "Record hashes do not match.");
+        assertEquals(null, newKsi.getAggregationLevel(), "Version 1 must not have level.");
+
+        /* toString is always JSON. */
+        KsiWrapper fromJson = new KsiWrapper().parse(newKsi.toString().getBytes(StandardCharsets.UTF_8));
+        assertEquals(ksigw.getKsiBase64(), fromJson.getKsiBase64(), "KSI signature base64 do not match.");
+    }
+
+    @Test
+    void test_binaryEncodingWithLevel() throws Exception {
+        KsiWrapper ksigw = KsiWrapper.newFromBase64(ksigBase64, rechash, 7, 300, "gt");
+        KsiWrapper newKsi = new KsiWrapper().parse(ksigw.serializeBinary());
+
+        assertEquals(Version.VER_2, newKsi.getVersion(), "Content version does not match.");
+        assertEquals(Long.valueOf(7), newKsi.getAggregationLevel(), "Level does not match.");
+        assertEquals(300, newKsi.getBlockNumber(), "Block numbers do not match.");
+    }
+
+    @Test
+    void test_binaryEncodingCorrupted() throws Exception {
+        KsiWrapper ksigw = KsiWrapper.newFromBase64(ksigBase64, rechash, 2, "gt");
+        byte[] bin = ksigw.serializeBinary();
+
+        assertThrows(KsiWrapperException.class, () -> new KsiWrapper().parse(Arrays.copyOf(bin, bin.length - 10)));
+
+        byte[] badVersion = bin.clone();
+        badVersion[1] = 9;
+        assertThrows(KsiWrapperException.class, () -> new KsiWrapper().parse(badVersion));
+    }
+
+    @Test
+    void test_lazyParsing() throws Exception {
+        KsiWrapper ksigw = KsiWrapper.newFromBase64(ksigBase64, rechash, 2, "gt");
+        String json = ksigw.toString();
+
+        /* Invalid content is detected only when the signature is needed. */
+        byte[] badRecHash = json.replace(headerHash, inHash).getBytes(StandardCharsets.UTF_8);
+        KsiWrapper newKsi = new KsiWrapper().parse(badRecHash);
+        assertEquals(ksigw.getKsiBase64(), newKsi.getKsiBase64(), "KSI signature base64 do not match.");
+        assertEquals(ksigw.isExtended(), newKsi.isExtended(), "Is extended flag do not match.");
+        assertThrows(KsiWrapperException.class, () -> newKsi.validate());
+
+        byte[] badKsig = json.replace(ksigBase64, "AAAA").getBytes(StandardCharsets.UTF_8);
+        KsiWrapper badKsi = new KsiWrapper().parse(badKsig);
+        assertThrows(KsiWrapperException.class, () -> badKsi.getKsi());
+
+        ksigw.setStateEncoding(Version.VER_3);
+        KsiWrapper binKsi = new KsiWrapper().parse(ksigw.serialize());
+        assertEquals(ksigw.getKsi().getInputHash(), binKsi.validate().getKsi().getInputHash(), "Input hashes do not match.");
+    }
+
+    @Test
+    void test_signatureCache() throws Exception {
+        byte[] bin = KsiWrapper.newFromBase64(ksigBase64, rechash, 2, "gt").getKsiBin();
+        SignatureCache cache = new SignatureCache(1);
+
+        SignatureCache.Entry first = cache.get(bin, 0, bin.length);
+        SignatureCache.Entry second = cache.get(bin, 0, bin.length);
+        assertTrue(first == second, "Cached signature is not reused.");
+        assertEquals(inHash, Base64.getEncoder().encodeToString(second.getInputHash().getImprint()), "Input hash does not match.");
+        assertEquals(1, cache.getHits(), "Invalid hit count.");
+        assertEquals(1, cache.getMisses(), "Invalid miss count.");
+
+        byte[] padded = new byte[bin.length + 3];
+        System.arraycopy(bin, 0, padded, 3, bin.length);
+        assertTrue(first == cache.get(padded, 3, bin.length), "Signature slice is not found from cache.");
+
+        cache.setMaxSize(0);
+        assertEquals(0, cache.size(), "Cache is not emptied.");
+        assertEquals(1, cache.getEvictions(), "Invalid eviction count.");
+        assertTrue(first != cache.get(bin, 0, bin.length), "Disabled cache returned cached signature.");
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Guardtime, Inc.
+ *
+ * This file is part of the KSI-HLF integration toolkit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * "Guardtime" and "KSI" are trademarks or registered trademarks of
+ * Guardtime, Inc., and no license to trademarks is granted; Guardtime
+ * reserves and retains all trademark rights.
+ */
+
+package test.guardtime.ksi.hlf.wrapper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import java.util.Random;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.tree.HashTreeBuilder;
+import com.guardtime.ksi.tree.ImprintNode;
+import org.guardtime.ksi.hlf.wrapper.TxProof;
+
+public class TxProofTest {
+
+    /* Leaves are SHA-256 envelope hashes, parents are hashed with the aggregation algorithm. */
+    private static void assertChainsReproduceRoot(HashAlgorithm aggrHashAlgo, long seed) throws Exception {
+        Random rnd = new Random(seed);
+
+        for (int n = 1; n <= 70; n++) {
+            HashTreeBuilder tb = new HashTreeBuilder(aggrHashAlgo);
+            ImprintNode[] leaves = new ImprintNode[n];
+            for (int i = 0; i < n; i++) {
+                byte[] hsh = new byte[32];
+                rnd.nextBytes(hsh);
+                leaves[i] = new ImprintNode(new DataHash(HashAlgorithm.SHA2_256, hsh));
+                tb.add(leaves[i]);
+            }
+            ImprintNode root = tb.build();
+            DataHash rootHash = new DataHash(root.getValue());
+            if (n > 1) {
+                assertEquals(aggrHashAlgo, rootHash.getAlgorithm(), "Root of " + n + " leaves has unexpected algorithm.");
+            }
+
+            for (int i = 0; i < n; i++) {
+                List<TxProof.Link> chain = TxProof.getChain(root, leaves[i]);
+                DataHash leafHash = new DataHash(leaves[i].getValue());
+                assertEquals(rootHash, TxProof.getRootHash(leafHash, chain, aggrHashAlgo), "Root of leaf " + i + " of " + n + " does not match.");
+            }
+        }
+    }
+
+    @Test
+    void test_chainReproducesTreeRoot() throws Exception {
+        assertChainsReproduceRoot(HashAlgorithm.SHA2_256, 1);
+    }
+
+    @Test
+    void test_chainReproducesTreeRootOtherAlgorithms() throws Exception {
+        assertChainsReproduceRoot(HashAlgorithm.SHA2_512, 2);
+        assertChainsReproduceRoot(HashAlgorithm.SHA2_384, 3);
+    }
+}